@@ -0,0 +1,314 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * The access_history class remembers which files a cache is asked for, and uses
+ * that to load files before clients ask for them: the hottest files when the
+ * cache starts, and optionally the file that usually follows the one just asked for.
+ *
+ * Every whole-file get counts towards its file, and towards the pair (previous
+ * file, this file) of the client host that sent it, so the history learns which
+ * files tend to be read one after another. Counts are halved whenever more than
+ * cache.historyFiles files are tracked, which keeps the history bounded and lets
+ * old favourites fade.
+ *
+ * The history is saved to <dir>/.history every cache.historySaveInterval and when
+ * the cache shuts down, and read back at start-up. The cache then warms up: the
+ * cache.warmFiles most requested files are loaded from the main server, or
+ * revalidated if a copy survived the restart, so the first requests after a deploy
+ * find them ready. With cache.prefetch, a get also loads the file that followed it
+ * most often (at least cache.prefetchMinCount times, and at least half of the time).
+ *
+ * Warm-up and prefetch loads share one queue, which is worked through by
+ * cache.warmThreads loads at once and started no faster than cache.warmRate per
+ * second, so the main server isn't flooded after a restart. Loads that don't fit
+ * the queue are dropped; a client asking for the file fetches it as usual.
+ *
+ * Settings (system properties):
+ *  - cache.historyFiles:        Most files tracked (default 10000).
+ *  - cache.historySaveInterval: Milliseconds between saves (default 60000).
+ *  - cache.warmFiles:           Files loaded at start-up (default 64, 0 disables warm-up).
+ *  - cache.warmThreads:         Loads run at once (default 4).
+ *  - cache.warmRate:            Most loads started per second (default 20).
+ *  - cache.prefetch:            Whether gets load their usual successor (default false).
+ *  - cache.prefetchMinCount:    Times a file must have followed another to be prefetched (default 3).
+ */
+public class access_history {
+
+    static final int MAX_FILES = Math.max(16, Integer.getInteger("cache.historyFiles", 10000));
+    static final long SAVE_INTERVAL = Math.max(1000, Long.getLong("cache.historySaveInterval", 60000));
+    static final int WARM_FILES = Math.max(0, Integer.getInteger("cache.warmFiles", 64));
+    static final int WARM_THREADS = Math.max(1, Integer.getInteger("cache.warmThreads", 4));
+    static final double WARM_RATE = Math.max(0.1, Double.parseDouble(System.getProperty("cache.warmRate", "20")));
+    static final boolean PREFETCH = Boolean.getBoolean("cache.prefetch");
+    static final int PREFETCH_MIN_COUNT = Math.max(1, Integer.getInteger("cache.prefetchMinCount", 3));
+
+    // Successors remembered per file, and client hosts whose previous file is remembered
+    private static final int MAX_SUCCESSORS = 8;
+    private static final int MAX_CLIENTS = 10000;
+
+    // Loads waiting for their turn; more are dropped
+    private static final int MAX_QUEUED = 1024;
+
+    static final LongAdder WARMED = metrics.counter("cache.warm.loaded");
+    static final LongAdder PREFETCHED = metrics.counter("cache.prefetch.loaded");
+    static final LongAdder DROPPED = metrics.counter("cache.prefetch.dropped");
+
+    /**
+     * Brings a file into the cache, or revalidates the cached copy; does nothing
+     * if the cached copy is fresh.
+     */
+    public interface loader {
+        void load(String fileName) throws IOException;
+    }
+
+    // A file's request count and the files requested right after it
+    private static class entry {
+        long count;
+        final HashMap<String, Long> next = new HashMap<>();
+    }
+
+    private final File file;
+    private final Predicate<String> current;
+    private final loader loader;
+
+    private final HashMap<String, entry> entries = new HashMap<>();
+
+    // The last file each client host asked for, oldest hosts dropped first
+    private final LinkedHashMap<String, String> previous = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CLIENTS;
+        }
+    };
+
+    // Files waiting to be loaded (name -> prefetch rather than warm-up), in order
+    private final LinkedHashMap<String, Boolean> queued = new LinkedHashMap<>();
+    private final Semaphore running = new Semaphore(WARM_THREADS);
+    private final ExecutorService loaders = Executors.newFixedThreadPool(WARM_THREADS, task -> {
+        Thread thread = new Thread(task, "warm-up");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Reads the history a previous run saved.
+     *
+     * @param cacheDir The cache directory; the history is kept in its .history file.
+     * @param current  True for files whose cached copy is fresh, which aren't queued.
+     * @param loader   Loads a file into the cache.
+     */
+    public access_history(File cacheDir, Predicate<String> current, loader loader) {
+        this.file = new File(cacheDir, ".history");
+        this.current = current;
+        this.loader = loader;
+        read();
+    }
+
+    /**
+     * Queues the warm-up, starts loading, and saves the history every save interval
+     * and at shutdown.
+     */
+    public void start() {
+        List<String> hottest = hottest(WARM_FILES);
+        if (!hottest.isEmpty())
+            System.out.println("Warming up the " + hottest.size() + " most requested file(s).");
+        for (String name : hottest)
+            enqueue(name, false);
+
+        Thread dispatcher = new Thread(this::dispatch, "warm-up-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+
+        ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "history-saver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        saver.scheduleWithFixedDelay(this::save, SAVE_INTERVAL, SAVE_INTERVAL, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::save, "history-saver"));
+    }
+
+    /**
+     * Records a whole-file get, and queues the file's usual successor if prefetching is on.
+     *
+     * @param client   The host that asked, whose requests form one sequence; may be null.
+     * @param fileName The requested file name.
+     */
+    public void record(String client, String fileName) {
+        String successor;
+        synchronized (this) {
+            entry requested = entries.computeIfAbsent(fileName, key -> new entry());
+            requested.count++;
+
+            String before = client != null ? previous.put(client, fileName) : null;
+            entry earlier = before != null && !before.equals(fileName) ? entries.get(before) : null;
+            if (earlier != null)
+                follow(earlier, fileName);
+
+            if (entries.size() > MAX_FILES)
+                age();
+            successor = PREFETCH ? successorOf(requested) : null;
+        }
+        if (successor != null)
+            enqueue(successor, true);
+    }
+
+    /**
+     * @return The number of files in the history.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // Counts a transition, making room by dropping the rarest successor
+    private void follow(entry earlier, String fileName) {
+        if (!earlier.next.containsKey(fileName) && earlier.next.size() >= MAX_SUCCESSORS) {
+            String rarest = Collections.min(earlier.next.entrySet(), Map.Entry.comparingByValue()).getKey();
+            earlier.next.remove(rarest);
+        }
+        earlier.next.merge(fileName, 1L, Long::sum);
+    }
+
+    // Halves every count and forgets what falls to 0
+    private void age() {
+        Iterator<entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            entry e = it.next();
+            e.count /= 2;
+            e.next.replaceAll((name, count) -> count / 2);
+            e.next.values().removeIf(count -> count == 0);
+            if (e.count == 0)
+                it.remove();
+        }
+    }
+
+    // The successor that followed often enough and at least half of the time, or null
+    private static String successorOf(entry requested) {
+        String best = null;
+        long bestCount = 0;
+        long total = 0;
+        for (Map.Entry<String, Long> next : requested.next.entrySet()) {
+            total += next.getValue();
+            if (next.getValue() > bestCount) {
+                best = next.getKey();
+                bestCount = next.getValue();
+            }
+        }
+        return bestCount >= PREFETCH_MIN_COUNT && bestCount * 2 >= total ? best : null;
+    }
+
+    // The most requested files, most requested first
+    private synchronized List<String> hottest(int limit) {
+        List<Map.Entry<String, entry>> all = new ArrayList<>(entries.entrySet());
+        all.sort((a, b) -> Long.compare(b.getValue().count, a.getValue().count));
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < all.size() && i < limit; i++)
+            names.add(all.get(i).getKey());
+        return names;
+    }
+
+    // Queues a load unless the file is fresh in the cache, queued already, or the queue is full
+    private void enqueue(String fileName, boolean prefetch) {
+        if (current.test(fileName))
+            return;
+        synchronized (queued) {
+            if (queued.containsKey(fileName))
+                return;
+            if (queued.size() >= MAX_QUEUED) {
+                DROPPED.increment();
+                return;
+            }
+            queued.put(fileName, prefetch);
+            queued.notifyAll();
+        }
+    }
+
+    // Starts queued loads one at a time, at most WARM_RATE per second and WARM_THREADS at once
+    private void dispatch() {
+        long interval = (long) (1e9 / WARM_RATE);
+        long nextStart = System.nanoTime();
+        try {
+            while (true) {
+                Map.Entry<String, Boolean> next;
+                synchronized (queued) {
+                    while (queued.isEmpty())
+                        queued.wait();
+                    Iterator<Map.Entry<String, Boolean>> it = queued.entrySet().iterator();
+                    next = it.next();
+                    it.remove();
+                }
+
+                long wait = nextStart - System.nanoTime();
+                if (wait > 0)
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                nextStart = Math.max(nextStart, System.nanoTime() - interval) + interval;
+
+                running.acquire();
+                String fileName = next.getKey();
+                boolean prefetch = next.getValue();
+                loaders.execute(() -> {
+                    try {
+                        loader.load(fileName);
+                        (prefetch ? PREFETCHED : WARMED).increment();
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("Error " + (prefetch ? "prefetching " : "warming up ") + fileName + ": " + e.getMessage());
+                    } finally {
+                        running.release();
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Lines are "<count> <file>", each followed by "> <count> <successor>" lines
+    private void read() {
+        if (!file.exists())
+            return;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            entry last = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length == 3 && fields[0].equals(">") && last != null) {
+                    last.next.put(fields[2], Long.parseLong(fields[1]));
+                } else if (fields.length == 2) {
+                    last = new entry();
+                    last.count = Long.parseLong(fields[0]);
+                    entries.put(fields[1], last);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Error reading access history, starting without it: " + e.getMessage());
+            entries.clear();
+        }
+    }
+
+    // Writes the history to a temporary file and moves it into place, so a crash leaves the old one
+    private void save() {
+        File temporary = new File(file.getParentFile(), ".history.tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8)) {
+                synchronized (this) {
+                    for (Map.Entry<String, entry> e : entries.entrySet()) {
+                        writer.write(e.getValue().count + " " + e.getKey() + "\n");
+                        for (Map.Entry<String, Long> next : e.getValue().next.entrySet())
+                            writer.write("> " + next.getValue() + " " + next.getKey() + "\n");
+                    }
+                }
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Error saving access history: " + e.getMessage());
+            temporary.delete();
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+/**
+ * Loss-based congestion control in the style of TCP Reno. The window starts at
+ * a few packets and doubles every round trip (slow start) until the first loss or
+ * the slow start threshold, then grows by one packet per round trip (additive
+ * increase). A loss halves the window (multiplicative decrease); a timeout drops
+ * it back to one packet and starts over with slow start.
+ */
+public class aimd_controller implements congestion_controller {
+
+    // Packets in flight when a transfer starts
+    static final int INITIAL_WINDOW = 4;
+
+    final int maxWindow;
+
+    // Window in packets; fractional so congestion avoidance can add 1/cwnd per ACK
+    double cwnd = INITIAL_WINDOW;
+    double ssthresh;
+
+    // Losses of packets below this belong to the congestion event already handled
+    private int recover = -1;
+
+    public aimd_controller(int maxWindow) {
+        this.maxWindow = Math.max(1, maxWindow);
+        this.ssthresh = this.maxWindow;
+    }
+
+    @Override
+    public int window() {
+        return (int) Math.max(1, Math.min(maxWindow, cwnd));
+    }
+
+    @Override
+    public void onAck(int acked, long rttNanos) {
+        if (cwnd < ssthresh)
+            cwnd += acked;          // Slow start: one more packet per packet acknowledged
+        else
+            cwnd += acked / cwnd;   // Congestion avoidance: one more packet per round trip
+        cwnd = Math.min(cwnd, maxWindow);
+    }
+
+    @Override
+    public void onLoss(int seq, int highest) {
+        if (seq < recover)
+            return;
+        ssthresh = Math.max(2, cwnd / 2);
+        cwnd = ssthresh;
+        recover = highest;
+    }
+
+    @Override
+    public void onTimeout() {
+        ssthresh = Math.max(2, cwnd / 2);
+        cwnd = 1;
+    }
+
+}
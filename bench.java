@@ -0,0 +1,203 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * The bench class runs microbenchmarks of the hot paths: command parsing, the
+ * chunk copy loops, UDP packet encoding and decoding, and cache lookups. Each
+ * benchmark is warmed up so the JIT has compiled it, then timed over several
+ * rounds; the report gives the time per operation, operations per second and,
+ * for copies, bytes per second.
+ *
+ * The project has no build file, so this is a self-contained harness rather
+ * than JMH: results are consumed into a volatile field so the JIT can't drop the
+ * work, and every round runs long enough for timer resolution not to matter.
+ * Compare results from the same machine and JVM only.
+ *
+ * Usage:
+ *  java bench [<name-prefix>]    e.g. "java bench packet" runs only the packet benchmarks
+ *
+ * Settings (system properties):
+ *  - bench.warmup: Milliseconds each benchmark runs before it is timed (default 1000).
+ *  - bench.time:   Milliseconds each benchmark is timed for (default 3000).
+ *  - bench.rounds: Rounds the timed part is split into (default 3).
+ */
+public class bench {
+
+    static final long WARMUP = Long.getLong("bench.warmup", 1000);
+    static final long TIME = Long.getLong("bench.time", 3000);
+    static final int ROUNDS = Math.max(1, Integer.getInteger("bench.rounds", 3));
+
+    // Operations run between clock reads
+    private static final int BATCH = 64;
+
+    // Receives every result so the work can't be optimized away
+    static volatile long sink;
+
+    /**
+     * One benchmarked operation; returns something derived from its work.
+     */
+    interface operation {
+        long run() throws Exception;
+    }
+
+    private static class benchmark {
+        final String name;
+        final long bytesPerOp;
+        final operation op;
+
+        benchmark(String name, long bytesPerOp, operation op) {
+            this.name = name;
+            this.bytesPerOp = bytesPerOp;
+            this.op = op;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+        Path scratch = Files.createTempDirectory("bench");
+        try {
+            System.out.printf("%-24s %12s %14s %10s%n", "benchmark", "ns/op", "ops/s", "MB/s");
+            for (benchmark b : benchmarks(scratch)) {
+                if (b.name.startsWith(filter))
+                    run(b);
+            }
+        } finally {
+            deleteTree(scratch.toFile());
+        }
+    }
+
+    // The benchmarks, with whatever state they need set up in the scratch directory
+    private static List<benchmark> benchmarks(Path scratch) throws IOException {
+        List<benchmark> list = new ArrayList<>();
+
+        // Command parsing, done for every request
+        String get = "get file.bin 1048576 65536";
+        String put = "put file.bin 8388608 33554432 crc32c:1a2b3c4d";
+        list.add(new benchmark("parse.get", 0, () -> byte_range.parse(get.split(" ")).offset));
+        list.add(new benchmark("parse.put", 0, () -> {
+            String[] parts = put.split(" ");
+            return part_uploads.offsetOf(parts) + checksum.fromCommand(parts).length();
+        }));
+
+        // The chunk copy loops of channel_io, file to stream and stream to file
+        int copySize = 1 << 20;
+        File source = scratch.resolve("copy.bin").toFile();
+        byte[] data = new byte[copySize];
+        new Random(1).nextBytes(data);
+        Files.write(source.toPath(), data);
+        FileChannel sourceChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+        OutputStream discard = OutputStream.nullOutputStream();
+        list.add(new benchmark("copy.send", copySize, () -> {
+            channel_io.sendRange(sourceChannel, 0, copySize, discard, null);
+            return copySize;
+        }));
+        FileChannel targetChannel = FileChannel.open(scratch.resolve("target.bin"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        list.add(new benchmark("copy.receive", copySize,
+                () -> channel_io.receive(new ByteArrayInputStream(data), null, targetChannel, 0, copySize)));
+
+        // UDP packets filling the configured MTU
+        byte[] payload = Arrays.copyOf(data, path_mtu.DEFAULT_PAYLOAD);
+        InetSocketAddress peer = new InetSocketAddress("127.0.0.1", 9);
+        list.add(new benchmark("packet.encode", payload.length, () -> {
+            ByteBuffer frame = udp_packet.frame(payload.length);
+            frame.put(payload);
+            udp_packet.seal(frame, udp_packet.DATA, 42, 7L);
+            long size = frame.limit();
+            buffer_pool.release(frame);
+            return size;
+        }));
+        ByteBuffer encoded = udp_packet.frame(payload.length);
+        encoded.put(payload);
+        udp_packet.seal(encoded, udp_packet.DATA, 42, 7L);
+        list.add(new benchmark("packet.decode", payload.length, () -> {
+            ByteBuffer datagram = encoded.duplicate();
+            udp_packet packet = udp_packet.peek(datagram, peer).copyPayload(datagram);
+            long seq = packet.seq + packet.length;
+            packet.release();
+            return seq;
+        }));
+
+        // Cache lookups of Zipf-distributed keys, for each eviction policy and the hash ring
+        int keys = 10000;
+        String[] names = new String[keys];
+        for (int i = 0; i < keys; i++)
+            names[i] = "file-" + i + ".bin";
+        int[] order = zipfOrder(keys, 0.99, 1 << 16);
+        for (String policy : new String[] { "lru", "lfu", "tinylfu" }) {
+            cache_index index = new cache_index(scratch.resolve("index-" + policy).toFile(), Long.MAX_VALUE, keys,
+                    eviction_policy.create(policy, keys));
+            for (String name : names)
+                index.admit(name, 1);
+            int[] next = { 0 };
+            list.add(new benchmark("lookup." + policy, 0,
+                    () -> index.lookup(names[order[next[0]++ & (order.length - 1)]]) ? 1 : 0));
+        }
+        hash_ring<String> ring = new hash_ring<>(cache_tier.VIRTUAL_NODES);
+        for (int port = 9200; port < 9208; port++)
+            ring.add("127.0.0.1:" + port);
+        int[] next = { 0 };
+        list.add(new benchmark("lookup.ring", 0,
+                () -> ring.nodeFor(names[order[next[0]++ & (order.length - 1)]]).length()));
+
+        return list;
+    }
+
+    // Warms a benchmark up, times it and prints its line of the report
+    private static void run(benchmark b) throws Exception {
+        long end = System.nanoTime() + WARMUP * 1_000_000;
+        while (System.nanoTime() < end)
+            batch(b.op);
+
+        double best = Double.MAX_VALUE;
+        double total = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long ops = 0;
+            long start = System.nanoTime();
+            long stop = start + TIME * 1_000_000 / ROUNDS;
+            long now;
+            do {
+                batch(b.op);
+                ops += BATCH;
+            } while ((now = System.nanoTime()) < stop);
+            double nanosPerOp = (double) (now - start) / ops;
+            best = Math.min(best, nanosPerOp);
+            total += nanosPerOp;
+        }
+
+        double mean = total / ROUNDS;
+        double opsPerSecond = 1e9 / mean;
+        String throughput = b.bytesPerOp > 0 ? String.format("%10.1f", opsPerSecond * b.bytesPerOp / (1 << 20)) : "";
+        System.out.printf("%-24s %12.1f %14.0f %10s   (best round %.1f ns/op)%n", b.name, mean, opsPerSecond, throughput, best);
+    }
+
+    private static void batch(operation op) throws Exception {
+        long result = 0;
+        for (int i = 0; i < BATCH; i++)
+            result += op.run();
+        sink = result;
+    }
+
+    // A sequence of key indexes drawn from a Zipf distribution
+    private static int[] zipfOrder(int keys, double skew, int length) {
+        loadgen.zipf zipf = new loadgen.zipf(keys, skew);
+        Random random = new Random(1);
+        int[] order = new int[length];
+        for (int i = 0; i < length; i++)
+            order[i] = zipf.next(random);
+        return order;
+    }
+
+    static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                deleteTree(child);
+        file.delete();
+    }
+
+}
@@ -0,0 +1,253 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * The blob_store class stores the files of a directory (server_fl or cache_fl) by
+ * content, so identical content under different names is kept on disk once:
+ *
+ *   <dir>/.blobs/<checksum>  one file per distinct content
+ *   <dir>/<name>             a hard link to the blob holding that name's content
+ *   <dir>/.names             the name -> checksum index
+ *   <dir>/.blobs/<checksum>.deflate  the content's compressed form, if one was made
+ *                                    (see deflate_codec); deleted with the blob
+ *
+ * Blobs are addressed by their SHA-256 content checksum (checksum.contentOf), never
+ * by the transfer checksum, which may be a 32-bit CRC: two contents that share an
+ * address would share a blob.
+ *
+ * Names stay ordinary files, so everything that reads <dir>/<name> works as before;
+ * publishing a file whose checksum is already stored only adds a link. A blob is
+ * deleted once no name links to it any more. Blobs are never written in place:
+ * new content is staged elsewhere and published, which replaces the name's link.
+ *
+ * Where hard links are not supported the file is copied instead, which keeps the
+ * index but not the savings.
+ *
+ * The store's own files share the directory with the names, so clients may only use
+ * names that validName() accepts: none starting with "." and none reaching into
+ * another directory.
+ */
+public class blob_store {
+
+    // Reply to a command naming a file that validName() refuses, followed by the name
+    static final String INVALID_NAME = "Invalid file name: ";
+
+    private final File dir;
+    private final File blobs;
+    private final File namesFile;
+
+    // Checksum of each published name
+    private final Map<String, String> names = new HashMap<>();
+
+    /**
+     * Opens the store of a directory, reading its index. Index entries whose name
+     * no longer links to its blob (the file was replaced or deleted) are dropped,
+     * and so are entries from older versions that addressed blobs by CRC32C: their
+     * blobs are deleted, the names keep the content.
+     *
+     * @param dir The directory whose files are stored.
+     */
+    public blob_store(File dir) {
+        this.dir = dir;
+        this.blobs = new File(dir, ".blobs");
+        this.namesFile = new File(dir, ".names");
+        blobs.mkdirs();
+
+        Properties saved = new Properties();
+        try (InputStream in = new FileInputStream(namesFile)) {
+            saved.load(in);
+        } catch (FileNotFoundException e) {
+            // First start, nothing stored yet
+        } catch (IOException e) {
+            System.err.println("Error reading " + namesFile.getPath() + ": " + e.getMessage());
+        }
+        boolean dropped = false;
+        for (String name : saved.stringPropertyNames()) {
+            String checksum = saved.getProperty(name);
+            if (!addressable(checksum)) {
+                blobOf(checksum).delete();
+                compressedOf(checksum).delete();
+                dropped = true;
+            } else if (linked(name, checksum)) {
+                names.put(name, checksum);
+            }
+        }
+        if (dropped)
+            save();
+    }
+
+    /**
+     * Checks a file name a client sent before it is used in a path. Names starting
+     * with "." are the store's own (.names, .blobs, .upload, the cache's .history),
+     * and names with a path separator would reach outside the directory.
+     *
+     * @param fileName The name from a client command.
+     * @return True if the name may be read or published.
+     */
+    public static boolean validName(String fileName) {
+        return fileName != null && !fileName.isEmpty() && !fileName.startsWith(".")
+                && fileName.indexOf('/') < 0 && fileName.indexOf('\\') < 0 && fileName.indexOf('\0') < 0;
+    }
+
+    /**
+     * @param fileName A file name in the directory.
+     * @return The checksum the file was published with, or null if it wasn't
+     *         published here or has been replaced since.
+     */
+    public synchronized String checksumOf(String fileName) {
+        String checksum = names.get(fileName);
+        return checksum != null && linked(fileName, checksum) ? checksum : null;
+    }
+
+    /**
+     * @param checksum A file checksum.
+     * @return The blob with that content, or null if none is stored or the checksum
+     *         isn't a content checksum.
+     */
+    public synchronized File find(String checksum) {
+        if (!addressable(checksum))
+            return null;
+        File blob = blobOf(checksum);
+        return blob.exists() ? blob : null;
+    }
+
+    /**
+     * @param checksum A file checksum.
+     * @return Where the compressed form of that content is kept, whether or not it exists.
+     */
+    public File compressedOf(String checksum) {
+        return new File(blobs, checksum.replace(':', '-') + ".deflate");
+    }
+
+    /**
+     * Links a new name to an existing blob, e.g. to stage a file whose content is
+     * already stored instead of downloading it again.
+     *
+     * @param blob   A blob returned by find().
+     * @param target Where to create the link.
+     * @throws IOException If the link (or copy) can't be made.
+     */
+    public void link(File blob, File target) throws IOException {
+        target.getParentFile().mkdirs();
+        Files.deleteIfExists(target.toPath());
+        try {
+            Files.createLink(target.toPath(), blob.toPath());
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            Files.copy(blob.toPath(), target.toPath());
+        }
+    }
+
+    /**
+     * Publishes a staged file under a name: its content becomes a blob unless one
+     * with the same checksum exists, and the name is (re)linked to the blob in one
+     * atomic rename. The staged file is consumed.
+     *
+     * @param staged   The complete file, outside the directory's names.
+     * @param fileName The name to publish it as.
+     * @param checksum The file's content checksum, from checksum.contentOf().
+     * @throws IOException If the file can't be published.
+     */
+    public synchronized void publish(File staged, String fileName, String checksum) throws IOException {
+        if (!addressable(checksum))
+            throw new IOException("Not a content checksum: " + checksum);
+        File blob = blobOf(checksum);
+        if (blob.exists()) {
+            // Same content as a stored blob, the staged copy isn't needed
+            Files.delete(staged.toPath());
+        } else {
+            Files.move(staged.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        // Link under a temporary name first, so the name never points at nothing
+        File temporary = new File(blobs, "." + fileName + "." + System.nanoTime());
+        link(blob, temporary);
+        Files.move(temporary.toPath(), new File(dir, fileName).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        String previous = names.put(fileName, checksum);
+        if (previous != null && !previous.equals(checksum))
+            collect(previous);
+        save();
+    }
+
+    /**
+     * Forgets a name whose file was (or is about to be) deleted, and deletes its
+     * blob if no other name links to it.
+     *
+     * @param fileName The name.
+     */
+    public synchronized void forget(String fileName) {
+        String checksum = names.remove(fileName);
+        if (checksum == null)
+            return;
+        File file = new File(dir, fileName);
+        if (linked(fileName, checksum))
+            file.delete();
+        collect(checksum);
+        save();
+    }
+
+    /**
+     * Deletes the blob of a checksum if nothing links to it any more, e.g. after a
+     * link made with link() outside the directory's names was removed.
+     *
+     * @param checksum A file checksum.
+     */
+    public synchronized void release(String checksum) {
+        collect(checksum);
+    }
+
+    // Deletes a blob that no name links to any more
+    private void collect(String checksum) {
+        if (names.containsValue(checksum))
+            return;
+        File blob = blobOf(checksum);
+        try {
+            Object links = Files.getAttribute(blob.toPath(), "unix:nlink");
+            if (links instanceof Integer && (Integer) links > 1)
+                return; // Still linked by a name outside the index, e.g. a download being served
+        } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+            // Link counts unknown; the index is all we have to go by
+        }
+        blob.delete();
+        compressedOf(checksum).delete();
+    }
+
+    // True if the name is a link to the blob of the checksum
+    private boolean linked(String fileName, String checksum) {
+        try {
+            return Files.isSameFile(new File(dir, fileName).toPath(), blobOf(checksum).toPath());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Only SHA-256 checksums address blobs
+    private static boolean addressable(String sum) {
+        return sum.startsWith(checksum.SHA256 + ":");
+    }
+
+    private File blobOf(String checksum) {
+        return new File(blobs, checksum.replace(':', '-'));
+    }
+
+    // Writes the index to a temporary file and moves it over the old one
+    private void save() {
+        Properties saved = new Properties();
+        saved.putAll(names);
+        File temporary = new File(dir, ".names.tmp");
+        try (OutputStream out = new FileOutputStream(temporary)) {
+            saved.store(out, "name -> content checksum");
+        } catch (IOException e) {
+            System.err.println("Error saving " + namesFile.getPath() + ": " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(temporary.toPath(), namesFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Error saving " + namesFile.getPath() + ": " + e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The buffer_pool class hands out direct ByteBuffers for the UDP packet path and
+ * takes them back when a packet has been sent or consumed, so steady-state
+ * transfers don't allocate a buffer (or a DatagramPacket) per datagram. Direct
+ * buffers also let the channel send and receive without copying through a
+ * temporary native buffer, which heap arrays need.
+ *
+ * Buffers come in power-of-two size classes from 2 KiB up to the largest UDP
+ * datagram, so small ACKs and full-MTU chunks don't pin 64 KiB each. Every class
+ * keeps at most <udp.poolBytes> worth of free buffers; buffers released beyond
+ * that, or never released at all, are simply left to the garbage collector.
+ *
+ * Settings (system properties):
+ *  - udp.poolBytes: Free bytes kept per size class (default 16 MiB).
+ */
+public class buffer_pool {
+
+    static final int POOL_BYTES = Integer.getInteger("udp.poolBytes", 16 * 1024 * 1024);
+
+    // Smallest size class, 2^11 bytes
+    private static final int MIN_SHIFT = 11;
+
+    // Size classes up to 2^16, which holds any datagram
+    private static final int CLASSES = 16 - MIN_SHIFT + 1;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final ConcurrentLinkedQueue<ByteBuffer>[] free = new ConcurrentLinkedQueue[CLASSES];
+    private static final AtomicInteger[] freeCount = new AtomicInteger[CLASSES];
+
+    static {
+        for (int i = 0; i < CLASSES; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+            freeCount[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @param size The number of bytes needed, at most 64 KiB.
+     * @return A cleared direct buffer of at least size bytes, limited to size.
+     */
+    static ByteBuffer acquire(int size) {
+        int cls = sizeClass(size);
+        ByteBuffer buffer = free[cls].poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(1 << (cls + MIN_SHIFT));
+        } else {
+            freeCount[cls].decrementAndGet();
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer from acquire to the pool. The caller must not use it afterwards.
+     *
+     * @param buffer The buffer, or null.
+     */
+    static void release(ByteBuffer buffer) {
+        if (buffer == null)
+            return;
+        int cls = Integer.numberOfTrailingZeros(buffer.capacity()) - MIN_SHIFT;
+        if (cls < 0 || cls >= CLASSES || buffer.capacity() != 1 << (cls + MIN_SHIFT))
+            return; // Not one of ours
+        if (freeCount[cls].incrementAndGet() * (long) buffer.capacity() > POOL_BYTES) {
+            freeCount[cls].decrementAndGet();
+            return;
+        }
+        free[cls].offer(buffer);
+    }
+
+    // Index of the smallest class that holds size bytes
+    private static int sizeClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1);
+        return Math.max(0, shift - MIN_SHIFT);
+    }
+
+}
@@ -0,0 +1,80 @@
+/**
+ * The byte_range class is the optional byte range of a TCP get command:
+ *
+ *   get <file>                    the whole file
+ *   get <file> <offset>           from offset to the end of the file
+ *   get <file> <offset> <length>  at most length bytes from offset
+ *
+ * The response carries only the bytes of the range, and its size is the number of
+ * bytes actually sent, which is less than length when the file ends first. A client
+ * resumes a broken download by asking for the range after the bytes it already has.
+ * Ranges are not available over SNW/SR, whose get commands use these positions for
+ * the UDP port and session.
+ */
+public class byte_range {
+
+    /** The whole file. */
+    static final byte_range ALL = new byte_range(0, -1);
+
+    static final String NOT_SATISFIABLE = "Requested range starts beyond the end of the file.";
+
+    final long offset;
+
+    // Most bytes requested, or -1 for everything up to the end of the file
+    final long length;
+
+    byte_range(long offset, long length) {
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Reads the range following the file name of a split get command.
+     *
+     * @param parts The command split on spaces; the range starts at parts[2].
+     * @return The range, ALL if the command has none, or null if it is malformed.
+     */
+    static byte_range parse(String[] parts) {
+        if (parts.length < 3)
+            return ALL;
+        try {
+            long offset = Long.parseLong(parts[2]);
+            long length = parts.length > 3 ? Long.parseLong(parts[3]) : -1;
+            if (offset < 0 || (parts.length > 3 && length < 0))
+                return null;
+            return offset == 0 && length < 0 ? ALL : new byte_range(offset, length);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return True if the range is the whole file.
+     */
+    boolean isAll() {
+        return offset == 0 && length < 0;
+    }
+
+    /**
+     * @param size The size of the file the range is applied to.
+     * @return The number of bytes of the file the range covers, or -1 if it starts
+     *         beyond the end of the file.
+     */
+    long count(long size) {
+        if (offset > size)
+            return -1;
+        long rest = size - offset;
+        return length < 0 ? rest : Math.min(length, rest);
+    }
+
+    /**
+     * @param fileName The file to request.
+     * @return The get command for this range of the file.
+     */
+    String command(String fileName) {
+        if (isAll())
+            return "get " + fileName;
+        return "get " + fileName + " " + offset + (length < 0 ? "" : " " + length);
+    }
+
+}
@@ -1,23 +1,161 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * The Cache class functions as an intermediary between clients and the main server.
  * It stores frequently requested files and serves them to clients, reducing load on the main server.
  * 
- * This class supports both TCP and Stop-and-Wait (SNW) protocols for file transfer.
+ * This class supports TCP, Stop-and-Wait (SNW) and sliding-window (SR) protocols for file transfer.
  * 
  * Arguments:
  *  - <cache-port>: Port number for the cache server.
  *  - <server-ip>: IP address of the main server.
  *  - <server-port>: Port number of the main server.
- *  - <protocol>: Transport protocol ("tcp" or "snw") to be used for file transfer.
+ *  - <protocol>: Transport protocol ("tcp", "snw" or "sr") to be used for file transfer.
+ * 
+ * Start with -Dcache.engine=nio to serve TCP clients from the non-blocking
+ * nio_engine instead of one worker thread per connection.
+ *
+ * Over TCP clients may ask for a byte range, "get <file> <offset> [<length>]" (see
+ * byte_range). A download from the main server that breaks off over TCP keeps the
+ * bytes it got in cache_fl/.partial; the next fetch of the file only asks the server
+ * for the rest, and ranges that lie within those bytes are served without it.
+ *
+ * Sessions also answer "stat <file>", from the cache or by asking the main server.
+ * Cached files are stored by content through a blob_store: every download is checked
+ * against the checksum the main server reports, and a miss for a file whose content
+ * is already cached under another name is served without downloading it again.
+ * Large files that no client is waiting to have streamed through are downloaded
+ * from the main server in parallel chunks (see parallel_transfer).
+ *
+ * Cached files are kept coherent with the main server. A cached copy is served
+ * without asking the server for cache.ttl milliseconds after it was downloaded or
+ * last checked; after that the next request revalidates it with "getif <file>
+ * <checksum>", which costs one round trip when the file is unchanged and brings the
+ * new content when it changed. The cache also subscribes to the server, which sends
+ * "invalidate <file>" when an upload replaces a file, so a change is picked up by the
+ * next request instead of after the TTL.
+ *
+ * Settings (system properties):
+ *  - cache.ttl:               Milliseconds a cached copy is served without revalidating it
+ *                             (default 30000, 0 revalidates every request, negative never).
+ *  - cache.subscribeInterval: Milliseconds between subscriptions to the server's invalidations
+ *                             (default 60000), so a restarted server learns about the cache again.
+ *  - cache.writeMode:         How puts sent to the cache reach the main server (default "through").
+ *  - cache.dir:               Directory of the cached files (default cache_fl), so several
+ *                             cache nodes can run from one directory (see cache_tier).
+ *
+ * Sessions accept put as the server does, so a file that is uploaded and then read
+ * is already cached. In write-through mode the cache uploads the file to the main
+ * server before acknowledging it, and keeps a copy only once the server has it. In
+ * write-back mode ("back") the cache acknowledges the put once the file is safely on
+ * its own disk and writes it to the server in batches later (see write_back).
+ *
+ * Hits, misses, bytes served, trips to the main server and request latencies are
+ * counted in metrics; sessions answer "stats" with the report, and the same values
+ * are published over JMX.
+ *
+ * Clients that chose deflate (see deflate_codec) get cached files in their compressed
+ * form, made once per content in the background and kept in cache_fl next to the
+ * blob, so serving them costs no compression. With -Dtransport.compression=deflate
+ * the cache asks the main server for compressed downloads too.
+ *
+ * Hot files too large for the memory tier are kept mapped (see mapped_tier) and
+ * served from the page cache through one shared mapping, without opening and
+ * reading the file for every request.
+ *
+ * The cache remembers what clients ask for (see access_history) across restarts.
+ * At start-up it loads the most requested files from the main server, at a limited
+ * rate, so a restarted cache doesn't answer its first requests cold; with
+ * -Dcache.prefetch it also loads the file that usually follows each one requested.
  */
 public class cache {
 
-	// Protocol handlers for TCP and Stop-and-Wait
-    static tcp_transport tcpTransport = new tcp_transport();
-    static snw_transport snwTransport = new snw_transport();
+	// Protocol handler for the UDP transports (Stop-and-Wait or sliding window), and the
+	// UDP socket their transfers share
+    static udp_transport udpTransport;
+    static udp_endpoint udpEndpoint;
+
+    // Tracks which files are cached and evicts them to stay within budget
+    static cache_index index;
+
+    // Small hot files kept in memory in front of the disk tier
+    static memory_tier memoryTier;
+    // Larger hot files kept mapped between the memory and disk tiers
+    static mapped_tier mappedTier;
+
+    // What clients asked for, to warm the cache up at start-up and prefetch (see access_history)
+    static access_history history;
+
+    // Content-addressed storage of cache_fl, so identical content is cached once
+    static blob_store blobs;
+
+    // Where cached files are kept; several caches on one host each need their own
+    static final String CACHE_DIR = System.getProperty("cache.dir", "cache_fl");
+
+    // Downloads from the main server land here until they are published into the cache
+    static final String STAGING_DIR = CACHE_DIR + "/.inflight";
+
+    // The first bytes of files whose download from the main server broke off
+    static final String PARTIAL_DIR = CACHE_DIR + "/.partial";
+
+    // Coalesces concurrent misses for the same file into one download
+    static single_flight<File> originFetches = new single_flight<>(cache::publishFetch);
+
+    // Milliseconds a cached copy is served before it is revalidated with the main server
+    static final long TTL = Long.getLong("cache.ttl", 30000);
+
+    // Milliseconds between subscriptions to the main server's invalidations
+    static final long SUBSCRIBE_INTERVAL = Math.max(1000, Long.getLong("cache.subscribeInterval", 60000));
+
+    // True if puts are acknowledged before the main server has the file (cache.writeMode=back)
+    static final boolean WRITE_BACK = "back".equalsIgnoreCase(System.getProperty("cache.writeMode", "through"));
+
+    // Uploads in progress, received into cache_fl/.upload
+    static final part_uploads uploads = new part_uploads(new File(CACHE_DIR));
+
+    // Uploads acknowledged but not yet written to the main server, in write-back mode
+    static write_back writeBack;
+
+    // When each cached file was last known to match the main server; files without an
+    // entry (invalidated, or cached by a previous run) are revalidated before use
+    static final ConcurrentHashMap<String, Long> validated = new ConcurrentHashMap<>();
+
+    // Milliseconds a persistent session may sit idle between requests
+    static final int SESSION_TIMEOUT = Integer.getInteger("cache.sessionTimeout", 60000);
+
+    // Gets served from the cache (memory tier or partial downloads included) and gets
+    // that went to the main server, for the hit ratio
+    static final LongAdder HITS = metrics.counter("cache.hits");
+    static final LongAdder MEMORY_HITS = metrics.counter("cache.hits.memory");
+    static final LongAdder MAPPED_HITS = metrics.counter("cache.hits.mapped");
+    static final LongAdder PARTIAL_HITS = metrics.counter("cache.hits.partial");
+    static final LongAdder MISSES = metrics.counter("cache.misses");
+    static final LongAdder NOT_FOUND = metrics.counter("cache.notFound");
+    static final LongAdder BYTES_SERVED = metrics.counter("cache.bytes.served");
+
+    // Trips to the main server: downloads, conditional gets and what they brought
+    static final LongAdder ORIGIN_DOWNLOADS = metrics.counter("cache.origin.downloads");
+    static final LongAdder ORIGIN_BYTES = metrics.counter("cache.origin.bytes");
+    static final LongAdder ORIGIN_ERRORS = metrics.counter("cache.origin.errors");
+    static final LongAdder DEDUPLICATED = metrics.counter("cache.origin.deduplicated");
+    static final LongAdder REVALIDATIONS = metrics.counter("cache.revalidations");
+    static final LongAdder UNCHANGED = metrics.counter("cache.revalidations.unchanged");
+    static final latency_histogram ORIGIN_LATENCY = metrics.histogram("cache.origin.fetch");
+
+    static final LongAdder INVALIDATIONS = metrics.counter("cache.invalidations");
+    static final LongAdder PUTS = metrics.counter("cache.puts");
+
+    // Origin server settings, shared by all connection handlers
+    static String serverIP;
+    static int serverPort;
+    static String protocol;
 
     public static void main(String[] args) {
     	
@@ -27,131 +165,979 @@ public class cache {
 		}
     	
         int cachePort = Integer.parseInt(args[0]);
-        String serverIP = args[1];
-        int serverPort = Integer.parseInt(args[2]);
-        String protocol = args[3].toLowerCase();
+        serverIP = args[1];
+        serverPort = Integer.parseInt(args[2]);
+        protocol = args[3].toLowerCase();
         
-        if (!protocol.equals("tcp") &&  !protocol.equals("snw")) {
+        if (!protocol.equals("tcp") &&  !protocol.equals("snw") && !protocol.equals("sr")) {
         	System.out.println("Error: Invalid protocol");
         	return;
         }
         
-        File directory = new File("cache_fl");
+        File directory = new File(CACHE_DIR);
         if (!directory.exists()) 
         	directory.mkdirs();
 
-        try (ServerSocket cacheSocket = new ServerSocket(cachePort)) {
+        // Discard downloads left unfinished by a previous run
+        File staging = new File(STAGING_DIR);
+        File[] leftovers = staging.listFiles();
+        if (leftovers != null)
+            for (File leftover : leftovers)
+                leftover.delete();
+        staging.mkdirs();
+        new File(PARTIAL_DIR).mkdirs();
+
+        index = cache_index.fromSettings(directory);
+        memoryTier = memory_tier.fromSettings();
+        mappedTier = mapped_tier.fromSettings(memoryTier.maxObjectSize());
+        blobs = new blob_store(directory);
+        index.setRemovalListener(fileName -> {
+            memoryTier.remove(fileName);
+            mappedTier.remove(fileName);
+            blobs.forget(fileName);
+            validated.remove(fileName);
+        });
+        index.load();
+        registerMetrics();
+        subscribeToServer(cachePort);
+        if (WRITE_BACK) {
+            writeBack = new write_back(directory, blobs, serverIP, serverPort);
+            writeBack.start();
+        }
+
+        try {
             System.out.println("cache started on port " + cachePort);
 
-            // Continuously listen for client requests
-            while (true) {
-                try (Socket clientSocket = cacheSocket.accept();
-                     DataInputStream dis = new DataInputStream(clientSocket.getInputStream());
-                     DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream())) {
-
-                    String command = dis.readUTF();
-
-                    if (command.startsWith("get")) {
-                        String fileName = command.split(" ")[1];
-                        File file = new File("cache_fl/" + fileName);
-
-                        // If file exists in cache, serve it directly to the client
-                        if (file.exists()) {
-                            if (protocol.equals("tcp")) {
-                                dos.writeUTF("File found, starting transfer.");
-                                
-                                // Send the file size first
-                                dos.writeLong(file.length());
-                                
-                                // Transfer file data to client
-                                try (FileInputStream fis = new FileInputStream(file)) {
-                                    byte[] buffer = new byte[4096];
-                                    int bytesRead;
-
-                                    while ((bytesRead = fis.read(buffer)) > 0) {
-                                        dos.write(buffer, 0, bytesRead);
-                                    }
-                                    dos.flush();
-                                }
-                                
-                                dos.writeUTF("File delivered from cache.");
-                                dos.flush();
-                                
-                            } else if (protocol.equals("snw")) {
-                            	String feedback = "File delivered from cache.";
-                            	
-                            	// Use Stop-and-Wait protocol to send the file
-                            	InetAddress localAddress = clientSocket.getLocalAddress();
-                                String clientIP = localAddress.getHostAddress(); 
-                                int clientPort = clientSocket.getLocalPort();
-                                snwTransport.uploadFile(clientIP, clientPort, file, feedback);
-                                
-                                dos.writeUTF(feedback);
-                                dos.flush();
-                            }
-                            
-                        } else {
-                        	// File not found in cache, request it from main server
-                        	tcpTransport.sendCommand(serverIP, serverPort, command);
-                        	
-                        	if (protocol.equals("tcp")) {
-                        		// Download file using TCP protocol
-                        		tcpTransport.downloadFile(serverIP, serverPort, fileName, "cache_fl");
-                        	
-                        		// After downloading, serve the file to the client
-                        		if (file.exists()) {
-                        			dos.writeUTF("File found, starting transfer.");
-                                    
-                                    dos.writeLong(file.length()); // Send file size
-                                    
-                                    try (FileInputStream fis = new FileInputStream(file)) {
-                                        byte[] buffer = new byte[4096];
-                                        int bytesRead;
-
-                                        while ((bytesRead = fis.read(buffer)) > 0) {
-                                            dos.write(buffer, 0, bytesRead);
-                                        }
-                                        dos.flush();
-                                    }
-                                    
-                                    dos.writeUTF("File delivered from server.");
-                                    dos.flush();
-                                    System.out.println("File " + fileName + " sent from server.");
-                                } else {
-                                	dos.writeUTF("File not found in cache or on server. Please check the file name and try again.");
-                                    dos.flush();
-                                }
-                        		
-                            } else if (protocol.equals("snw")) {
-                            	// Download file using SNW protocol and then serve to client
-                            	snwTransport.downloadFile(serverPort, fileName, "cache_fl");
-                            	
-                            	if (file.exists()) {
-                            		String feedback = "File delivered from server.";
-                            		
-                            		InetAddress localAddress = clientSocket.getLocalAddress();
-                                    String clientIP = localAddress.getHostAddress(); 
-                                    int clientPort = clientSocket.getLocalPort();
-                                    snwTransport.uploadFile(clientIP, clientPort, file, feedback);
-                                    
-                                    dos.writeUTF(feedback);
-                                    dos.flush();
-                            	}
-                            	else {
-                                	dos.writeUTF("File not found in cache or on server. Please check the file name and try again.");
-                                    dos.flush();
-                                }
-                        		
-                            }
-                        }
+            if (!protocol.equals("tcp")) {
+                // One UDP socket, on the same port number as TCP, carries every SNW/SR transfer
+                udpEndpoint = udp_endpoint.open(cachePort);
+                udpTransport = udp_transport.forProtocol(protocol, udpEndpoint);
+            }
+
+            // Once the cache can download, load what clients asked for most before the restart
+            history = new access_history(directory, fileName -> index.contains(fileName) && fresh(fileName), cache::load);
+            history.start();
+
+            if (System.getProperty("cache.engine", "blocking").equals("nio") && protocol.equals("tcp")) {
+                // Non-blocking engine: a few event loops handle all connections
+                nio_engine engine = new nio_engine("cache", cachePort, new nio_service());
+                engine.shutdownOnExit();
+                engine.serve();
+            } else {
+                // Service each client on its own worker so a cache miss doesn't block other clients
+                connection_engine engine = new connection_engine("cache", cachePort, cache::handleClient);
+                engine.shutdownOnExit();
+                engine.serve();
+            }
+        } catch (IOException e) {
+            System.err.println("Cache server error: " + e.getMessage());
+        }
+    }
+
+    // Publishes the cache's sizes and hit ratio next to its counters
+    static void registerMetrics() {
+        metrics.gauge("cache.hitRatio", () -> {
+            long hits = HITS.sum();
+            long requests = hits + MISSES.sum();
+            return requests == 0 ? 0.0 : (double) hits / requests;
+        });
+        metrics.gauge("cache.index.files", index::size);
+        metrics.gauge("cache.index.bytes", index::bytes);
+        metrics.gauge("cache.memory.bytes", memoryTier::bytes);
+        metrics.gauge("cache.mapped.bytes", mappedTier::bytes);
+        metrics.registerMBean("cache");
+    }
+
+    // Subscribes to the main server's invalidations now and every SUBSCRIBE_INTERVAL
+    static void subscribeToServer(int cachePort) {
+        ScheduledExecutorService subscriber = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "subscriber");
+            thread.setDaemon(true);
+            return thread;
+        });
+        subscriber.scheduleWithFixedDelay(() -> {
+            try {
+                new tcp_transport().subscribe(serverIP, serverPort, cachePort);
+            } catch (IOException e) {
+                System.err.println("Error subscribing to server invalidations: " + e.getMessage());
+            }
+        }, 0, SUBSCRIBE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param fileName A cached file name.
+     * @return True if the cached copy can be served without revalidating it.
+     */
+    static boolean fresh(String fileName) {
+        // An upload not yet written back is newer than anything the server has
+        String unwritten = writeBack != null ? writeBack.checksumOf(fileName) : null;
+        if (unwritten != null)
+            return unwritten.equals(blobs.checksumOf(fileName));
+        if (TTL < 0)
+            return true;
+        Long checked = validated.get(fileName);
+        return checked != null && System.currentTimeMillis() - checked < TTL;
+    }
+
+    // Marks a cached file as changed on the main server, unless the cached copy already has
+    // the new version (e.g. it was uploaded through the cache); the next request revalidates it
+    static void invalidate(String fileName, String version) {
+        if (version != null && version.equals(blobs.checksumOf(fileName)))
+            return;
+        INVALIDATIONS.increment();
+        if (validated.remove(fileName) != null)
+            System.out.println("File " + fileName + " changed on the server, cached copy invalidated.");
+    }
+
+    // Where a file returned by fetchFromOrigin came from, for the client's final message
+    static String deliveredFrom(File fetched) {
+        return fetched.getParentFile().getName().equals(".inflight") ? "File delivered from server." : "File delivered from cache.";
+    }
+
+    /**
+     * Answers get, stat, put and invalidate commands for the NIO engine (-Dcache.engine=nio, TCP only). Hits are
+     * answered on the event loop; misses are fetched from the main server on a separate
+     * pool (-Dcache.originThreads, default 16) and served once the download completes.
+     */
+    static class nio_service implements nio_engine.service {
+
+        private final ExecutorService originPool = Executors.newFixedThreadPool(
+                Integer.getInteger("cache.originThreads", 16));
+
+        @Override
+        public CompletableFuture<nio_engine.reply> get(String command, boolean deflate, InetAddress client) {
+            String[] parts = command.split(" ");
+            if (parts[0].equals("stats"))
+                return CompletableFuture.completedFuture(nio_engine.reply.data("Cache statistics.", metrics.reportBody(), null));
+            if (parts.length < 2)
+                return CompletableFuture.completedFuture(nio_engine.reply.error("Invalid command: " + command));
+            String fileName = parts[1];
+            if (!blob_store.validName(fileName))
+                return CompletableFuture.completedFuture(nio_engine.reply.error(blob_store.INVALID_NAME + fileName));
+
+            if (parts[0].equals("invalidate")) {
+                invalidate(fileName, parts.length > 2 ? parts[2] : null);
+                return CompletableFuture.completedFuture(nio_engine.reply.message("Invalidated."));
+            }
+
+            if (parts[0].equals("stat")) {
+                // Files not in the cache are looked up on the main server, off the event loop
+                return CompletableFuture.supplyAsync(() -> {
+                    try {
+                        tcp_transport.file_info info = statFile(fileName);
+                        if (info == null)
+                            return nio_engine.reply.notFound("File not found in cache or on server. Please check the file name and try again.");
+                        return nio_engine.reply.data("File found.", session_protocol.statBody(info.size, info.checksum), null);
+                    } catch (IOException e) {
+                        return nio_engine.reply.error("Error reaching the server: " + e.getMessage());
+                    }
+                }, originPool);
+            }
+
+            byte_range range = parts[0].equals("get") ? byte_range.parse(parts) : null;
+            if (range == null)
+                return CompletableFuture.completedFuture(nio_engine.reply.error("Invalid command: " + command));
+            if (range.isAll())
+                history.record(client.getHostAddress(), fileName);
+
+            // Stale copies take the miss path, which revalidates them with the server
+            if (index.lookup(fileName) && fresh(fileName)) {
+                HITS.increment();
+                File form = deflate && range.isAll() ? deflate_codec.formOf(blobs, blobs.checksumOf(fileName)) : null;
+                if (form != null) {
+                    BYTES_SERVED.add(form.length());
+                    return CompletableFuture.completedFuture(
+                            nio_engine.reply.deflated("File found, starting transfer.", form, "File delivered from cache."));
+                }
+
+                ByteBuffer data = memoryTier.get(fileName);
+                if (data != null) {
+                    long count = range.count(data.remaining());
+                    if (count < 0)
+                        return CompletableFuture.completedFuture(nio_engine.reply.error(byte_range.NOT_SATISFIABLE));
+                    data.position((int) range.offset).limit((int) (range.offset + count));
+                    MEMORY_HITS.increment();
+                    BYTES_SERVED.add(count);
+                    return CompletableFuture.completedFuture(
+                            nio_engine.reply.data("File found, starting transfer.", data, "File delivered from cache."));
+                }
+
+                // Mapped files are sent from the shared mapping, which stays mapped until the reply is done
+                mapped_tier.lease mapped = mappedTier.acquire(fileName);
+                if (mapped != null) {
+                    data = mapped.data();
+                    long count = range.count(data.remaining());
+                    if (count < 0) {
+                        mapped.release();
+                        return CompletableFuture.completedFuture(nio_engine.reply.error(byte_range.NOT_SATISFIABLE));
                     }
+                    data.position((int) range.offset).limit((int) (range.offset + count));
+                    MAPPED_HITS.increment();
+                    BYTES_SERVED.add(count);
+                    return CompletableFuture.completedFuture(
+                            nio_engine.reply.data("File found, starting transfer.", data, "File delivered from cache.")
+                                    .whenDone(mapped::release));
+                }
+
+                File file = new File(CACHE_DIR, fileName);
+                long count = range.count(file.length());
+                if (count < 0)
+                    return CompletableFuture.completedFuture(nio_engine.reply.error(byte_range.NOT_SATISFIABLE));
+                BYTES_SERVED.add(count);
+                return CompletableFuture.completedFuture(
+                        nio_engine.reply.file("File found, starting transfer.", file, "File delivered from cache.")
+                                .range(range.offset, count)
+                                // Promotions read or map the file, which is kept off the event loop
+                                .whenDone(() -> originPool.execute(() -> {
+                                    memoryTier.recordDiskHit(fileName, file);
+                                    mappedTier.recordDiskHit(fileName, file);
+                                })));
+            }
+
+            File partial = partialCovering(fileName, range);
+            if (partial != null) {
+                HITS.increment();
+                PARTIAL_HITS.increment();
+                BYTES_SERVED.add(range.length);
+                return CompletableFuture.completedFuture(
+                        nio_engine.reply.file("File found, starting transfer.", partial, "File delivered from cache.")
+                                .range(range.offset, range.length));
+            }
+
+            // Misses block on the main server, so they never run on an event loop
+            MISSES.increment();
+            return CompletableFuture.supplyAsync(() -> {
+                File fetched = null;
+                try {
+                    fetched = originFetches.acquire(fileName, () -> fetchFromOrigin(command, fileName, null, null, null));
+                } catch (IOException e) {
+                    ORIGIN_ERRORS.increment();
+                    System.err.println("Error fetching " + fileName + " from server: " + e.getMessage());
+                }
+
+                if (fetched == null) {
+                    originFetches.release(fileName);
+                    NOT_FOUND.increment();
+                    return nio_engine.reply.notFound("File not found in cache or on server. Please check the file name and try again.");
+                }
+                long count = range.count(fetched.length());
+                if (count < 0) {
+                    originFetches.release(fileName);
+                    return nio_engine.reply.error(byte_range.NOT_SATISFIABLE);
+                }
+                String delivered = deliveredFrom(fetched);
+                System.out.println("File " + fileName + (delivered.endsWith("server.") ? " sent from server." : " unchanged on the server, sent from cache."));
+
+                // A revalidated copy may have a compressed form already; a new download has none yet
+                File form = deflate && range.isAll() && !delivered.endsWith("server.")
+                        ? deflate_codec.formOf(blobs, blobs.checksumOf(fileName)) : null;
+                // The last release publishes the download, which is kept off the event loop too
+                if (form != null) {
+                    BYTES_SERVED.add(form.length());
+                    return nio_engine.reply.deflated("File found, starting transfer.", form, delivered)
+                            .whenDone(() -> originPool.execute(() -> originFetches.release(fileName)));
+                }
+                BYTES_SERVED.add(count);
+                return nio_engine.reply.file("File found, starting transfer.", fetched, delivered)
+                        .range(range.offset, count)
+                        .whenDone(() -> originPool.execute(() -> originFetches.release(fileName)));
+            }, originPool);
+        }
+
+        @Override
+        public File putTarget(String command, String fileName) {
+            if (!blob_store.validName(fileName)) {
+                System.err.println(blob_store.INVALID_NAME + fileName);
+                return null;
+            }
+            try {
+                return part_uploads.offsetOf(command.split(" ")) >= 0 ? uploads.target(fileName) : uploads.stagingFile(fileName);
+            } catch (IOException e) {
+                System.err.println("Error receiving file: " + e.getMessage());
+                return null;
+            }
+        }
+
+        @Override
+        public CompletableFuture<nio_engine.reply> putComplete(String command, String fileName, File file, long size) {
+            // Writing through waits for the main server, so it never runs on an event loop
+            return CompletableFuture.supplyAsync(() -> {
+                String[] parts = command.split(" ");
+                try {
+                    File staged = uploads.completed(parts, file, size);
+                    if (staged == null)
+                        return nio_engine.reply.message(part_uploads.PART_RECEIVED);
+                    return nio_engine.reply.message(acceptUpload(fileName, staged, checksum.fromCommand(parts)));
                 } catch (IOException e) {
-                    System.err.println("Error processing client request: " + e.getMessage());
+                    return nio_engine.reply.error(e.getMessage());
+                }
+            }, originPool);
+        }
+    }
+
+    /**
+     * Handles a single client connection: serves the requested file from the cache,
+     * fetching it from the main server first on a miss. Connections that open a
+     * session (see session_protocol) are kept open for further requests.
+     *
+     * @param clientSocket The accepted client connection.
+     * @throws IOException If the connection fails while reading the command or replying.
+     */
+    static void handleClient(Socket clientSocket) throws IOException {
+        try (DataInputStream dis = new DataInputStream(clientSocket.getInputStream());
+             DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream())) {
+
+            String command = dis.readUTF();
+
+            if (command.equals(session_protocol.HANDSHAKE)) {
+                // Persistent connection: keep serving framed requests until the client is done
+                session_protocol.serve(clientSocket, dis, dos, SESSION_TIMEOUT,
+                        (sessionCommand, deflate) -> handleCommand(clientSocket, dis, dos, sessionCommand, true, deflate));
+            } else {
+                handleCommand(clientSocket, dis, dos, command, false, false);
+            }
+        }
+    }
+
+    /**
+     * Serves one request and records its latency in the cache.<command> histogram,
+     * tracing it if it is sampled (see request_trace).
+     *
+     * @param clientSocket The client connection.
+     * @param dis          The connection's input stream.
+     * @param dos          The connection's output stream.
+     * @param command      The client's command.
+     * @param session      True if the request arrived on a session connection.
+     * @param deflate      True if the session chose compressed replies.
+     * @throws IOException If the connection fails while replying.
+     */
+    static void handleCommand(Socket clientSocket, DataInputStream dis, DataOutputStream dos, String command,
+                              boolean session, boolean deflate) throws IOException {
+        long start = System.nanoTime();
+        request_trace trace = request_trace.begin("cache", command);
+        try {
+            serveCommand(clientSocket, dis, dos, command, session, deflate);
+        } finally {
+            metrics.timeRequest("cache", command, start);
+            if (trace != null)
+                trace.end(null);
+        }
+    }
+
+    /**
+     * Serves one get request, either in the original one-request protocol or as a
+     * framed response on a session.
+     *
+     * @param clientSocket The client connection.
+     * @param dis          The connection's input stream.
+     * @param dos          The connection's output stream.
+     * @param command      The client's command.
+     * @param session      True if the request arrived on a session connection.
+     * @param deflate      True if the session chose compressed replies, which whole files are
+     *                     sent as once their compressed form is made (see deflate_codec).
+     * @throws IOException If the connection fails while replying.
+     */
+    static void serveCommand(Socket clientSocket, DataInputStream dis, DataOutputStream dos, String command,
+                             boolean session, boolean deflate) throws IOException {
+        String[] parts = command.split(" ");
+        if (session && parts[0].equals("stats")) {
+            metrics.writeReport(dos, "Cache statistics.");
+            return;
+        }
+        // A put's name is checked by part_uploads.receive, before its body is read
+        if (parts.length >= 2 && !parts[0].equals("put") && !blob_store.validName(parts[1])) {
+            replyError(dos, session, blob_store.INVALID_NAME + parts[1]);
+            return;
+        }
+        if (session && parts[0].equals("stat") && parts.length == 2) {
+            stat(dos, parts[1]);
+            return;
+        }
+        if (session && parts[0].equals("invalidate") && parts.length >= 2) {
+            // Sent by the main server when an upload replaced the file
+            invalidate(parts[1], parts.length > 2 ? parts[2] : null);
+            session_protocol.writeHeader(dos, session_protocol.OK, "Invalidated.", 0);
+            return;
+        }
+        if (session && parts[0].equals("put") && parts.length >= 2) {
+            // A whole file, or one part of an upload sent in parallel; a broken upload
+            // leaves the stream out of sync, so the exception ends the session
+            File staged = uploads.receive(parts, dis, clientSocket);
+            if (staged == null) {
+                session_protocol.writeHeader(dos, session_protocol.OK, part_uploads.PART_RECEIVED, 0);
+                return;
+            }
+            String message;
+            try {
+                message = acceptUpload(parts[1], staged, checksum.fromCommand(parts));
+            } catch (IOException e) {
+                replyError(dos, true, e.getMessage());
+                return;
+            }
+            session_protocol.writeHeader(dos, session_protocol.OK, message, 0);
+            return;
+        }
+        if (!parts[0].equals("get") || parts.length < 2) {
+            if (session)
+                session_protocol.writeHeader(dos, session_protocol.ERROR, "Invalid command: " + command, 0);
+            // A put's body follows, which can't be told from the next request, so the session ends
+            if (session && parts[0].equals("put"))
+                throw new IOException("Invalid command: " + command);
+            return;
+        }
+
+        String fileName = parts[1];
+        File file = new File(CACHE_DIR, fileName);
+
+        // Sessions always carry the file over TCP
+        boolean overTcp = session || protocol.equals("tcp");
+
+        // Over UDP the client names its endpoint and session: "get <file> <udp-port> <session>"
+        if (!overTcp && parts.length < 4) {
+            System.out.println("Invalid command: " + command);
+            return;
+        }
+
+        // Over TCP the command may ask for a byte range instead of the whole file
+        byte_range range = overTcp ? byte_range.parse(parts) : byte_range.ALL;
+        if (range == null) {
+            replyError(dos, session, "Invalid command: " + command);
+            return;
+        }
+
+        // Whole-file gets teach the access history what to warm up and prefetch; ranges
+        // (parallel chunks, resumed downloads) would count one read several times
+        if (range.isAll())
+            history.record(clientSocket.getInetAddress().getHostAddress(), fileName);
+
+        // If file is in the cache index and recently checked, serve it directly to the client.
+        // Stale copies take the miss path, which revalidates them with the server.
+        boolean hit = index.lookup(fileName) && fresh(fileName);
+        request_trace.mark("lookup");
+        if (hit) {
+            HITS.increment();
+            if (deflate && range.isAll() && sendCompressed(dos, clientSocket, fileName, "File delivered from cache.")) {
+                request_trace.mark("send");
+
+            } else if (overTcp) {
+                ByteBuffer data = memoryTier.get(fileName);
+                // Files too large for memory may be mapped; the lease keeps the mapping until sent
+                mapped_tier.lease mapped = data == null ? mappedTier.acquire(fileName) : null;
+                if (mapped != null)
+                    data = mapped.data();
+                
+                if (data != null) {
+                    // Serve straight from memory or the mapping without opening the file
+                    try {
+                        long count = range.count(data.remaining());
+                        if (count < 0) {
+                            replyError(dos, session, byte_range.NOT_SATISFIABLE);
+                            return;
+                        }
+                        data.position((int) range.offset).limit((int) (range.offset + count));
+                        beginReply(dos, session, "File delivered from cache.", count);
+                        channel_io.sendBuffer(data, dos, clientSocket);
+                        (mapped != null ? MAPPED_HITS : MEMORY_HITS).increment();
+                        BYTES_SERVED.add(count);
+                    } finally {
+                        if (mapped != null)
+                            mapped.release();
+                    }
+                } else {
+                    if (!sendRange(file, range, dos, clientSocket, session, "File delivered from cache."))
+                        return;
+
+                    // Promote the file to memory, or map it, once it has been hit often enough
+                    memoryTier.recordDiskHit(fileName, file);
+                    mappedTier.recordDiskHit(fileName, file);
                 }
+                
+                endReply(dos, session, "File delivered from cache.");
+                request_trace.mark("send");
+                
+            } else {
+            	String feedback = "File delivered from cache.";
+            	
+            	// Use the UDP transport (Stop-and-Wait or sliding window) to send the file
+                sendOverUdp(clientSocket, parts, file, feedback);
+                BYTES_SERVED.add(file.length());
+                request_trace.mark("send");
+                
+                dos.writeUTF(feedback);
+                dos.flush();
+            }
+            
+        } else if (overTcp && servePartial(fileName, range, dos, clientSocket, session)) {
+            // The range lay within the bytes a broken download left behind
+            System.out.println("Range of " + fileName + " served from a partial download.");
+            HITS.increment();
+            PARTIAL_HITS.increment();
+            BYTES_SERVED.add(range.length);
+
+        } else {
+        	MISSES.increment();
+        	// File not found in cache, request it from main server. Concurrent misses
+        	// for the same file share a single download instead of each fetching it.
+        	try {
+        		// Over TCP the client that starts the download receives it as it arrives,
+        		// unless it only wants part of it
+        		DataOutputStream relayTo = overTcp && range.isAll() ? dos : null;
+        		AtomicBoolean relayed = new AtomicBoolean(false);
+        		tcp_transport.relay_header relayHeader = fileSize -> {
+        			relayed.set(true);
+        			beginReply(dos, session, "File delivered from server.", fileSize);
+        		};
+
+        		File fetched = null;
+        		try {
+        			fetched = originFetches.acquire(fileName, () -> fetchFromOrigin(command, fileName, relayTo, clientSocket, relayHeader));
+        		} catch (IOException e) {
+        			ORIGIN_ERRORS.increment();
+        			// Part of the file already went to this client, so all we can do is drop the connection
+        			if (relayed.get())
+        				throw e;
+        			System.err.println("Error fetching " + fileName + " from server: " + e.getMessage());
+        		}
+        		request_trace.mark("origin");
+
+        		if (fetched == null) {
+        			NOT_FOUND.increment();
+        			notFound(dos, session);
+
+        		} else if (relayed.get()) {
+        			// The file was streamed through while downloading, only the final message is left
+        			endReply(dos, session, "File delivered from server.");
+                    BYTES_SERVED.add(fetched.length());
+                    System.out.println("File " + fileName + " streamed from server.");
+
+        		} else if (overTcp) {
+        			// After downloading (or revalidating), serve the file (or the requested part) to the client
+        			String delivered = deliveredFrom(fetched);
+        			if (deflate && range.isAll() && !delivered.endsWith("server.")
+        			        && sendCompressed(dos, clientSocket, fileName, delivered)) {
+        			    // Revalidated and unchanged, and already compressed
+        			    request_trace.mark("send");
+        			} else if (sendRange(fetched, range, dos, clientSocket, session, delivered)) {
+                        endReply(dos, session, delivered);
+                        BYTES_SERVED.add(range.count(fetched.length()));
+                        request_trace.mark("send");
+                        System.out.println("File " + fileName + (delivered.endsWith("server.") ? " sent from server." : " unchanged on the server, sent from cache."));
+                    }
+
+        		} else {
+            		String feedback = deliveredFrom(fetched);
+            		
+                    sendOverUdp(clientSocket, parts, fetched, feedback);
+                    BYTES_SERVED.add(fetched.length());
+                    request_trace.mark("send");
+                    
+                    dos.writeUTF(feedback);
+                    dos.flush();
+        		}
+        	} finally {
+        		// The last client served publishes the download into the cache
+        		originFetches.release(fileName);
+        		request_trace.mark("publish");
+        	}
+        }
+    }
+
+    /**
+     * Stores a file uploaded to the cache: after checking it against the client's
+     * checksum it is uploaded to the main server and cached (write-through), or cached
+     * and queued to be written to the server later (write-back).
+     *
+     * @param fileName The uploaded file name.
+     * @param staged   The complete upload, which is consumed.
+     * @param expected The checksum the client sent, or null.
+     * @return The message for the client.
+     * @throws IOException If the upload was discarded; the message says why.
+     */
+    static String acceptUpload(String fileName, File staged, String expected) throws IOException {
+        if (!checksum.matches(expected, staged)) {
+            staged.delete();
+            System.err.println("Checksum mismatch, upload of " + fileName + " discarded.");
+            throw new IOException("Checksum mismatch, upload discarded.");
+        }
+        String version = checksum.contentOf(staged);
+        PUTS.increment();
+
+        if (writeBack == null) {
+            // The main server has the file before the client is told it was uploaded
+            String message;
+            try {
+                message = new tcp_transport().upload(serverIP, serverPort, staged, fileName, version);
+            } catch (IOException e) {
+                staged.delete();
+                System.err.println("Error writing " + fileName + " through to the server: " + e.getMessage());
+                throw new IOException("Upload to the server failed: " + e.getMessage());
             }
+            publish(fileName, staged);
+            System.out.println("File " + fileName + " written through to the server.");
+            return message;
+        }
+
+        // On disk for good before it is acknowledged, since the server won't have it for a while
+        try (FileChannel channel = FileChannel.open(staged.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        writeBack.add(fileName, staged, version);
+        publish(fileName, staged);
+        System.out.println("File " + fileName + " stored, to be written back to the server.");
+        return "File stored in cache, upload to server pending.";
+    }
+
+    // Answers a session's "stat <file>" with the file's size and checksum
+    static void stat(DataOutputStream dos, String fileName) throws IOException {
+        tcp_transport.file_info info;
+        try {
+            info = statFile(fileName);
         } catch (IOException e) {
-            System.err.println("Cache server error: " + e.getMessage());
+            replyError(dos, true, "Error reaching the server: " + e.getMessage());
+            return;
+        }
+        if (info == null) {
+            notFound(dos, true);
+            return;
+        }
+        ByteBuffer body = session_protocol.statBody(info.size, info.checksum);
+        session_protocol.writeHeader(dos, session_protocol.OK, "File found.", body.remaining());
+        dos.write(body.array(), 0, body.remaining());
+        dos.flush();
+    }
+
+    // The size and checksum of a file, from the cache if it has a fresh copy, otherwise
+    // from the main server; null if neither has it
+    static tcp_transport.file_info statFile(String fileName) throws IOException {
+        File pending = writeBack != null ? writeBack.pending(fileName) : null;
+        if (pending != null) {
+            String version = writeBack.checksumOf(fileName);
+            if (version != null)
+                return new tcp_transport.file_info(pending.length(), version);
+        }
+        if (index.contains(fileName) && fresh(fileName)) {
+            File file = new File(CACHE_DIR, fileName);
+            String known = blobs.checksumOf(fileName);
+            try {
+                return new tcp_transport.file_info(file.length(), known != null ? known : checksum.contentOf(file));
+            } catch (NoSuchFileException e) {
+                // Evicted just now, ask the server
+            }
+        }
+        return new tcp_transport().stat(serverIP, serverPort, fileName);
+    }
+
+    // Sends a file to the UDP endpoint and session named in the client's "get <file> <udp-port> <session>"
+    static void sendOverUdp(Socket clientSocket, String[] parts, File file, String feedback) {
+        String clientIP = clientSocket.getInetAddress().getHostAddress();
+        udpTransport.uploadFile(clientIP, Integer.parseInt(parts[2]), Long.parseLong(parts[3]), file, feedback);
+    }
+
+    // Starts a successful TCP reply: the original header and size, or a session frame header
+    static void beginReply(DataOutputStream dos, boolean session, String message, long fileSize) throws IOException {
+        if (session) {
+            session_protocol.writeHeader(dos, session_protocol.OK, message, fileSize);
+        } else {
+            dos.writeUTF("File found, starting transfer.");
+            dos.writeLong(fileSize);
+        }
+    }
+
+    // Finishes a successful TCP reply; sessions have no trailing message
+    static void endReply(DataOutputStream dos, boolean session, String message) throws IOException {
+        if (!session)
+            dos.writeUTF(message);
+        dos.flush();
+    }
+
+    // Starts a TCP reply with the given range of the file and sends it; answers with an
+    // error instead and returns false if the range starts beyond the end of the file
+    static boolean sendRange(File file, byte_range range, DataOutputStream dos, Socket clientSocket,
+                             boolean session, String message) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long count = range.count(channel.size());
+            if (count < 0) {
+                replyError(dos, session, byte_range.NOT_SATISFIABLE);
+                return false;
+            }
+            beginReply(dos, session, message, count);
+
+            // Transfer file data to client without copying it through the JVM
+            channel_io.sendRange(channel, range.offset, count, dos, clientSocket);
+            return true;
+        }
+    }
+
+    // Sends the compressed form of a cached file as a DEFLATED reply if it is made; returns
+    // false, with nothing sent, if the file has to go as it is
+    static boolean sendCompressed(DataOutputStream dos, Socket clientSocket, String fileName, String message) throws IOException {
+        File form = deflate_codec.formOf(blobs, blobs.checksumOf(fileName));
+        long sent = form != null ? deflate_codec.send(form, dos, clientSocket, message) : -1;
+        if (sent < 0)
+            return false;
+        BYTES_SERVED.add(sent);
+        return true;
+    }
+
+    // Answers a request that can't be served
+    static void replyError(DataOutputStream dos, boolean session, String message) throws IOException {
+        if (session)
+            session_protocol.writeHeader(dos, session_protocol.ERROR, message, 0);
+        else
+            dos.writeUTF(message);
+        dos.flush();
+    }
+
+    // Serves the range from the partial file of a broken download if it holds all of it;
+    // returns false, with nothing sent, if it doesn't
+    static boolean servePartial(String fileName, byte_range range, DataOutputStream dos, Socket clientSocket,
+                                boolean session) throws IOException {
+        File partial = partialCovering(fileName, range);
+        if (partial == null)
+            return false;
+        try {
+            sendRange(partial, range, dos, clientSocket, session, "File delivered from cache.");
+        } catch (NoSuchFileException e) {
+            return false; // A download just took it over to continue it
+        }
+        endReply(dos, session, "File delivered from cache.");
+        return true;
+    }
+
+    // The partial file of a broken download if it holds the whole range, or null. Only
+    // ranges with a length qualify, since a partial file doesn't know where the file ends.
+    static File partialCovering(String fileName, byte_range range) {
+        if (range.length < 0)
+            return null;
+        File partial = new File(PARTIAL_DIR, fileName);
+        return partial.length() >= range.offset + range.length ? partial : null;
+    }
+
+    // Tells the client the file exists neither in the cache nor on the server
+    static void notFound(DataOutputStream dos, boolean session) throws IOException {
+        String message = "File not found in cache or on server. Please check the file name and try again.";
+        if (session)
+            session_protocol.writeHeader(dos, session_protocol.NOT_FOUND, message, 0);
+        else
+            dos.writeUTF(message);
+        dos.flush();
+    }
+
+    /**
+     * Downloads a file from the main server into the staging directory. Runs once
+     * per flight of concurrent misses for the same file.
+     *
+     * Over TCP the download uses a pooled session connection to the server. When a
+     * client stream is given, the file is streamed through to that client while it is
+     * being saved, instead of being downloaded first and sent afterwards.
+     *
+     * @param command     The client's get command, forwarded to the server.
+     * @param fileName    The requested file name.
+     * @param relayTo     The requesting client's stream to forward the file to, or null.
+     * @param relaySocket The socket the client stream belongs to.
+     * @param relayHeader Writes the client's response header before anything is forwarded.
+     * A stale cached copy is revalidated instead: it is returned as it is if the server
+     * still has the same content, otherwise the new content is downloaded.
+     *
+     * @return The downloaded file, the cached file if it is still current, or null if
+     *         the server doesn't have it.
+     * @throws IOException If the download failed.
+     */
+    static File fetchFromOrigin(String command, String fileName, DataOutputStream relayTo, Socket relaySocket,
+                                tcp_transport.relay_header relayHeader) throws IOException {
+        // A previous flight may have published or revalidated the file while this request was waiting
+        File cached = new File(CACHE_DIR, fileName);
+        if (index.contains(fileName) && fresh(fileName))
+            return cached;
+
+        // An upload not yet written back to the server is the current content
+        File pending = writeBack != null ? writeBack.pending(fileName) : null;
+        if (pending != null) {
+            File staged = new File(STAGING_DIR, fileName);
+            try {
+                blobs.link(pending, staged);
+                return staged;
+            } catch (NoSuchFileException e) {
+                // Written back just now, the server has it
+            }
+        }
+
+        long start = System.nanoTime();
+        try {
+            return fetchFromServer(command, fileName, cached, relayTo, relaySocket, relayHeader);
+        } finally {
+            ORIGIN_LATENCY.recordSince(start);
+        }
+    }
+
+    // The part of fetchFromOrigin that asks the main server: revalidates the cached copy
+    // if there is one, otherwise downloads the file unless its content is cached already
+    static File fetchFromServer(String command, String fileName, File cached, DataOutputStream relayTo, Socket relaySocket,
+                                tcp_transport.relay_header relayHeader) throws IOException {
+        if (index.contains(fileName)) {
+            try {
+                return revalidate(fileName, cached);
+            } catch (NoSuchFileException e) {
+                // Evicted just now, download it again
+            }
+        }
+
+        // Each download needs its own TCP handler since it keeps the origin socket open
+        tcp_transport tcpTransport = new tcp_transport();
+
+        // The server's checksum identifies the content, which may be cached under another name already
+        tcp_transport.file_info info = tcpTransport.stat(serverIP, serverPort, fileName);
+        request_trace.mark("stat");
+        if (info == null)
+            return null;
+        File staged = new File(STAGING_DIR, fileName);
+        File blob = info.checksum != null ? blobs.find(info.checksum) : null;
+        if (blob != null) {
+            blobs.link(blob, staged);
+            DEDUPLICATED.increment();
+            System.out.println("File " + fileName + " has the same content as a cached file, not downloaded again.");
+            return staged;
+        }
+        ORIGIN_DOWNLOADS.increment();
+
+        boolean complete;
+        if (protocol.equals("tcp")) {
+            // Continue where an earlier download of the file broke off
+            long have = resumePartial(fileName, staged);
+
+            // Download file using TCP protocol, streaming it through to the client if there is one.
+            // With no client to stream to, large files come in parallel chunks instead.
+            try {
+                if (relayTo == null && info.size >= have && parallel_transfer.worthIt(info.size - have)) {
+                    parallel_transfer.download(serverIP, serverPort, fileName, staged, have, info.size);
+                    complete = true;
+                } else {
+                    complete = tcpTransport.fetch(serverIP, serverPort, fileName, staged, have, relayTo, relaySocket, relayHeader);
+                }
+            } catch (IOException e) {
+                keepPartial(fileName, staged);
+                throw e;
+            }
+        } else {
+            // Download file using the UDP transport, into a session of our own endpoint
+            long sessionId = udpEndpoint.newSessionId();
+            tcpTransport.sendCommand(serverIP, serverPort, "get " + fileName + " " + udpEndpoint.port() + " " + sessionId);
+            complete = udpTransport.downloadFile(sessionId, fileName, STAGING_DIR);
+        }
+
+        request_trace.mark("download");
+        if (!complete) {
+            // Never leave a partial download where it could be mistaken for a cached copy
+            staged.delete();
+            return null;
+        }
+        ORIGIN_BYTES.add(staged.length());
+        if (!checksum.matches(info.checksum, staged)) {
+            staged.delete();
+            throw new IOException("Checksum mismatch, download of " + fileName + " discarded.");
+        }
+        request_trace.mark("verify");
+        return staged;
+    }
+
+    // Asks the server whether a cached file changed since it was cached: returns the
+    // cached file if it didn't, the new content staged for publishing if it did, and
+    // null (dropping the cached copy) if the server no longer has the file
+    static File revalidate(String fileName, File cached) throws IOException {
+        String known = blobs.checksumOf(fileName);
+        String version = known != null ? known : checksum.contentOf(cached);
+
+        File staged = new File(STAGING_DIR, fileName);
+        REVALIDATIONS.increment();
+        String current = new tcp_transport().getIfChanged(serverIP, serverPort, fileName, version, staged);
+        request_trace.mark("revalidate");
+        if (current == null) {
+            index.remove(fileName);
+            return null;
+        }
+        if (current.equals(version)) {
+            UNCHANGED.increment();
+            validated.put(fileName, System.currentTimeMillis());
+            return cached;
+        }
+        ORIGIN_BYTES.add(staged.length());
+
+        if (!checksum.matches(current, staged)) {
+            staged.delete();
+            throw new IOException("Checksum mismatch, download of " + fileName + " discarded.");
+        }
+        System.out.println("File " + fileName + " changed on the server, cached copy replaced.");
+        return staged;
+    }
+
+    // Moves the partial file of an earlier download into the staging directory to be
+    // continued; returns how many bytes it holds
+    static long resumePartial(String fileName, File staged) {
+        File partial = new File(PARTIAL_DIR, fileName);
+        if (partial.length() == 0)
+            return 0;
+        try {
+            Files.move(partial.toPath(), staged.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("Resuming " + fileName + " from the server after " + staged.length() + " bytes.");
+            return staged.length();
+        } catch (IOException e) {
+            partial.delete();
+            return 0;
         }
-    }  
+    }
+
+    // Keeps what a broken TCP download received, which is always a prefix of the file
+    static void keepPartial(String fileName, File staged) {
+        try {
+            if (staged.length() > 0) {
+                Files.move(staged.toPath(), new File(PARTIAL_DIR, fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                return;
+            }
+        } catch (IOException e) {
+            System.err.println("Error keeping partial download of " + fileName + ": " + e.getMessage());
+        }
+        staged.delete();
+    }
+
+    // Loads a file for the access history's warm-up or prefetch, like a miss with no client to serve
+    static void load(String fileName) throws IOException {
+        try {
+            originFetches.acquire(fileName, () -> fetchFromOrigin("get " + fileName, fileName, null, null, null));
+        } finally {
+            originFetches.release(fileName);
+        }
+    }
+
+    /**
+     * Moves a finished download from the staging directory into cache_fl and adds
+     * it to the cache index. Called once all clients sharing the download are served.
+     *
+     * @param fileName The requested file name.
+     * @param fetched  The file returned by fetchFromOrigin, or null if the fetch failed.
+     */
+    static void publishFetch(String fileName, File fetched) {
+        if (fetched == null || !fetched.getParentFile().getName().equals(".inflight"))
+            return;
+
+        try {
+            publish(fileName, fetched);
+        } catch (IOException e) {
+            System.err.println("Error publishing " + fileName + " to cache: " + e.getMessage());
+            fetched.delete();
+        }
+    }
+
+    // Moves a complete, checked file into cache_fl under its name and adds it to the index
+    static void publish(String fileName, File file) throws IOException {
+        // Stored by content and linked under its name in one atomic rename, so readers
+        // see either no file or the whole file
+        blobs.publish(file, fileName, checksum.contentOf(file));
+        memoryTier.remove(fileName);
+        mappedTier.remove(fileName);
+        validated.put(fileName, System.currentTimeMillis());
+        // Keep the copy if it fits the cache budget
+        if (!index.admit(fileName, new File(CACHE_DIR, fileName).length()))
+            blobs.forget(fileName);
+    }
     
 }
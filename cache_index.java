@@ -0,0 +1,195 @@
+import java.io.*;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * The cache_index class keeps track of the files stored in the cache directory
+ * and enforces a byte and entry budget on them. Hit/miss decisions are answered
+ * from memory, and files chosen for eviction by the eviction_policy are deleted
+ * from disk.
+ *
+ * Settings (system properties):
+ *  - cache.maxBytes:   Maximum total size of cached files in bytes (default 1 GiB).
+ *  - cache.maxEntries: Maximum number of cached files (default 10000).
+ *  - cache.policy:     Eviction policy, "lru", "lfu" or "tinylfu" (default "lru").
+ */
+public class cache_index {
+
+    private final File directory;
+    private final long maxBytes;
+    private final int maxEntries;
+    private final eviction_policy policy;
+
+    // Size in bytes of each cached file, keyed by file name
+    private final Map<String, Long> entries = new HashMap<>();
+    private long totalBytes = 0;
+
+    // Notified with the name of every file dropped from the index
+    private Consumer<String> removalListener = fileName -> { };
+
+    /**
+     * @param directory  The directory holding the cached files.
+     * @param maxBytes   Maximum total size of cached files.
+     * @param maxEntries Maximum number of cached files.
+     * @param policy     Policy that chooses which files to evict.
+     */
+    public cache_index(File directory, long maxBytes, int maxEntries, eviction_policy policy) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        this.policy = policy;
+    }
+
+    /**
+     * Creates an index for the directory using the cache.* system properties.
+     *
+     * @param directory The directory holding the cached files.
+     * @return The index.
+     */
+    public static cache_index fromSettings(File directory) {
+        long maxBytes = Long.getLong("cache.maxBytes", 1L << 30);
+        int maxEntries = Integer.getInteger("cache.maxEntries", 10000);
+        String policyName = System.getProperty("cache.policy", "lru");
+        return new cache_index(directory, maxBytes, maxEntries, eviction_policy.create(policyName, maxEntries));
+    }
+
+    /**
+     * Registers a callback that is told about every file dropped from the index,
+     * so faster tiers in front of the disk can drop their copies too.
+     *
+     * @param listener Receives the name of each evicted or removed file.
+     */
+    public synchronized void setRemovalListener(Consumer<String> listener) {
+        this.removalListener = listener;
+    }
+
+    /**
+     * Indexes the files already present in the cache directory, evicting
+     * any that no longer fit the budget.
+     */
+    public synchronized void load() {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+
+        for (File file : files) {
+            // Skip hidden bookkeeping files and directories
+            if (file.isFile() && !file.getName().startsWith("."))
+                add(file.getName(), file.length());
+        }
+        evict(null);
+        System.out.println("Cache index loaded " + entries.size() + " file(s), " + totalBytes + " bytes.");
+    }
+
+    /**
+     * Checks whether a file is cached and records the request with the eviction policy.
+     *
+     * @param fileName The requested file name.
+     * @return True if the file is cached.
+     */
+    public synchronized boolean lookup(String fileName) {
+        boolean hit = entries.containsKey(fileName);
+        policy.recordAccess(fileName, hit);
+        return hit;
+    }
+
+    /**
+     * Checks whether a file is cached without counting it as a request.
+     *
+     * @param fileName The file name.
+     * @return True if the file is cached.
+     */
+    public synchronized boolean contains(String fileName) {
+        return entries.containsKey(fileName);
+    }
+
+    /**
+     * Adds a file that was just written to the cache directory, evicting other
+     * files as needed to stay within budget. The policy may reject the new file
+     * itself, in which case it is deleted again.
+     *
+     * @param fileName The cached file name.
+     * @param size     The file size in bytes.
+     * @return True if the file was kept in the cache.
+     */
+    public synchronized boolean admit(String fileName, long size) {
+        if (size > maxBytes) {
+            // Too large to ever fit, don't flush the whole cache for it
+            deleteFile(fileName);
+            return false;
+        }
+
+        add(fileName, size);
+        return evict(fileName);
+    }
+
+    /**
+     * Drops a file from the index and deletes it from disk.
+     *
+     * @param fileName The cached file name.
+     */
+    public synchronized void remove(String fileName) {
+        if (drop(fileName))
+            deleteFile(fileName);
+    }
+
+    /**
+     * @return The total size of the cached files in bytes.
+     */
+    public synchronized long bytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return The number of cached files.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // Starts tracking a file, replacing any previous entry for the same name
+    private void add(String fileName, long size) {
+        Long previous = entries.put(fileName, size);
+        if (previous != null)
+            totalBytes -= previous;
+        totalBytes += size;
+        policy.onInsert(fileName);
+    }
+
+    // Stops tracking a file without touching the disk
+    private boolean drop(String fileName) {
+        Long size = entries.remove(fileName);
+        if (size == null)
+            return false;
+        totalBytes -= size;
+        policy.onRemove(fileName);
+        removalListener.accept(fileName);
+        return true;
+    }
+
+    // Evicts files until the budget is met; returns false if the given file was evicted
+    private boolean evict(String keep) {
+        boolean kept = true;
+        while (totalBytes > maxBytes || entries.size() > maxEntries) {
+            String victim = policy.victim();
+            if (victim == null)
+                break;
+
+            if (!drop(victim))
+                policy.onRemove(victim); // Keep a stale policy entry from stalling the loop
+            deleteFile(victim);
+            if (victim.equals(keep))
+                kept = false;
+            else
+                System.out.println("Evicted " + victim + " from cache.");
+        }
+        return kept;
+    }
+
+    private void deleteFile(String fileName) {
+        File file = new File(directory, fileName);
+        if (file.exists() && !file.delete())
+            System.err.println("Could not delete evicted file: " + file.getPath());
+    }
+
+}
@@ -0,0 +1,179 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * The cache_tier class spreads a client's files over several cache nodes, so the
+ * working set is the sum of the nodes' capacity and the load is shared between
+ * them. Files are placed on the nodes by consistent hashing (see hash_ring), so
+ * every client sends a file to the same node and adding or removing a node only
+ * moves the files it gains or loses.
+ *
+ * Hot files are replicated: once a file has been requested often enough, gets for
+ * it rotate over the first nodes of its ring order, and each of them caches its own
+ * copy on the first miss. One popular file then no longer limits the tier to the
+ * bandwidth of one node.
+ *
+ * A node that can't be reached leaves the ring, its files go to the next nodes,
+ * and it is tried again after a while.
+ *
+ * Settings (system properties):
+ *  - ring.virtualNodes: Points each node gets on the ring (default 160).
+ *  - tier.replicas:     Nodes a hot file is spread over (default 2, 1 turns replication off).
+ *  - tier.hotThreshold: Requests after which a file counts as hot (default 8).
+ *  - tier.downTime:     Milliseconds an unreachable node stays out of the ring (default 10000).
+ */
+public class cache_tier {
+
+    static final int VIRTUAL_NODES = Integer.getInteger("ring.virtualNodes", 160);
+    static final int REPLICAS = Math.max(1, Integer.getInteger("tier.replicas", 2));
+    static final int HOT_THRESHOLD = Integer.getInteger("tier.hotThreshold", 8);
+    static final long DOWN_TIME = Long.getLong("tier.downTime", 10000);
+
+    // Files whose request counts are kept
+    private static final int MAX_COUNTED = 10000;
+
+    // Milliseconds a probe waits for a node to answer when checking whether it is up
+    private static final int PROBE_TIMEOUT = 1000;
+
+    /**
+     * A cache node.
+     */
+    static class node {
+        final String host;
+        final int port;
+
+        node(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private final hash_ring<node> ring = new hash_ring<>(VIRTUAL_NODES);
+
+    // Every configured node, including those currently out of the ring
+    private final List<node> all = new ArrayList<>();
+
+    // Nodes taken out of the ring -> when they may rejoin
+    private final Map<node, Long> down = new HashMap<>();
+
+    // Requests per file, least recently requested dropped first
+    private final LinkedHashMap<String, Integer> requests = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_COUNTED;
+        }
+    };
+
+    /**
+     * @param spec        Comma-separated cache nodes, each "host" or "host:port".
+     * @param defaultPort The port of nodes given without one.
+     */
+    public cache_tier(String spec, int defaultPort) {
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty())
+                continue;
+            int colon = entry.lastIndexOf(':');
+            node node = colon > 0 ? new node(entry.substring(0, colon), Integer.parseInt(entry.substring(colon + 1)))
+                    : new node(entry, defaultPort);
+            all.add(node);
+            ring.add(node);
+        }
+        if (ring.size() == 0)
+            throw new IllegalArgumentException("No cache nodes in " + spec);
+    }
+
+    /**
+     * @return The number of nodes currently in the ring.
+     */
+    public synchronized int size() {
+        return ring.size();
+    }
+
+    /**
+     * @return Every configured node, whether it is in the ring or not.
+     */
+    public List<node> nodes() {
+        return Collections.unmodifiableList(all);
+    }
+
+    /**
+     * Chooses the node to get a file from, counting the request.
+     *
+     * @param fileName The file name.
+     * @return The file's node or, for a hot file, one of its replicas.
+     */
+    public synchronized node forGet(String fileName) {
+        rejoin();
+        int count = requests.merge(fileName, 1, Integer::sum);
+        if (REPLICAS < 2 || count < HOT_THRESHOLD)
+            return ring.nodeFor(fileName);
+
+        // Rotate over the replicas, each of which caches the file on its first miss
+        List<node> replicas = ring.nodesFor(fileName, REPLICAS);
+        return replicas.get(count % replicas.size());
+    }
+
+    /**
+     * @param fileName The file name.
+     * @return The node to upload a file through: its primary node.
+     */
+    public synchronized node forPut(String fileName) {
+        rejoin();
+        return ring.nodeFor(fileName);
+    }
+
+    /**
+     * Called when a request to a node failed. If the node can't be reached it
+     * leaves the ring for a while, so the next choice is another node.
+     *
+     * @param failed The node the request went to.
+     * @return True if the node is down and the request should be tried on another node.
+     */
+    public boolean unreachable(node failed) {
+        if (size() <= 1)
+            return false; // Keep the last node, there is nothing to fall back to
+
+        // A session handshake, which the node ends quietly when the probe closes
+        try (Socket probe = new Socket()) {
+            probe.connect(new InetSocketAddress(failed.host, failed.port), PROBE_TIMEOUT);
+            probe.setSoTimeout(PROBE_TIMEOUT);
+            DataOutputStream out = new DataOutputStream(probe.getOutputStream());
+            out.writeUTF(session_protocol.HANDSHAKE);
+            out.flush();
+            session_protocol.readHeader(new DataInputStream(probe.getInputStream()));
+            return false;
+        } catch (IOException e) {
+            synchronized (this) {
+                if (ring.size() <= 1)
+                    return false;
+                ring.remove(failed);
+                down.put(failed, System.currentTimeMillis() + DOWN_TIME);
+            }
+            System.err.println("Cache node " + failed + " unreachable, using the next node for its files.");
+            return true;
+        }
+    }
+
+    // Puts nodes back into the ring whose down time is over
+    private void rejoin() {
+        if (down.isEmpty())
+            return;
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<node, Long>> entries = down.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<node, Long> entry = entries.next();
+            if (entry.getValue() <= now) {
+                ring.add(entry.getKey());
+                entries.remove();
+            }
+        }
+    }
+
+}
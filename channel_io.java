@@ -0,0 +1,222 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The channel_io class moves file bodies between files and TCP sockets with NIO
+ * channels instead of 4 KB heap buffer loops.
+ *
+ * Sending uses FileChannel.transferTo, which the JDK maps to sendfile() where the
+ * platform supports it, so file data goes from the page cache to the socket without
+ * being copied through the JVM. Receiving reads the socket into a large per-thread
+ * direct buffer and writes it straight to a FileChannel.
+ *
+ * Sockets that were not created from a channel (or -Dtransport.zeroCopy=false) fall
+ * back to plain stream copies, so callers can use these methods with any socket.
+ *
+ * Settings (system properties):
+ *  - transport.zeroCopy:   Use transferTo and channel I/O when available (default true).
+ *  - transport.bufferSize: Size of the direct buffer used for receiving, in bytes (default 256 KiB).
+ */
+public class channel_io {
+
+    static final boolean ZERO_COPY = !"false".equalsIgnoreCase(System.getProperty("transport.zeroCopy"));
+    static final int BUFFER_SIZE = Integer.getInteger("transport.bufferSize", 256 * 1024);
+
+    // transferTo hands over at most this much per call on some platforms
+    private static final long MAX_TRANSFER = 8L << 20;
+
+    // One direct buffer per thread, reused for every transfer on that thread
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    /**
+     * Opens a TCP connection backed by a SocketChannel, so transfers over it can
+     * use the zero-copy paths. The returned socket is used like any other socket.
+     *
+     * @param host The host to connect to.
+     * @param port The port to connect to.
+     * @return The connected socket.
+     * @throws IOException If the connection fails.
+     */
+    public static Socket connect(String host, int port) throws IOException {
+        return SocketChannel.open(new InetSocketAddress(host, port)).socket();
+    }
+
+    /**
+     * Sends the whole file to the socket.
+     *
+     * @param file   The file to send.
+     * @param out    The socket's output stream, used when channels aren't available.
+     * @param socket The socket the stream belongs to.
+     * @throws IOException If the file can't be read or the connection fails.
+     */
+    public static void sendFile(File file, OutputStream out, Socket socket) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            sendRange(channel, 0, channel.size(), out, socket);
+        }
+    }
+
+    /**
+     * Sends part of an open file to the socket.
+     *
+     * @param channel  The file to send from.
+     * @param position The file offset to start at.
+     * @param count    The number of bytes to send.
+     * @param out      The socket's output stream, used when channels aren't available.
+     * @param socket   The socket the stream belongs to.
+     * @throws IOException If the file can't be read or the connection fails.
+     */
+    public static void sendRange(FileChannel channel, long position, long count, OutputStream out, Socket socket) throws IOException {
+        long sent = 0;
+        SocketChannel target = socketChannel(socket);
+
+        if (target != null) {
+            out.flush(); // Anything already written to the stream must go out first
+            try {
+                while (sent < count) {
+                    long n = channel.transferTo(position + sent, Math.min(count - sent, MAX_TRANSFER), target);
+                    if (n <= 0 && position + sent >= channel.size())
+                        throw new EOFException("File ended after " + sent + " of " + count + " bytes.");
+                    sent += n;
+                }
+                return;
+            } catch (IOException e) {
+                // Only fall back if nothing went out yet, otherwise the stream is already inconsistent
+                if (sent > 0)
+                    throw e;
+                System.err.println("transferTo unavailable, falling back to stream copy: " + e.getMessage());
+            }
+        }
+
+        // Fallback: copy through a heap buffer
+        InputStream in = Channels.newInputStream(channel.position(position));
+        byte[] buffer = new byte[64 * 1024];
+        while (sent < count) {
+            int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, count - sent));
+            if (bytesRead < 0)
+                throw new EOFException("File ended after " + sent + " of " + count + " bytes.");
+            out.write(buffer, 0, bytesRead);
+            sent += bytesRead;
+        }
+        out.flush();
+    }
+
+    /**
+     * Sends the remaining bytes of a buffer to the socket.
+     *
+     * @param data   The data to send; its position is advanced.
+     * @param out    The socket's output stream, used when channels aren't available.
+     * @param socket The socket the stream belongs to.
+     * @throws IOException If the connection fails.
+     */
+    public static void sendBuffer(ByteBuffer data, OutputStream out, Socket socket) throws IOException {
+        out.flush();
+        WritableByteChannel target = writableChannel(out, socket);
+        while (data.hasRemaining())
+            target.write(data);
+        out.flush();
+    }
+
+    /**
+     * Receives exactly <size> bytes from the socket into a file, replacing its contents.
+     *
+     * @param in     The socket's input stream, used when channels aren't available.
+     * @param socket The socket the stream belongs to.
+     * @param file   The file to write.
+     * @param size   The number of bytes to receive.
+     * @return The number of bytes received; less than size if the connection closed early.
+     * @throws IOException If the file can't be written or the connection fails.
+     */
+    public static long receiveFile(InputStream in, Socket socket, File file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return receive(in, socket, channel, 0, size);
+        }
+    }
+
+    /**
+     * Receives up to <count> bytes from the socket and writes them to a file at the given position.
+     *
+     * @param in       The socket's input stream, used when channels aren't available.
+     * @param socket   The socket the stream belongs to.
+     * @param channel  The file to write to.
+     * @param position The file offset to start writing at.
+     * @param count    The number of bytes to receive.
+     * @return The number of bytes received; less than count if the connection closed early.
+     * @throws IOException If the file can't be written or the connection fails.
+     */
+    public static long receive(InputStream in, Socket socket, FileChannel channel, long position, long count) throws IOException {
+        return receive(readableChannel(in, socket), channel, position, count);
+    }
+
+    /**
+     * Reads up to <count> bytes from a channel, e.g. a socket's or a deflate_codec.decoder,
+     * and writes them to a file at the given position.
+     *
+     * @param source   The channel to read from.
+     * @param channel  The file to write to.
+     * @param position The file offset to start writing at.
+     * @param count    The number of bytes to receive.
+     * @return The number of bytes received; less than count if the source ended early.
+     * @throws IOException If the file can't be written or the source fails.
+     */
+    public static long receive(ReadableByteChannel source, FileChannel channel, long position, long count) throws IOException {
+        ByteBuffer buffer = BUFFERS.get();
+        long received = 0;
+
+        while (received < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - received));
+            int n = source.read(buffer);
+            if (n < 0)
+                break; // Connection closed early
+
+            buffer.flip();
+            while (buffer.hasRemaining())
+                received += channel.write(buffer, position + received);
+        }
+        return received;
+    }
+
+    /**
+     * Returns a channel that reads from the socket, using the socket's own channel when possible.
+     *
+     * @param in     The socket's input stream.
+     * @param socket The socket the stream belongs to.
+     * @return A readable channel for the socket.
+     */
+    public static ReadableByteChannel readableChannel(InputStream in, Socket socket) {
+        SocketChannel channel = socketChannel(socket);
+        return channel != null ? channel : Channels.newChannel(in);
+    }
+
+    /**
+     * Returns a channel that writes to the socket, using the socket's own channel when possible.
+     *
+     * @param out    The socket's output stream.
+     * @param socket The socket the stream belongs to.
+     * @return A writable channel for the socket.
+     */
+    public static WritableByteChannel writableChannel(OutputStream out, Socket socket) {
+        SocketChannel channel = socketChannel(socket);
+        return channel != null ? channel : Channels.newChannel(out);
+    }
+
+    /**
+     * @return This thread's reusable direct transfer buffer.
+     */
+    public static ByteBuffer buffer() {
+        return BUFFERS.get();
+    }
+
+    // The socket's channel when zero-copy is enabled and the channel is usable for blocking I/O
+    private static SocketChannel socketChannel(Socket socket) {
+        if (!ZERO_COPY || socket == null)
+            return null;
+        SocketChannel channel = socket.getChannel();
+        return channel != null && channel.isBlocking() ? channel : null;
+    }
+
+}
@@ -0,0 +1,173 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * The checksum class computes the whole-file checksums that transfers carry so the
+ * receiving side can tell whether it got exactly the bytes that were sent, and the
+ * content checksums that blob_store uses as the address of a file's content.
+ *
+ * A checksum is written as "<algorithm>:<hex digest>", e.g. "crc32c:1a2b3c4d", so
+ * either side can verify a checksum computed with a different algorithm. CRC32C is
+ * the default for transfers: it is computed with a CPU instruction and costs far
+ * less than the disk read. Content checksums (contentOf) are always SHA-256, whatever
+ * transport.checksum says: identical content checksums mean shared storage, and 32
+ * bits collide too easily, by accident or on purpose, to tell contents apart.
+ *
+ * Files are read once per content: results are remembered by path, size,
+ * modification time and file key (inode), so a file is checksummed again only
+ * after it changes.
+ *
+ * Settings (system properties):
+ *  - transport.checksum: Algorithm for new checksums, "crc32c" or "sha256" (default crc32c).
+ */
+public class checksum {
+
+    static final String CRC32C = "crc32c";
+    static final String SHA256 = "sha256";
+
+    static final String ALGORITHM = SHA256.equalsIgnoreCase(System.getProperty("transport.checksum")) ? SHA256 : CRC32C;
+
+    // Most remembered results before the memory is cleared
+    private static final int MAX_REMEMBERED = 10000;
+
+    // A remembered result and the file state it was computed for
+    private static class remembered {
+        final long size;
+        final long modified;
+        final Object fileKey;
+        final String value;
+
+        remembered(BasicFileAttributes attributes, String value) {
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime().toMillis();
+            this.fileKey = attributes.fileKey();
+            this.value = value;
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && modified == attributes.lastModifiedTime().toMillis()
+                    && (fileKey == null || fileKey.equals(attributes.fileKey()));
+        }
+    }
+
+    // Results keyed by "<algorithm>|<absolute path>"
+    private static final ConcurrentHashMap<String, remembered> results = new ConcurrentHashMap<>();
+
+    /**
+     * @param file The file.
+     * @return The file's checksum with the configured algorithm.
+     * @throws IOException If the file can't be read.
+     */
+    static String of(File file) throws IOException {
+        return of(file, ALGORITHM);
+    }
+
+    /**
+     * @param file The file.
+     * @return The file's content checksum, which is always SHA-256; it addresses the
+     *         content in a blob_store and serves as the file's version.
+     * @throws IOException If the file can't be read.
+     */
+    static String contentOf(File file) throws IOException {
+        return of(file, SHA256);
+    }
+
+    /**
+     * @param file      The file.
+     * @param algorithm CRC32C or SHA256.
+     * @return The file's checksum with the given algorithm.
+     * @throws IOException If the file can't be read.
+     */
+    static String of(File file, String algorithm) throws IOException {
+        Path path = file.toPath().toAbsolutePath();
+        String key = algorithm + "|" + path;
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        remembered known = results.get(key);
+        if (known != null && known.matches(attributes))
+            return known.value;
+
+        String value = compute(path, algorithm);
+        if (results.size() >= MAX_REMEMBERED)
+            results.clear();
+        results.put(key, new remembered(attributes, value));
+        return value;
+    }
+
+    /**
+     * @param expected A checksum sent by the other side, or null if it sent none.
+     * @param file     The received file.
+     * @return True if the file matches the checksum, or no checksum was sent.
+     * @throws IOException If the file can't be read or the checksum's algorithm is unknown.
+     */
+    static boolean matches(String expected, File file) throws IOException {
+        if (expected == null)
+            return true;
+        return expected.equals(of(file, algorithmOf(expected)));
+    }
+
+    /**
+     * @param text A word of a command.
+     * @return True if it is a checksum.
+     */
+    static boolean isChecksum(String text) {
+        return text.startsWith(CRC32C + ":") || text.startsWith(SHA256 + ":");
+    }
+
+    /**
+     * @param parts A command split on spaces.
+     * @return The checksum the command ends with, or null if it has none.
+     */
+    static String fromCommand(String[] parts) {
+        String last = parts[parts.length - 1];
+        return parts.length > 2 && isChecksum(last) ? last : null;
+    }
+
+    // The algorithm part of a checksum
+    private static String algorithmOf(String checksum) throws IOException {
+        if (!isChecksum(checksum))
+            throw new IOException("Unknown checksum: " + checksum);
+        return checksum.substring(0, checksum.indexOf(':'));
+    }
+
+    // Reads the whole file through a direct buffer into the algorithm's state
+    private static String compute(Path path, String algorithm) throws IOException {
+        ByteBuffer buffer = channel_io.buffer();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (algorithm.equals(CRC32C)) {
+                CRC32C crc = new CRC32C();
+                while (read(channel, buffer))
+                    crc.update(buffer);
+                return CRC32C + ":" + String.format("%08x", crc.getValue());
+            }
+
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("SHA-256 is not available: " + e.getMessage());
+            }
+            while (read(channel, buffer))
+                digest.update(buffer);
+            StringBuilder hex = new StringBuilder(SHA256 + ":");
+            for (byte b : digest.digest())
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        }
+    }
+
+    // Fills the buffer with the next part of the file; false at the end of the file
+    private static boolean read(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        if (channel.read(buffer) < 0)
+            return false;
+        buffer.flip();
+        return true;
+    }
+
+}
@@ -3,11 +3,15 @@ import java.util.*;
 
 /**
  * The Client class provides a console-based interface for interacting with a server
- * to upload and download files using specified transport protocols (TCP or SNW).
+ * to upload and download files using specified transport protocols (TCP, SNW or SR).
  * 
  * Supported commands:
  *  - "put <filename>": Uploads a specified file to the server.
- *  - "get <filename>": Downloads a specified file from the server or cache.
+ *  - "get <filename>": Downloads a specified file from the server or cache. Over TCP an
+ *    interrupted download is resumed by the next get for the same file.
+ *  - "get <filename> <offset> [<length>]": Downloads only that byte range (TCP only) and
+ *    writes it at its place in the local file.
+ *  - "stats": Prints the metrics of the server, every cache node and this client (see metrics).
  *  - "quit": Exits the program.
  *  
  * Usage:
@@ -16,9 +20,14 @@ import java.util.*;
  * Arguments:
  *  - <server-ip>: IP address of the server.
  *  - <server-port>: Port number of the server.
- *  - <cache-ip>: IP address of the cache server.
- *  - <cache-port>: Port number of the cache server.
- *  - <protocol>: Transport protocol to use (either "tcp" or "snw").
+ *  - <cache-ip>: IP address of the cache server, or a comma-separated list of cache nodes,
+ *    each "ip" or "ip:port", that files are spread over (see cache_tier).
+ *  - <cache-port>: Port number of the cache server, for nodes given without one.
+ *  - <protocol>: Transport protocol to use ("tcp", "snw" or "sr").
+ *
+ * Start with -Dclient.putVia=cache to send TCP uploads to the cache instead of the
+ * server; the cache passes them on (see cache.writeMode) and keeps a copy, so a
+ * file read right after it was uploaded is a cache hit.
  */
 public class client {
     
@@ -33,18 +42,26 @@ public class client {
         // Extract command-line arguments for server IP, port, cache IP, port, and protocol type
         String serverIP = args[0];
         int serverPort = Integer.parseInt(args[1]);
-        String cacheIP = args[2];
-        int cachePort = Integer.parseInt(args[3]);
+        cache_tier caches = new cache_tier(args[2], Integer.parseInt(args[3]));
         String protocol = args[4].toLowerCase();
+
+        // Where TCP uploads go: the server, or the cache, which passes them on
+        boolean putViaCache = System.getProperty("client.putVia", "server").equalsIgnoreCase("cache");
         
-        if (!protocol.equals("tcp") &&  !protocol.equals("snw")) {
+        if (!protocol.equals("tcp") &&  !protocol.equals("snw") && !protocol.equals("sr")) {
         	System.out.println("Error: Invalid protocol");
         	return;
         }
         
-        // Initialize transport protocol handlers (TCP and SNW protocols)
+        // Initialize transport protocol handlers (TCP, and SNW or SR over UDP)
         tcp_transport tcpTransport = new tcp_transport();
-        snw_transport snwTransport = new snw_transport(); 
+        udp_transport udpTransport = null;
+        udp_endpoint udpEndpoint = null;
+        if (!protocol.equals("tcp")) {
+            // One UDP socket on any free port carries every SNW/SR transfer of this client
+            udpEndpoint = udp_endpoint.open(0);
+            udpTransport = udp_transport.forProtocol(protocol, udpEndpoint);
+        }
         
         // Initialize Scanner to capture user input
         Scanner scanner = new Scanner(System.in);
@@ -64,15 +81,19 @@ public class client {
             if (parts[0].equals("quit")) {
                 System.out.println("Exiting program!");
                 break;
+
+            // Handle 'stats' command to show what the server and caches counted
+            } else if (parts[0].equals("stats")) {
+                printStats("Server " + serverIP + ":" + serverPort, () -> tcpTransport.stats(serverIP, serverPort));
+                for (cache_tier.node node : caches.nodes())
+                    printStats("Cache " + node, () -> tcpTransport.stats(node.host, node.port));
+                System.out.print("Client\n" + metrics.report());
                 
             // Handle 'put' command to upload a file to the server 
             } else if (parts[0].equals("put") || parts[0].equals("get")) {
 
             	if (parts[0].equals("put")) { 
                     if (parts.length == 2) {
-                    	// Send 'put' command to the server
-                    	tcpTransport.sendCommand(serverIP, serverPort, command);
-                    	
                         String filePath = parts[1];
                         File file = new File("client_fl", filePath);
                         
@@ -81,11 +102,20 @@ public class client {
                             System.out.println("File not found: " + filePath);
                         } else {
                             
-                        	// Choose protocol to upload the file (TCP or Stop-and-Wait over UDP)
+                        	// Choose protocol to upload the file (TCP, or Stop-and-Wait / sliding window over UDP)
                             if (protocol.equals("tcp")) {
-                                tcpTransport.uploadFile(serverIP, serverPort, file);
-                            } else if (protocol.equals("snw")) {
-                                snwTransport.uploadFile(serverIP, serverPort, file, "");
+                            	// Upload over a persistent connection to the server, or through the cache
+                                if (putViaCache) {
+                                    cache_tier.node node = caches.forPut(filePath);
+                                    while (!tcpTransport.put(node.host, node.port, file) && caches.unreachable(node))
+                                        node = caches.forPut(filePath);
+                                } else
+                                    tcpTransport.put(serverIP, serverPort, file);
+                            } else if (udpTransport != null) {
+                            	// Send 'put' command with a session ID to the server, then the file over UDP
+                            	long sessionId = udpEndpoint.newSessionId();
+                            	tcpTransport.sendCommand(serverIP, serverPort, "put " + filePath + " " + sessionId);
+                                udpTransport.uploadFile(serverIP, serverPort, sessionId, file, "");
                             } else {
                             	// Display an error if an unsupported protocol is provided
                                 System.out.println("Unsupported protocol: " + protocol);
@@ -98,19 +128,33 @@ public class client {
                     
                 // Handle 'get' command to download a file from the cache
             	} else if (parts[0].equals("get")){
-                	if (parts.length == 2) {
-                		// Send 'get' command to the cache
-                		tcpTransport.sendCommand(cacheIP, cachePort, command);
-                		
-                		// Choose protocol to download the file (TCP or Stop-and-Wait over UDP)
+                	if (parts.length >= 3 && parts.length <= 4 && protocol.equals("tcp")) {
+                		// Byte range, written into the local file at its offset
+                		byte_range range = byte_range.parse(parts);
+                		if (range == null)
+                			System.out.println("Invalid command format. Usage: get <filename> <offset> [<length>]");
+                		else {
+                			cache_tier.node node = caches.forGet(parts[1]);
+                			while (!tcpTransport.getRange(node.host, node.port, parts[1], null, range) && caches.unreachable(node))
+                				node = caches.forGet(parts[1]);
+                		}
+                	} else if (parts.length == 2) {
+                		// Choose protocol to download the file (TCP, or Stop-and-Wait / sliding window over UDP)
+                		// The file's cache node; if it turns out to be down, the next node on the ring takes over
+                		cache_tier.node node = caches.forGet(parts[1]);
                 		if (protocol.equals("tcp")) {
-                			tcpTransport.downloadFile(cacheIP, cachePort, parts[1], null);
-                		} else if (protocol.equals("snw")) {
-                			snwTransport.downloadFile(cachePort, parts[1], null);
+                			// Download over a persistent connection to the cache
+                			while (!tcpTransport.get(node.host, node.port, parts[1], null) && caches.unreachable(node))
+                				node = caches.forGet(parts[1]);
+                		} else if (udpTransport != null) {
+                			// Send 'get' command naming our UDP port and session to the cache, then receive the file over UDP
+                			long sessionId = udpEndpoint.newSessionId();
+                			tcpTransport.sendCommand(node.host, node.port, "get " + parts[1] + " " + udpEndpoint.port() + " " + sessionId);
+                			udpTransport.downloadFile(sessionId, parts[1], null);
                 		}
                 	} else {
                 		// Display correct usage format if command format is incorrect
-                		System.out.println("Invalid command format. Usage: get <filename>");
+                		System.out.println("Invalid command format. Usage: get <filename> [<offset> [<length>]] (ranges over TCP only)");
                     }
                 }
             } else {
@@ -121,4 +165,20 @@ public class client {
         
         scanner.close();
     }
+
+    /**
+     * Fetches one metrics report.
+     */
+    interface report_source {
+        String fetch() throws IOException;
+    }
+
+    // Prints a server's or cache's metrics report under a heading
+    static void printStats(String heading, report_source source) {
+        try {
+            System.out.print(heading + "\n" + source.fetch());
+        } catch (IOException e) {
+            System.out.println(heading + ": error fetching statistics: " + e.getMessage());
+        }
+    }
 }
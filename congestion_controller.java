@@ -0,0 +1,64 @@
+/**
+ * The congestion_controller interface decides how many packets the windowed
+ * UDP sender (window_transport) may have in flight, growing the window while the
+ * path keeps up and shrinking it when packets are lost or queues build up.
+ *
+ * A controller belongs to a single transfer. The sender also never exceeds the
+ * window the receiver advertises or its own window.size limit.
+ *
+ * Available controllers (selected with -Dwindow.congestion):
+ *  - "aimd":  Slow start, then additive increase / multiplicative decrease on loss (TCP Reno style).
+ *  - "delay": Delay-based (TCP Vegas style): backs off when the RTT grows above the
+ *             lowest one seen, before queues overflow and packets are dropped.
+ */
+public interface congestion_controller {
+
+    /**
+     * @return The number of packets that may be in flight.
+     */
+    int window();
+
+    /**
+     * Grows the window for packets the receiver acknowledged.
+     *
+     * @param acked    Number of packets newly acknowledged.
+     * @param rttNanos Round-trip time measured from this ACK, or -1 if it couldn't be sampled.
+     */
+    void onAck(int acked, long rttNanos);
+
+    /**
+     * Shrinks the window after a loss detected from duplicate ACKs. Losses of packets
+     * sent before the last reduction belong to the same congestion event and are ignored.
+     *
+     * @param seq     The lost packet.
+     * @param highest The next packet number to be sent.
+     */
+    void onLoss(int seq, int highest);
+
+    /**
+     * Collapses the window after a retransmission timeout.
+     */
+    void onTimeout();
+
+    /**
+     * Creates a controller by name.
+     *
+     * @param name      "aimd" or "delay".
+     * @param maxWindow Largest window the sender allows.
+     * @return The controller.
+     * @throws IllegalArgumentException If the name is not a known controller.
+     */
+    static congestion_controller create(String name, int maxWindow) {
+        switch (name.toLowerCase()) {
+            case "aimd":
+            case "reno":
+                return new aimd_controller(maxWindow);
+            case "delay":
+            case "vegas":
+                return new delay_controller(maxWindow);
+            default:
+                throw new IllegalArgumentException("Unknown congestion controller: " + name);
+        }
+    }
+
+}
@@ -0,0 +1,204 @@
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The connection_engine class accepts client connections on a port and services each
+ * connection on its own worker, so one slow client or one long transfer no longer blocks
+ * every other client waiting in the accept loop.
+ *
+ * At most <maxConnections> connections are serviced at the same time. When the limit is
+ * reached the accept loop stops calling accept() until a worker frees up, so new clients
+ * wait in the listen backlog instead of piling up threads (backpressure).
+ *
+ * Connections are accepted through a ServerSocketChannel, so every socket handed to
+ * the handler has a channel that channel_io can use for zero-copy transfers.
+ *
+ * Settings (system properties, prefixed with the name passed to the constructor):
+ *  - <name>.maxConnections: Maximum number of concurrently serviced connections (default 64).
+ *  - <name>.backlog:        Listen backlog for connections waiting to be accepted (default 128).
+ *  - <name>.drainTimeout:   Milliseconds to wait for in-flight transfers on shutdown (default 30000).
+ *  - <name>.virtualThreads: Use one virtual thread per connection when the JVM supports it (default false).
+ */
+public class connection_engine {
+
+    /**
+     * Services a single accepted connection. The engine closes the socket once
+     * the handler returns.
+     */
+    public interface handler {
+        void handle(Socket clientSocket) throws IOException;
+    }
+
+    private final String name;
+    private final int port;
+    private final handler connectionHandler;
+    private final int maxConnections;
+    private final int backlog;
+    private final long drainTimeout;
+
+    // Limits the number of connections being serviced at once
+    private final Semaphore permits;
+    private final ExecutorService executor;
+    private final AtomicInteger active = new AtomicInteger();
+
+    private volatile ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+
+    /**
+     * Creates an engine for the given port. Nothing is bound until serve() is called.
+     *
+     * @param name              Name used for thread names and as the settings prefix (e.g. "cache").
+     * @param port              The port to accept connections on.
+     * @param connectionHandler The handler that services each accepted connection.
+     */
+    public connection_engine(String name, int port, handler connectionHandler) {
+        this.name = name;
+        this.port = port;
+        this.connectionHandler = connectionHandler;
+        this.maxConnections = Math.max(1, Integer.getInteger(name + ".maxConnections", 64));
+        this.backlog = Integer.getInteger(name + ".backlog", 128);
+        this.drainTimeout = Long.getLong(name + ".drainTimeout", 30000L);
+        this.permits = new Semaphore(maxConnections);
+        this.executor = createExecutor();
+    }
+
+    /**
+     * Binds the port and runs the accept loop until shutdown() is called.
+     *
+     * @throws IOException If the port cannot be bound.
+     */
+    public void serve() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), backlog);
+        System.out.println(name + " accepting up to " + maxConnections + " concurrent connections");
+
+        while (running) {
+            // Wait for a free slot before accepting, leaving extra clients in the backlog
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            Socket clientSocket;
+            try {
+                clientSocket = serverChannel.accept().socket();
+                // Replies go out in small pieces (header, then body); Nagle would hold the
+                // later pieces back until the client's delayed ACK
+                clientSocket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                permits.release();
+                if (!running)
+                    break; // Socket was closed by shutdown()
+                System.err.println("Error accepting connection: " + e.getMessage());
+                continue;
+            }
+
+            try {
+                executor.execute(() -> service(clientSocket));
+            } catch (RejectedExecutionException e) {
+                // Executor is shutting down, refuse the connection
+                permits.release();
+                closeQuietly(clientSocket);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting new connections and waits up to the drain timeout for
+     * in-flight transfers to finish before interrupting them.
+     */
+    public void shutdown() {
+        if (!running)
+            return;
+        running = false;
+
+        System.out.println(name + " shutting down, draining " + activeConnections() + " connection(s)");
+        try {
+            if (serverChannel != null)
+                serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing server socket: " + e.getMessage());
+        }
+
+        // Let idle persistent sessions end instead of waiting out their timeout
+        session_protocol.drain();
+
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(drainTimeout, TimeUnit.MILLISECONDS)) {
+                System.err.println(name + " drain timeout reached, aborting remaining transfers.");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Registers a JVM shutdown hook that drains the engine on Ctrl-C or SIGTERM.
+     */
+    public void shutdownOnExit() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, name + "-shutdown"));
+    }
+
+    /**
+     * @return The number of connections currently being serviced.
+     */
+    public int activeConnections() {
+        return active.get();
+    }
+
+    // Runs the handler for one connection and always frees its slot afterwards
+    private void service(Socket clientSocket) {
+        active.incrementAndGet();
+        try {
+            connectionHandler.handle(clientSocket);
+        } catch (IOException e) {
+            System.err.println("Error processing client request: " + e.getMessage());
+        } catch (RuntimeException e) {
+            System.err.println("Unexpected error processing client request: " + e);
+        } finally {
+            closeQuietly(clientSocket);
+            active.decrementAndGet();
+            permits.release();
+        }
+    }
+
+    // Virtual threads when requested and available (JDK 21+), otherwise a fixed platform pool
+    private ExecutorService createExecutor() {
+        if (Boolean.getBoolean(name + ".virtualThreads")) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads not available, using platform threads.");
+            }
+        }
+
+        ThreadFactory threads = new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                return new Thread(r, name + "-worker-" + (++count));
+            }
+        };
+        return Executors.newFixedThreadPool(maxConnections, threads);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to do with a socket we failed to close
+        }
+    }
+
+}
@@ -0,0 +1,195 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The connection_pool class keeps established session connections (see
+ * session_protocol) open between requests, so repeated get/put requests to the
+ * same server reuse one TCP connection instead of opening a new one each time.
+ *
+ * With -Dtransport.compression=deflate every new connection also offers compressed
+ * replies (see deflate_codec), in the same round trip as the handshake.
+ *
+ * Settings (system properties):
+ *  - transport.keepAlive: Milliseconds an idle connection is kept for reuse (default 30000).
+ *  - transport.maxIdle:   Maximum idle connections kept per server (default 8).
+ */
+public class connection_pool {
+
+    // How often a request found an idle connection to reuse, and how many had to be opened
+    static final LongAdder REUSED = metrics.counter("tcp.connections.reused");
+    static final LongAdder OPENED = metrics.counter("tcp.connections.opened");
+
+    /**
+     * A session connection to one server.
+     */
+    public static class connection {
+        public final String key;
+        public final Socket socket;
+        public final DataInputStream in;
+        public final DataOutputStream out;
+
+        // True if this connection was used before the current request
+        boolean reused = false;
+
+        // True once the current request has received a response header
+        boolean responded = false;
+
+        long lastUsed;
+
+        connection(String key, Socket socket) throws IOException {
+            this.key = key;
+            this.socket = socket;
+            this.in = new DataInputStream(socket.getInputStream());
+            this.out = new DataOutputStream(socket.getOutputStream());
+        }
+
+        /**
+         * Reads the next response header, marking the request as answered.
+         *
+         * @return The header; the body follows in the stream.
+         * @throws IOException If the connection fails or closes.
+         */
+        public session_protocol.header readHeader() throws IOException {
+            session_protocol.header header = session_protocol.readHeader(in);
+            responded = true;
+            return header;
+        }
+    }
+
+    private final long keepAlive;
+    private final int maxIdle;
+
+    // Idle connections per "host:port", most recently used last
+    private final Map<String, ArrayDeque<connection>> idle = new HashMap<>();
+
+    /**
+     * @param keepAlive Milliseconds an idle connection is kept for reuse.
+     * @param maxIdle   Maximum idle connections kept per server.
+     */
+    public connection_pool(long keepAlive, int maxIdle) {
+        this.keepAlive = keepAlive;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Creates a pool using the transport.* system properties.
+     *
+     * @return The pool.
+     */
+    public static connection_pool fromSettings() {
+        return new connection_pool(
+                Long.getLong("transport.keepAlive", 30000L),
+                Integer.getInteger("transport.maxIdle", 8));
+    }
+
+    /**
+     * Returns an idle connection to the server, or opens a new one.
+     *
+     * @param host The server's host.
+     * @param port The server's port.
+     * @return A connection in session mode, ready for a request.
+     * @throws IOException If a new connection can't be established.
+     */
+    public connection acquire(String host, int port) throws IOException {
+        String key = host + ":" + port;
+        long now = System.currentTimeMillis();
+
+        synchronized (idle) {
+            ArrayDeque<connection> connections = idle.get(key);
+            while (connections != null && !connections.isEmpty()) {
+                connection conn = connections.pollLast();
+                if (now - conn.lastUsed <= keepAlive && !conn.socket.isClosed()) {
+                    conn.reused = true;
+                    conn.responded = false;
+                    REUSED.increment();
+                    return conn;
+                }
+                close(conn); // Expired, the server has probably dropped it already
+            }
+        }
+        return open(host, port);
+    }
+
+    /**
+     * Opens a new connection to the server and starts a session on it, offering
+     * compressed replies if they are enabled.
+     *
+     * @param host The server's host.
+     * @param port The server's port.
+     * @return A connection in session mode, ready for a request.
+     * @throws IOException If the connection or handshake fails.
+     */
+    public connection open(String host, int port) throws IOException {
+        Socket socket = channel_io.connect(host, port);
+        socket.setTcpNoDelay(true);
+        OPENED.increment();
+        connection conn = new connection(host + ":" + port, socket);
+        try {
+            conn.out.writeUTF(session_protocol.HANDSHAKE);
+            if (deflate_codec.ENABLED)
+                conn.out.writeUTF(session_protocol.ENCODING + " " + deflate_codec.NAME);
+            conn.out.flush();
+            session_protocol.header header = session_protocol.readHeader(conn.in);
+            if (header.status != session_protocol.OK)
+                throw new IOException("Server refused session: " + header.message);
+
+            // Whatever the answer, replies say whether they are compressed; servers that
+            // don't know the command answer ERROR and keep sending files as they are
+            if (deflate_codec.ENABLED)
+                session_protocol.readHeader(conn.in);
+        } catch (IOException e) {
+            close(conn);
+            throw e;
+        }
+        return conn;
+    }
+
+    /**
+     * Returns a connection whose request completed cleanly, so it can be reused.
+     *
+     * @param conn The connection.
+     */
+    public void release(connection conn) {
+        conn.lastUsed = System.currentTimeMillis();
+        synchronized (idle) {
+            ArrayDeque<connection> connections = idle.computeIfAbsent(conn.key, k -> new ArrayDeque<>());
+            if (connections.size() < maxIdle) {
+                connections.addLast(conn);
+                return;
+            }
+        }
+        close(conn);
+    }
+
+    /**
+     * Closes a connection that failed or is in an unknown state.
+     *
+     * @param conn The connection.
+     */
+    public void discard(connection conn) {
+        close(conn);
+    }
+
+    /**
+     * Closes all idle connections.
+     */
+    public void closeAll() {
+        synchronized (idle) {
+            for (ArrayDeque<connection> connections : idle.values())
+                for (connection conn : connections)
+                    close(conn);
+            idle.clear();
+        }
+    }
+
+    private static void close(connection conn) {
+        try {
+            conn.socket.close();
+        } catch (IOException e) {
+            // Nothing left to do with a socket we failed to close
+        }
+    }
+
+}
@@ -0,0 +1,359 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.*;
+
+/**
+ * The deflate_codec class implements the optional compressed encoding of session
+ * downloads (see session_protocol). A client that wants compressed bodies sends
+ * "encoding deflate" once per session; the server or cache answers OK with the
+ * encoding it will use ("deflate", or "identity"), and older peers that don't know
+ * the command answer ERROR, which means identity too.
+ *
+ * On a deflate session, a whole-file get or getif may be answered with status
+ * DEFLATED instead of OK. The body is then the file's encoded form:
+ *
+ *   long fileSize | frames: int rawLength | int storedLength | <storedLength> bytes
+ *
+ * Each frame holds the next CHUNK_SIZE bytes of the file (fewer for the last),
+ * deflated on their own if the stored length is below the raw length and as they
+ * are otherwise, so parts that don't compress cost 8 bytes a chunk instead of
+ * growing, and the receiver decodes in a fixed buffer as the frames arrive.
+ *
+ * The encoded form of a content is made once and kept next to its blob (see
+ * blob_store), which deletes it with the blob; replies send it from disk like the
+ * file itself, zero-copy, without compressing anything per request. A file whose
+ * form isn't ready yet goes out as it is while the form is made in the background.
+ * Files below transport.compressionMin, and files that don't shrink by at least an
+ * eighth, get an empty form, which means they are always sent as they are.
+ *
+ * Ranges are never encoded, so offsets always count file bytes; this includes the
+ * chunks of parallel transfers (see parallel_transfer). Uploads aren't encoded either.
+ *
+ * Only Deflate is offered, since it is the codec the JDK ships; level 1, the default,
+ * trades ratio for speed the way LZ4 would. snw_transport uses the same setting and
+ * level to deflate its packets (see there).
+ *
+ * Settings (system properties):
+ *  - transport.compression:      "deflate" to ask for compressed downloads and to compress SNW
+ *                                transfers (default "none"). Servers and caches accept either way.
+ *  - transport.compressionLevel: Deflate level, 1 (fastest) to 9 (smallest) (default 1).
+ *  - transport.compressionMin:   Smallest file worth compressing, in bytes (default 1024).
+ */
+public class deflate_codec {
+
+    // Encoding names of the "encoding" command
+    static final String NAME = "deflate";
+    static final String IDENTITY = "identity";
+
+    static final boolean ENABLED = NAME.equalsIgnoreCase(System.getProperty("transport.compression", "none"));
+    static final int LEVEL = Math.max(1, Math.min(9, Integer.getInteger("transport.compressionLevel", 1)));
+    static final long MIN_SIZE = Long.getLong("transport.compressionMin", 1024);
+
+    // File bytes per frame
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    // Largest frame a decoder accepts, so a corrupt length can't make it allocate without bound
+    private static final int MAX_FRAME = 1 << 20;
+
+    // Replies sent encoded and the bytes that saved, forms made and files not worth it
+    static final LongAdder REPLIES = metrics.counter("compression.replies");
+    static final LongAdder BYTES_SAVED = metrics.counter("compression.bytes.saved");
+    static final LongAdder FORMS_MADE = metrics.counter("compression.forms.made");
+    static final LongAdder FORMS_SKIPPED = metrics.counter("compression.forms.skipped");
+
+    // Makes forms one at a time, so compressing never competes with serving for more than one core
+    private static final ExecutorService compressor = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "compressor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Forms queued or being made
+    private static final Set<File> making = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param offered The encodings a client offered, e.g. "deflate" or "deflate,identity".
+     * @return True if deflate is among them.
+     */
+    static boolean accepts(String offered) {
+        for (String encoding : offered.split(","))
+            if (encoding.trim().equalsIgnoreCase(NAME))
+                return true;
+        return false;
+    }
+
+    /**
+     * Returns the encoded form of a stored content if it is worth sending, and starts
+     * making it in the background the first time it is asked for.
+     *
+     * @param blobs    The store holding the content.
+     * @param checksum The content's checksum, or null if it isn't known.
+     * @return The form, or null if the file is to be sent as it is (for now).
+     */
+    static File formOf(blob_store blobs, String checksum) {
+        if (checksum == null)
+            return null;
+        File form = blobs.compressedOf(checksum);
+        long length = form.length();
+        if (length > 0) {
+            File blob = blobs.find(checksum);
+            if (blob == null)
+                return null;
+            REPLIES.increment();
+            BYTES_SAVED.add(Math.max(0, blob.length() - length));
+            return form;
+        }
+        if (form.exists())
+            return null; // Not worth compressing
+
+        File blob = blobs.find(checksum);
+        if (blob != null && making.add(form)) {
+            compressor.execute(() -> {
+                try {
+                    if (encode(blob, form))
+                        FORMS_MADE.increment();
+                    else
+                        FORMS_SKIPPED.increment();
+                    // The blob may have been deleted meanwhile, leaving nothing to delete the form with it
+                    if (blobs.find(checksum) == null)
+                        form.delete();
+                } catch (IOException e) {
+                    System.err.println("Error compressing " + blob.getName() + ": " + e.getMessage());
+                } finally {
+                    making.remove(form);
+                }
+            });
+        }
+        return null;
+    }
+
+    /**
+     * Writes the encoded form of a file, or an empty file if the file is too small or
+     * doesn't compress well enough. The form appears in one atomic rename.
+     *
+     * @param file The file to encode.
+     * @param form Where to write its form.
+     * @return True if the form holds the encoded file, false if it was left empty.
+     * @throws IOException If the file can't be read or the form can't be written.
+     */
+    static boolean encode(File file, File form) throws IOException {
+        File temporary = new File(form.getParentFile(), "." + form.getName() + "." + System.nanoTime());
+        boolean worth = false;
+        try {
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), CHUNK_SIZE))) {
+                long size = in.size();
+                if (size >= MIN_SIZE) {
+                    out.writeLong(size);
+                    encodeFrames(in, size, out);
+                    out.flush();
+                    worth = temporary.length() <= size - size / 8;
+                }
+            }
+            if (!worth)
+                new FileOutputStream(temporary).close(); // Empty: send the file as it is
+            Files.move(temporary.toPath(), form.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            temporary.delete();
+        }
+        return worth;
+    }
+
+    // Writes a frame for every CHUNK_SIZE bytes of the file
+    private static void encodeFrames(FileChannel in, long size, DataOutputStream out) throws IOException {
+        byte[] raw = new byte[CHUNK_SIZE];
+        byte[] deflated = new byte[CHUNK_SIZE];
+        Deflater deflater = new Deflater(LEVEL, true);
+        try {
+            for (long position = 0; position < size; ) {
+                int length = (int) Math.min(CHUNK_SIZE, size - position);
+                ByteBuffer chunk = ByteBuffer.wrap(raw, 0, length);
+                while (chunk.hasRemaining()) {
+                    if (in.read(chunk, position + chunk.position()) < 0)
+                        throw new EOFException("File shrank while compressing");
+                }
+                position += length;
+
+                // Stored as it is unless deflating makes it smaller
+                int stored = deflate(deflater, raw, length, deflated, length - 1);
+                out.writeInt(length);
+                out.writeInt(stored < 0 ? length : stored);
+                out.write(stored < 0 ? raw : deflated, 0, stored < 0 ? length : stored);
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Deflates a chunk on its own, if it fits the room given.
+     *
+     * @param deflater A raw (nowrap) deflater, reset here.
+     * @param raw      The chunk, from index 0.
+     * @param length   The chunk's length.
+     * @param target   Receives the deflated chunk.
+     * @param limit    The most deflated bytes wanted; target must hold that many.
+     * @return The deflated length, or -1 if the chunk doesn't deflate into limit bytes
+     *         (target then holds nothing useful).
+     */
+    static int deflate(Deflater deflater, byte[] raw, int length, byte[] target, int limit) {
+        deflater.reset();
+        deflater.setInput(raw, 0, length);
+        deflater.finish();
+        int stored = 0;
+        while (!deflater.finished() && stored < limit)
+            stored += deflater.deflate(target, stored, limit - stored);
+        return deflater.finished() ? stored : -1;
+    }
+
+    /**
+     * Sends an encoded form as a DEFLATED session reply.
+     *
+     * @param form    A form returned by formOf().
+     * @param dos     The session's output stream.
+     * @param socket  The connection.
+     * @param message The reply's message.
+     * @return The number of body bytes sent, or -1, with nothing sent, if the form was
+     *         deleted with its blob in the meantime.
+     * @throws IOException If the connection fails.
+     */
+    static long send(File form, DataOutputStream dos, Socket socket, String message) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(form.toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+        try (channel) {
+            long size = channel.size();
+            session_protocol.writeHeader(dos, session_protocol.DEFLATED, message, size);
+            channel_io.sendRange(channel, 0, size, dos, socket);
+            return size;
+        }
+    }
+
+    /**
+     * Reads the body of a DEFLATED reply from a connection and hands out the file's
+     * bytes, one frame at a time.
+     */
+    static class decoder implements ReadableByteChannel {
+
+        private final DataInputStream in;
+        private final long encodedLength;
+        private final long size;
+        private final Inflater inflater = new Inflater(true);
+
+        // The current frame as received, and decoded
+        private byte[] stored = new byte[CHUNK_SIZE];
+        private byte[] chunk = new byte[CHUNK_SIZE];
+        private int chunkPosition = 0;
+        private int chunkLength = 0;
+
+        // Body bytes read so far, and file bytes handed out
+        private long consumed;
+        private long produced = 0;
+
+        /**
+         * Reads the file size at the start of the body.
+         *
+         * @param in            The connection's input stream, positioned at the body.
+         * @param encodedLength The body's length from the reply header.
+         * @throws IOException If the connection fails.
+         */
+        decoder(DataInputStream in, long encodedLength) throws IOException {
+            this.in = in;
+            this.encodedLength = encodedLength;
+            this.size = in.readLong();
+            this.consumed = 8;
+            if (size < 0 || encodedLength < 8)
+                throw new IOException("Invalid compressed body.");
+        }
+
+        /**
+         * @return The size of the file the body encodes.
+         */
+        long size() {
+            return size;
+        }
+
+        @Override
+        public int read(ByteBuffer target) throws IOException {
+            if (chunkPosition == chunkLength && !nextFrame())
+                return -1;
+            int n = Math.min(target.remaining(), chunkLength - chunkPosition);
+            target.put(chunk, chunkPosition, n);
+            chunkPosition += n;
+            produced += n;
+            return n;
+        }
+
+        /**
+         * Checks that the frames ended where the body does, so the connection is in
+         * step for the next request.
+         *
+         * @throws IOException If the body held more or less than the file.
+         */
+        void finish() throws IOException {
+            inflater.end();
+            if (produced != size || consumed != encodedLength || chunkPosition != chunkLength)
+                throw new IOException("Compressed body doesn't match its length.");
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            inflater.end();
+        }
+
+        // Reads and decodes the next frame; false at the end of the body
+        private boolean nextFrame() throws IOException {
+            if (consumed >= encodedLength)
+                return false;
+            int rawLength = in.readInt();
+            int storedLength = in.readInt();
+            if (rawLength <= 0 || rawLength > MAX_FRAME || storedLength <= 0 || storedLength > rawLength
+                    || consumed + 8 + storedLength > encodedLength)
+                throw new IOException("Invalid compressed frame.");
+            if (chunk.length < rawLength) {
+                chunk = new byte[rawLength];
+                stored = new byte[rawLength];
+            }
+
+            if (storedLength == rawLength) {
+                in.readFully(chunk, 0, rawLength);
+            } else {
+                in.readFully(stored, 0, storedLength);
+                inflater.reset();
+                inflater.setInput(stored, 0, storedLength);
+                try {
+                    int inflated = 0;
+                    while (inflated < rawLength && !inflater.finished()) {
+                        int n = inflater.inflate(chunk, inflated, rawLength - inflated);
+                        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                            break;
+                        inflated += n;
+                    }
+                    if (inflated != rawLength || !inflater.finished())
+                        throw new IOException("Invalid compressed frame.");
+                } catch (DataFormatException e) {
+                    throw new IOException("Invalid compressed frame: " + e.getMessage());
+                }
+            }
+            consumed += 8 + storedLength;
+            chunkPosition = 0;
+            chunkLength = rawLength;
+            return true;
+        }
+    }
+
+}
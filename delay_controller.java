@@ -0,0 +1,63 @@
+/**
+ * Delay-based congestion control in the style of TCP Vegas. The lowest RTT seen
+ * is taken as the empty-queue round trip; the difference between the expected
+ * rate (cwnd / baseRtt) and the actual rate (cwnd / rtt) estimates how many of
+ * our packets are sitting in queues along the path. Once per round trip the
+ * window grows by one packet while fewer than ALPHA are queued and shrinks by one
+ * when more than BETA are, so the sender settles before the bottleneck starts
+ * dropping packets. Losses and timeouts are handled like aimd_controller.
+ */
+public class delay_controller extends aimd_controller {
+
+    // Target range of our own packets queued in the network
+    static final double ALPHA = 2;
+    static final double BETA = 4;
+
+    // Slow start ends once this many packets are queued
+    static final double GAMMA = 1;
+
+    private long baseRtt = Long.MAX_VALUE;
+
+    // Smallest RTT seen during the current round trip, and how many ACKs remain in it
+    private long roundMinRtt = Long.MAX_VALUE;
+    private double roundAcks = 0;
+
+    public delay_controller(int maxWindow) {
+        super(maxWindow);
+    }
+
+    @Override
+    public void onAck(int acked, long rttNanos) {
+        if (rttNanos > 0) {
+            baseRtt = Math.min(baseRtt, rttNanos);
+            roundMinRtt = Math.min(roundMinRtt, rttNanos);
+        }
+
+        roundAcks -= acked;
+        if (roundAcks > 0)
+            return;
+
+        // A full window was acknowledged: adjust once for this round trip
+        if (roundMinRtt != Long.MAX_VALUE) {
+            double queued = cwnd * (roundMinRtt - baseRtt) / (double) roundMinRtt;
+            if (cwnd < ssthresh) {
+                if (queued > GAMMA)
+                    ssthresh = cwnd;            // Leave slow start before queues build up
+                else
+                    super.onAck((int) Math.ceil(cwnd), rttNanos);
+            } else if (queued < ALPHA) {
+                cwnd += 1;
+            } else if (queued > BETA) {
+                cwnd = Math.max(2, cwnd - 1);
+            }
+        } else {
+            // No RTT samples this round, fall back to loss-based growth
+            super.onAck((int) Math.ceil(cwnd), rttNanos);
+        }
+
+        cwnd = Math.min(cwnd, maxWindow);
+        roundAcks = cwnd;
+        roundMinRtt = Long.MAX_VALUE;
+    }
+
+}
@@ -0,0 +1,68 @@
+/**
+ * The eviction_policy interface decides which cached file to drop when the
+ * cache index goes over its byte or entry budget.
+ *
+ * Policies only track file names; the cache_index owns sizes and budgets and
+ * calls victim() repeatedly until the cache fits again.
+ *
+ * Available policies (selected with -Dcache.policy):
+ *  - "lru":     Evicts the least recently used file.
+ *  - "lfu":     Evicts the least frequently used file (oldest first on ties).
+ *  - "tinylfu": W-TinyLFU, a small LRU window in front of a segmented LRU main
+ *               area, with a frequency sketch deciding which entries are admitted.
+ */
+public interface eviction_policy {
+
+    /**
+     * Records a lookup of the given file, whether or not it was cached.
+     *
+     * @param key The file name that was requested.
+     * @param hit True if the file is currently cached.
+     */
+    void recordAccess(String key, boolean hit);
+
+    /**
+     * Starts tracking a file that was just added to the cache.
+     *
+     * @param key The file name.
+     */
+    void onInsert(String key);
+
+    /**
+     * Stops tracking a file that was evicted or removed from the cache.
+     *
+     * @param key The file name.
+     */
+    void onRemove(String key);
+
+    /**
+     * Chooses the next file to evict. The policy keeps tracking the file
+     * until onRemove() is called for it.
+     *
+     * @return The file name to evict, or null if nothing is tracked.
+     */
+    String victim();
+
+    /**
+     * Creates a policy by name.
+     *
+     * @param name       "lru", "lfu" or "tinylfu".
+     * @param maxEntries Expected maximum number of cached files, used to size frequency sketches.
+     * @return The policy.
+     * @throws IllegalArgumentException If the name is not a known policy.
+     */
+    static eviction_policy create(String name, int maxEntries) {
+        switch (name.toLowerCase()) {
+            case "lru":
+                return new lru_policy();
+            case "lfu":
+                return new lfu_policy();
+            case "tinylfu":
+            case "w-tinylfu":
+                return new tinylfu_policy(maxEntries);
+            default:
+                throw new IllegalArgumentException("Unknown eviction policy: " + name);
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+/**
+ * A count-min sketch that estimates how often each key has been requested
+ * recently, using a fixed amount of memory regardless of how many distinct
+ * keys are seen.
+ *
+ * Counters saturate at 15 and are all halved after every 10 * width
+ * increments, so old popularity fades and the sketch follows changes in
+ * the workload.
+ */
+public class frequency_sketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+
+    // Seeds for the per-row hash functions
+    private static final int[] SEEDS = { 0x97cb3127, 0xb8a9a4f1, 0x4f6b5a39, 0xd3ab1e5d };
+
+    private final int[][] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /**
+     * @param expectedKeys Approximate number of keys the sketch should track accurately.
+     */
+    public frequency_sketch(int expectedKeys) {
+        int width = Integer.highestOneBit(Math.max(64, Math.min(expectedKeys, 1 << 24)) - 1) << 1;
+        this.table = new int[DEPTH][width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    /**
+     * Records one occurrence of the key.
+     *
+     * @param key The key that was requested.
+     */
+    public void increment(String key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+
+        for (int i = 0; i < DEPTH; i++) {
+            int index = indexOf(hash, i);
+            if (table[i][index] < MAX_COUNT) {
+                table[i][index]++;
+                added = true;
+            }
+        }
+
+        // Periodically age all counters so the estimate reflects recent traffic
+        if (added && ++additions >= sampleSize)
+            reset();
+    }
+
+    /**
+     * Estimates how often the key has been requested recently.
+     *
+     * @param key The key to look up.
+     * @return The estimated count, between 0 and 15.
+     */
+    public int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++)
+            min = Math.min(min, table[i][indexOf(hash, i)]);
+        return min;
+    }
+
+    // Halves every counter
+    private void reset() {
+        for (int[] row : table)
+            for (int i = 0; i < row.length; i++)
+                row[i] >>>= 1;
+        additions = 0;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 17;
+        hash *= 0xed5ad4bb;
+        hash ^= hash >>> 11;
+        return hash;
+    }
+
+}
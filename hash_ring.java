@@ -0,0 +1,114 @@
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+
+/**
+ * The hash_ring class places keys on nodes by consistent hashing. Every node is
+ * hashed onto a ring of 64-bit positions at many points (virtual nodes), and a key
+ * belongs to the first node found going clockwise from the key's own position.
+ *
+ * When a node joins or leaves, only the keys between its points and the points
+ * before them move, about 1/n of all keys, instead of nearly all of them as with
+ * hash-mod-n placement. The virtual nodes spread each node's share of the ring
+ * over many small arcs, which evens out the load and hands a leaving node's keys
+ * to all remaining nodes instead of only to its neighbour.
+ *
+ * @param <T> The node type; its toString() names the node and must be unique.
+ */
+public class hash_ring<T> {
+
+    private final int virtualNodes;
+
+    // Position on the ring -> node
+    private final TreeMap<Long, T> ring = new TreeMap<>();
+    private final Set<T> nodes = new LinkedHashSet<>();
+
+    /**
+     * @param virtualNodes Points each node gets on the ring.
+     */
+    public hash_ring(int virtualNodes) {
+        this.virtualNodes = Math.max(1, virtualNodes);
+    }
+
+    /**
+     * @param node A node joining the ring.
+     */
+    public synchronized void add(T node) {
+        if (!nodes.add(node))
+            return;
+        for (int i = 0; i < virtualNodes; i++)
+            ring.put(hash(node + "#" + i), node);
+    }
+
+    /**
+     * @param node A node leaving the ring; its keys move to the nodes after its points.
+     */
+    public synchronized void remove(T node) {
+        if (!nodes.remove(node))
+            return;
+        for (int i = 0; i < virtualNodes; i++)
+            ring.remove(hash(node + "#" + i), node);
+    }
+
+    /**
+     * @return The number of nodes on the ring.
+     */
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    /**
+     * @param key A key.
+     * @return The node the key belongs to, or null if the ring is empty.
+     */
+    public synchronized T nodeFor(String key) {
+        if (ring.isEmpty())
+            return null;
+        Map.Entry<Long, T> entry = ring.ceilingEntry(hash(key));
+        return (entry != null ? entry : ring.firstEntry()).getValue();
+    }
+
+    /**
+     * @param key   A key.
+     * @param count The number of nodes wanted.
+     * @return Up to count distinct nodes in ring order from the key: the key's node
+     *         first, then the nodes that would take the key over if it left.
+     */
+    public synchronized List<T> nodesFor(String key, int count) {
+        List<T> found = new ArrayList<>();
+        if (ring.isEmpty())
+            return found;
+        count = Math.min(count, nodes.size());
+
+        // Clockwise from the key's position, wrapping around once
+        long position = hash(key);
+        for (T node : ring.tailMap(position, true).values()) {
+            if (found.size() == count)
+                return found;
+            if (!found.contains(node))
+                found.add(node);
+        }
+        for (T node : ring.headMap(position, false).values()) {
+            if (found.size() == count)
+                break;
+            if (!found.contains(node))
+                found.add(node);
+        }
+        return found;
+    }
+
+    // The first 8 bytes of the key's MD5, which spreads similar keys evenly over the ring
+    static long hash(String key) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+        long hash = 0;
+        for (int i = 0; i < 8; i++)
+            hash = (hash << 8) | (digest[i] & 0xff);
+        return hash;
+    }
+
+}
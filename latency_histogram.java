@@ -0,0 +1,122 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The latency_histogram class records durations in nanoseconds into log-linear
+ * buckets, the layout HdrHistogram uses: every power of two is split into 32
+ * equal sub-buckets, so any recorded value is known to within about 3% whether it
+ * is a 20 microsecond memory hit or a 20 second download, in a fixed 15 KB.
+ *
+ * Recording is one array increment and never allocates or locks, so it can sit on
+ * every request. Percentiles are read from a snapshot of the counts while
+ * recording goes on; a reading may miss values recorded at the same moment.
+ */
+public class latency_histogram {
+
+    // Sub-buckets per power of two, 2^SUB_BITS
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    // Enough buckets for any positive long
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param nanos A duration in nanoseconds; negative values count as 0.
+     */
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(nanos));
+        total.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * Records the time since a System.nanoTime() reading.
+     *
+     * @param startNanos When the timed work started.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return The number of recorded values.
+     */
+    public long count() {
+        return total.sum();
+    }
+
+    /**
+     * @return The mean of the recorded values in nanoseconds, or 0 if there are none.
+     */
+    public double mean() {
+        long n = total.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @return The largest recorded value in nanoseconds.
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * @param quantile The quantile, e.g. 0.99.
+     * @return The smallest bucket bound that at least this share of the recorded values
+     *         fall under, in nanoseconds; 0 if nothing was recorded.
+     */
+    public long percentile(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(highestIn(i), max());
+        }
+        return max();
+    }
+
+    /**
+     * @return "count=... mean=... p50=... p99=... p999=... max=...", times in milliseconds.
+     */
+    public String summary() {
+        return String.format("count=%d mean=%.3fms p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms",
+                count(), mean() / 1e6, percentile(0.50) / 1e6, percentile(0.99) / 1e6,
+                percentile(0.999) / 1e6, max() / 1e6);
+    }
+
+    // Values below SUB_BUCKETS get a bucket each; above, the top SUB_BITS + 1 bits pick the bucket
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    // The largest value that falls into a bucket
+    static long highestIn(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+}
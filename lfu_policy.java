@@ -0,0 +1,61 @@
+import java.util.*;
+
+/**
+ * Least-frequently-used eviction: the file with the fewest hits since it was
+ * cached is evicted first. Files with the same count are evicted oldest first.
+ */
+public class lfu_policy implements eviction_policy {
+
+    // Hit count for each cached file
+    private final Map<String, Long> counts = new HashMap<>();
+
+    // Files grouped by hit count, each group in insertion order
+    private final TreeMap<Long, LinkedHashSet<String>> buckets = new TreeMap<>();
+
+    @Override
+    public void recordAccess(String key, boolean hit) {
+        Long count = counts.get(key);
+        if (!hit || count == null)
+            return;
+
+        // Move the file up into the next frequency bucket
+        unlink(key, count);
+        counts.put(key, count + 1);
+        link(key, count + 1);
+    }
+
+    @Override
+    public void onInsert(String key) {
+        Long count = counts.get(key);
+        if (count != null)
+            unlink(key, count);
+        counts.put(key, 1L);
+        link(key, 1L);
+    }
+
+    @Override
+    public void onRemove(String key) {
+        Long count = counts.remove(key);
+        if (count != null)
+            unlink(key, count);
+    }
+
+    @Override
+    public String victim() {
+        if (buckets.isEmpty())
+            return null;
+        return buckets.firstEntry().getValue().iterator().next();
+    }
+
+    private void link(String key, long count) {
+        buckets.computeIfAbsent(count, c -> new LinkedHashSet<>()).add(key);
+    }
+
+    private void unlink(String key, long count) {
+        LinkedHashSet<String> bucket = buckets.get(count);
+        bucket.remove(key);
+        if (bucket.isEmpty())
+            buckets.remove(count);
+    }
+
+}
@@ -0,0 +1,325 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The loadgen class measures the whole system end to end. It starts a server and a
+ * cache on localhost as separate processes, fills server_fl with files of a
+ * configurable size mix, then runs client threads that get files through the cache
+ * and put files to the server for a fixed time. Keys are drawn from a Zipf
+ * distribution, so a few files are requested far more often than the rest, as real
+ * traffic is. The report gives throughput and p50/p99/p999 latency per operation.
+ * A get that races a put of the same file can fail checksum verification; it is
+ * counted as an error, as it is for a real client.
+ *
+ * For SNW/SR runs on localhost, pass udp.simLoss and udp.simDelay (see udp_endpoint)
+ * both to loadgen and, through load.jvmArgs, to the server and cache.
+ *
+ * Usage:
+ *  java loadgen [<protocol>]    "tcp" (default), "snw" or "sr"
+ *
+ * Settings (system properties):
+ *  - load.threads:    Client threads (default 8).
+ *  - load.warmup:     Milliseconds run before measuring starts (default 2000).
+ *  - load.duration:   Milliseconds measured (default 10000).
+ *  - load.files:      Distinct files (default 200).
+ *  - load.sizes:      File size mix as size:weight pairs (default "4096:60,65536:30,1048576:9,16777216:1").
+ *  - load.zipf:       Skew of key popularity (default 0.99, 0 requests every file equally).
+ *  - load.getRatio:   Fraction of operations that are gets (default 0.95).
+ *  - load.putVia:     Where puts go, "server" or "cache" (default server).
+ *  - load.serverPort: Port of the server process (default 9700).
+ *  - load.cachePort:  Port of the cache process (default 9800).
+ *  - load.jvmArgs:    Extra JVM options for the server and cache, e.g. "-Dcache.engine=nio".
+ *  - load.dir:        Working directory (default a new temporary directory, deleted afterwards).
+ */
+public class loadgen {
+
+    static final int THREADS = Integer.getInteger("load.threads", 8);
+    static final long WARMUP = Long.getLong("load.warmup", 2000);
+    static final long DURATION = Long.getLong("load.duration", 10000);
+    static final int FILES = Integer.getInteger("load.files", 200);
+    static final String SIZES = System.getProperty("load.sizes", "4096:60,65536:30,1048576:9,16777216:1");
+    static final double ZIPF = Double.parseDouble(System.getProperty("load.zipf", "0.99"));
+    static final double GET_RATIO = Double.parseDouble(System.getProperty("load.getRatio", "0.95"));
+    static final boolean PUT_VIA_CACHE = "cache".equalsIgnoreCase(System.getProperty("load.putVia", "server"));
+    static final int SERVER_PORT = Integer.getInteger("load.serverPort", 9700);
+    static final int CACHE_PORT = Integer.getInteger("load.cachePort", 9800);
+    static final String JVM_ARGS = System.getProperty("load.jvmArgs", "");
+
+    private static final String HOST = "127.0.0.1";
+
+    /**
+     * Draws key indexes 0..n-1 with probability proportional to 1/(k+1)^skew.
+     */
+    static class zipf {
+        private final double[] cumulative;
+
+        zipf(int n, double skew) {
+            cumulative = new double[n];
+            double sum = 0;
+            for (int k = 0; k < n; k++) {
+                sum += 1 / Math.pow(k + 1, skew);
+                cumulative[k] = sum;
+            }
+            for (int k = 0; k < n; k++)
+                cumulative[k] /= sum;
+        }
+
+        int next(Random random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min(cumulative.length - 1, index >= 0 ? index : -index - 1);
+        }
+    }
+
+    /**
+     * Latencies of one operation type, in nanoseconds.
+     */
+    static class samples {
+        private long[] values = new long[1024];
+        private int size;
+        long bytes;
+        long errors;
+
+        void add(long nanos, long transferred) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = nanos;
+            bytes += transferred;
+        }
+
+        void addAll(samples other) {
+            for (int i = 0; i < other.size; i++)
+                add(other.values[i], 0);
+            bytes += other.bytes;
+            errors += other.errors;
+        }
+
+        // The latency below which the given fraction of samples fall, in milliseconds
+        double percentile(double fraction) {
+            if (size == 0)
+                return 0;
+            int index = (int) Math.min(size - 1, Math.ceil(fraction * size) - 1);
+            return values[Math.max(0, index)] / 1e6;
+        }
+
+        void sort() {
+            Arrays.sort(values, 0, size);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String protocol = args.length > 0 ? args[0].toLowerCase() : "tcp";
+        if (!protocol.equals("tcp") && !protocol.equals("snw") && !protocol.equals("sr")) {
+            System.out.println("Usage: java loadgen [tcp|snw|sr]");
+            return;
+        }
+
+        String dirSetting = System.getProperty("load.dir");
+        File dir = dirSetting != null ? new File(dirSetting) : Files.createTempDirectory("loadgen").toFile();
+        long[] sizes = createFiles(new File(dir, "server_fl"));
+
+        PrintStream report = System.out;
+        report.println("Starting server and cache in " + dir.getPath());
+        Process server = start(dir, "server", String.valueOf(SERVER_PORT), protocol);
+        Process cache = null;
+        try {
+            awaitPort(SERVER_PORT);
+            cache = start(dir, "cache", String.valueOf(CACHE_PORT), HOST, String.valueOf(SERVER_PORT), protocol);
+            awaitPort(CACHE_PORT);
+
+            // The transports report every transfer on the console, which would drown the report
+            PrintStream log = new PrintStream(new FileOutputStream(new File(dir, "loadgen.log")), true);
+            System.setOut(log);
+            System.setErr(log);
+
+            samples[] results = run(protocol, dir, sizes);
+            System.setOut(report);
+            print(report, protocol, results);
+        } finally {
+            System.setOut(report);
+            stop(cache);
+            stop(server);
+            if (dirSetting == null)
+                bench.deleteTree(dir);
+        }
+    }
+
+    // Writes FILES files of the configured size mix; returns each file's size
+    private static long[] createFiles(File serverDir) throws IOException {
+        serverDir.mkdirs();
+        List<long[]> mix = new ArrayList<>();
+        long totalWeight = 0;
+        for (String entry : SIZES.split(",")) {
+            String[] sizeAndWeight = entry.trim().split(":");
+            long weight = sizeAndWeight.length > 1 ? Long.parseLong(sizeAndWeight[1]) : 1;
+            mix.add(new long[] { Long.parseLong(sizeAndWeight[0]), weight });
+            totalWeight += weight;
+        }
+
+        Random random = new Random(1);
+        long[] sizes = new long[FILES];
+        for (int i = 0; i < FILES; i++) {
+            long pick = (long) (random.nextDouble() * totalWeight);
+            for (long[] sizeAndWeight : mix) {
+                pick -= sizeAndWeight[1];
+                if (pick < 0) {
+                    sizes[i] = sizeAndWeight[0];
+                    break;
+                }
+            }
+            writeRandom(new File(serverDir, name(i)), sizes[i], random);
+        }
+        return sizes;
+    }
+
+    private static String name(int key) {
+        return "key-" + key + ".bin";
+    }
+
+    private static void writeRandom(File file, long size, Random random) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (long written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+            }
+        }
+    }
+
+    // Starts a server or cache process in the working directory, logging to <class>.log
+    private static Process start(File dir, String mainClass, String... args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String option : JVM_ARGS.trim().split("\\s+"))
+            if (!option.isEmpty())
+                command.add(option);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass);
+        command.addAll(Arrays.asList(args));
+        return new ProcessBuilder(command).directory(dir).redirectErrorStream(true)
+                .redirectOutput(new File(dir, mainClass + ".log")).start();
+    }
+
+    // Waits until a process answers a session handshake on the port
+    private static void awaitPort(int port) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 15000;
+        while (true) {
+            try (Socket probe = new Socket(HOST, port)) {
+                DataOutputStream out = new DataOutputStream(probe.getOutputStream());
+                out.writeUTF(session_protocol.HANDSHAKE);
+                out.flush();
+                session_protocol.readHeader(new DataInputStream(probe.getInputStream()));
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw new IOException("Nothing answers on port " + port + ": " + e.getMessage());
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    // Asks a process to shut down cleanly, and kills it if it doesn't
+    private static void stop(Process process) throws InterruptedException {
+        if (process == null)
+            return;
+        process.destroy();
+        if (!process.waitFor(10, TimeUnit.SECONDS))
+            process.destroyForcibly();
+    }
+
+    // Runs the client threads; returns the measured gets and puts
+    private static samples[] run(String protocol, File dir, long[] sizes) throws Exception {
+        udp_endpoint endpoint = protocol.equals("tcp") ? null : udp_endpoint.open(0);
+        udp_transport udpTransport = endpoint == null ? null : udp_transport.forProtocol(protocol, endpoint);
+        zipf keys = new zipf(FILES, ZIPF);
+
+        long start = System.nanoTime();
+        long measureFrom = start + WARMUP * 1_000_000;
+        long end = measureFrom + DURATION * 1_000_000;
+
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        List<Future<samples[]>> workers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            File clientDir = new File(dir, "client_fl/t" + t);
+            File uploadDir = new File(dir, "upload/t" + t);
+            clientDir.mkdirs();
+            uploadDir.mkdirs();
+            long seed = t;
+            workers.add(threads.submit(() -> {
+                Random random = new Random(seed);
+                tcp_transport tcpTransport = new tcp_transport();
+                samples gets = new samples();
+                samples puts = new samples();
+
+                long now;
+                while ((now = System.nanoTime()) < end) {
+                    int key = keys.next(random);
+                    String fileName = name(key);
+                    boolean get = random.nextDouble() < GET_RATIO;
+                    File upload = new File(uploadDir, fileName);
+                    if (!get && !upload.exists())
+                        writeRandom(upload, sizes[key], random); // Prepared outside the timing
+
+                    long began = System.nanoTime();
+                    boolean ok;
+                    if (get) {
+                        if (udpTransport == null) {
+                            ok = tcpTransport.get(HOST, CACHE_PORT, fileName, clientDir.getPath());
+                        } else {
+                            long sessionId = endpoint.newSessionId();
+                            tcpTransport.sendCommand(HOST, CACHE_PORT, "get " + fileName + " " + endpoint.port() + " " + sessionId);
+                            ok = udpTransport.downloadFile(sessionId, fileName, clientDir.getPath());
+                        }
+                    } else if (udpTransport == null) {
+                        ok = tcpTransport.put(HOST, PUT_VIA_CACHE ? CACHE_PORT : SERVER_PORT, upload);
+                    } else {
+                        long sessionId = endpoint.newSessionId();
+                        tcpTransport.sendCommand(HOST, SERVER_PORT, "put " + fileName + " " + sessionId);
+                        udpTransport.uploadFile(HOST, SERVER_PORT, sessionId, upload, "");
+                        ok = true; // Failed UDP uploads are only reported on the console
+                    }
+                    long took = System.nanoTime() - began;
+
+                    if (now >= measureFrom) {
+                        samples target = get ? gets : puts;
+                        if (ok)
+                            target.add(took, sizes[key]);
+                        else
+                            target.errors++;
+                    }
+                }
+                return new samples[] { gets, puts };
+            }));
+        }
+
+        samples gets = new samples();
+        samples puts = new samples();
+        for (Future<samples[]> worker : workers) {
+            samples[] result = worker.get();
+            gets.addAll(result[0]);
+            puts.addAll(result[1]);
+        }
+        threads.shutdown();
+        return new samples[] { gets, puts };
+    }
+
+    private static void print(PrintStream out, String protocol, samples[] results) {
+        double seconds = DURATION / 1000.0;
+        out.printf("%s, %d threads, %.1f s measured, %d files, zipf %.2f, %.0f%% gets, puts via %s%n",
+                protocol, THREADS, seconds, FILES, ZIPF, GET_RATIO * 100, PUT_VIA_CACHE ? "cache" : "server");
+        out.printf("%-4s %9s %10s %9s %9s %9s %9s %9s %7s%n",
+                "op", "count", "ops/s", "MB/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "errors");
+        String[] names = { "get", "put" };
+        for (int i = 0; i < results.length; i++) {
+            samples s = results[i];
+            s.sort();
+            out.printf("%-4s %9d %10.1f %9.1f %9.2f %9.2f %9.2f %9.2f %7d%n",
+                    names[i], s.size, s.size / seconds, s.bytes / seconds / (1 << 20),
+                    s.percentile(0.50), s.percentile(0.99), s.percentile(0.999), s.percentile(1.0), s.errors);
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+import java.util.*;
+
+/**
+ * Least-recently-used eviction: the file that has gone the longest without
+ * being requested is evicted first.
+ */
+public class lru_policy implements eviction_policy {
+
+    // Iteration order runs from least to most recently used
+    private final LinkedHashMap<String, Boolean> order = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Override
+    public void recordAccess(String key, boolean hit) {
+        // get() on an access-ordered map moves the entry to the most recent end
+        if (hit)
+            order.get(key);
+    }
+
+    @Override
+    public void onInsert(String key) {
+        order.put(key, Boolean.TRUE);
+    }
+
+    @Override
+    public void onRemove(String key) {
+        order.remove(key);
+    }
+
+    @Override
+    public String victim() {
+        Iterator<String> it = order.keySet().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+}
@@ -0,0 +1,266 @@
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * The mapped_tier class keeps frequently requested cached files that are too
+ * large for the memory_tier mapped into memory, between the memory tier and the
+ * cache_fl disk tier. Hits served from this tier read the file's pages straight
+ * from the page cache through one shared mapping, without opening, reading or
+ * closing the file per request; concurrent requests for the same file share it.
+ *
+ * A file is mapped after it has been served from disk a few times, and unmapped
+ * in least-recently-used order when the mapped bytes go over the budget, or when
+ * the file is evicted from the disk tier or replaced. Requests lease a mapping
+ * while they send from it, and a mapping taken out of the tier is only unmapped
+ * once the last lease on it is released, so no request ever reads from memory
+ * that was unmapped under it. Unmapping uses the JDK's cleaner when it can be
+ * reached, and otherwise leaves the mapping to the garbage collector.
+ *
+ * Settings (system properties):
+ *  - cache.mappedBytes:       Maximum bytes kept mapped (default 1 GiB, 0 disables the tier).
+ *  - cache.mappedMaxObject:   Largest file that may be mapped, in bytes (default 1 GiB, at most 2 GiB - 1).
+ *  - cache.mappedPromoteHits: Disk hits needed before a file is mapped (default 2).
+ */
+public class mapped_tier {
+
+    // Number of recent disk hit counters remembered for promotion decisions
+    private static final int MAX_TRACKED_HITS = 10000;
+
+    // sun.misc.Unsafe.invokeCleaner, which unmaps a mapping at once; null if it can't be reached
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.err.println("Mapped files will be unmapped by the garbage collector: " + e);
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final long maxBytes;
+    private final long minObjectSize;
+    private final long maxObjectSize;
+    private final int promoteHits;
+
+    // Mapped files, iterated from least to most recently used
+    private final LinkedHashMap<String, mapping> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    // Files being mapped, each with its own token; remove() drops the file's token,
+    // so a file replaced while it was being mapped isn't kept, and other files' are
+    private final HashMap<String, Object> promoting = new HashMap<>();
+
+    // Disk hit counts for files not yet mapped, oldest counters dropped first
+    private final LinkedHashMap<String, Integer> diskHits = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_TRACKED_HITS;
+        }
+    };
+
+    /**
+     * One file's mapping and the number of requests sending from it.
+     */
+    private static class mapping {
+        final MappedByteBuffer buffer;
+        int leases = 0;
+        boolean retired = false;
+
+        mapping(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * A request's hold on a mapping. The mapping stays mapped until release().
+     */
+    public class lease {
+        private final mapping mapped;
+        private final ByteBuffer data;
+        private boolean released = false;
+
+        private lease(mapping mapped) {
+            this.mapped = mapped;
+            this.data = mapped.buffer.duplicate();
+        }
+
+        /**
+         * @return A buffer of the whole file, positioned at its start, for this request alone.
+         */
+        public ByteBuffer data() {
+            return data;
+        }
+
+        /**
+         * Gives the mapping back; the data must not be read afterwards. Releasing twice does nothing.
+         */
+        public void release() {
+            synchronized (mapped_tier.this) {
+                if (released)
+                    return;
+                released = true;
+                mapped.leases--;
+                if (mapped.retired && mapped.leases == 0)
+                    unmap(mapped);
+            }
+        }
+    }
+
+    /**
+     * @param maxBytes      Maximum bytes kept mapped.
+     * @param minObjectSize Files of this size or smaller are left to the memory tier.
+     * @param maxObjectSize Largest file that may be mapped.
+     * @param promoteHits   Disk hits needed before a file is mapped.
+     */
+    public mapped_tier(long maxBytes, long minObjectSize, long maxObjectSize, int promoteHits) {
+        this.maxBytes = maxBytes;
+        this.minObjectSize = minObjectSize;
+        // A single mapping can't hold more than Integer.MAX_VALUE bytes
+        this.maxObjectSize = Math.min(Math.min(maxObjectSize, maxBytes), Integer.MAX_VALUE);
+        this.promoteHits = Math.max(1, promoteHits);
+    }
+
+    /**
+     * Creates a mapped tier using the cache.mapped* system properties.
+     *
+     * @param minObjectSize The largest file the memory tier holds; only larger files are mapped.
+     * @return The mapped tier.
+     */
+    public static mapped_tier fromSettings(long minObjectSize) {
+        return new mapped_tier(
+                Long.getLong("cache.mappedBytes", 1L << 30),
+                minObjectSize,
+                Long.getLong("cache.mappedMaxObject", 1L << 30),
+                Integer.getInteger("cache.mappedPromoteHits", 2));
+    }
+
+    /**
+     * Leases the mapping of a file. Every lease must be released once the request
+     * is done with it, including when sending fails.
+     *
+     * @param fileName The cached file name.
+     * @return The lease, or null if the file isn't mapped.
+     */
+    public synchronized lease acquire(String fileName) {
+        mapping mapped = entries.get(fileName);
+        if (mapped == null)
+            return null;
+        mapped.leases++;
+        return new lease(mapped);
+    }
+
+    /**
+     * Records that a file was served from the disk tier, mapping it once it has
+     * been hit often enough and its size suits this tier.
+     *
+     * @param fileName The cached file name.
+     * @param file     The file in the disk tier.
+     */
+    public void recordDiskHit(String fileName, File file) {
+        Object token = new Object();
+        synchronized (this) {
+            if (maxObjectSize <= minObjectSize || entries.containsKey(fileName) || promoting.containsKey(fileName))
+                return;
+            int hits = diskHits.merge(fileName, 1, Integer::sum);
+            if (hits < promoteHits)
+                return;
+            diskHits.remove(fileName);
+            promoting.put(fileName, token);
+        }
+
+        try {
+            long size = file.length();
+            if (size <= minObjectSize || size > maxObjectSize)
+                return;
+
+            // Map outside the lock so other hits aren't held up; the mapping outlives the channel
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (IOException e) {
+                System.err.println("Error mapping " + fileName + ": " + e.getMessage());
+                return;
+            }
+            put(fileName, new mapping(buffer), token);
+        } finally {
+            synchronized (this) {
+                promoting.remove(fileName, token);
+            }
+        }
+    }
+
+    /**
+     * Takes a file out of the tier, e.g. after it was evicted from the disk tier
+     * or replaced. It is unmapped once no request is sending from it.
+     *
+     * @param fileName The cached file name.
+     */
+    public synchronized void remove(String fileName) {
+        promoting.remove(fileName);
+        mapping mapped = entries.remove(fileName);
+        if (mapped != null)
+            retire(mapped);
+        diskHits.remove(fileName);
+    }
+
+    /**
+     * @return The number of bytes currently mapped by the tier, not counting
+     *         mappings taken out that are still leased.
+     */
+    public synchronized long bytes() {
+        return totalBytes;
+    }
+
+    // Adds a new mapping, unless the file was removed meanwhile, and unmaps least recently used files until the tier fits
+    private synchronized void put(String fileName, mapping mapped, Object token) {
+        if (promoting.get(fileName) != token) {
+            unmap(mapped);
+            return;
+        }
+        mapping previous = entries.put(fileName, mapped);
+        if (previous != null)
+            retire(previous);
+        totalBytes += mapped.buffer.capacity();
+
+        Iterator<Map.Entry<String, mapping>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            mapping eldest = it.next().getValue();
+            it.remove();
+            retire(eldest);
+        }
+    }
+
+    // Takes a mapping out of the budget; it is unmapped now or by the last lease's release
+    private void retire(mapping mapped) {
+        totalBytes -= mapped.buffer.capacity();
+        mapped.retired = true;
+        if (mapped.leases == 0)
+            unmap(mapped);
+    }
+
+    private static void unmap(mapping mapped) {
+        if (INVOKE_CLEANER == null)
+            return;
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, mapped.buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.err.println("Error unmapping a cached file: " + e);
+        }
+    }
+
+}
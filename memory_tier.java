@@ -0,0 +1,167 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * The memory_tier class holds small, frequently requested cached files in
+ * off-heap memory, in front of the cache_fl disk tier. Hits served from this
+ * tier never open or read a file.
+ *
+ * A file is promoted from disk after it has been served from disk a few times,
+ * and demoted (dropped from memory, kept on disk) in least-recently-used order
+ * when the tier goes over its byte budget. Files evicted from the disk tier
+ * are removed here too.
+ *
+ * Settings (system properties):
+ *  - cache.memoryBytes:       Maximum bytes held in memory (default 64 MiB, 0 disables the tier).
+ *  - cache.memoryMaxObject:   Largest file that may be promoted, in bytes (default 1 MiB).
+ *  - cache.memoryPromoteHits: Disk hits needed before a file is promoted (default 2).
+ */
+public class memory_tier {
+
+    // Number of recent disk hit counters remembered for promotion decisions
+    private static final int MAX_TRACKED_HITS = 10000;
+
+    private final long maxBytes;
+    private final long maxObjectSize;
+    private final int promoteHits;
+
+    // File contents in direct buffers, iterated from least to most recently used
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    // Promotions being read, each with its own token; remove() drops the file's token,
+    // so a file replaced while it was being read isn't kept, and other files' are
+    private final HashMap<String, Object> promoting = new HashMap<>();
+
+    // Disk hit counts for files not yet promoted, oldest counters dropped first
+    private final LinkedHashMap<String, Integer> diskHits = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_TRACKED_HITS;
+        }
+    };
+
+    /**
+     * @param maxBytes      Maximum bytes held in memory.
+     * @param maxObjectSize Largest file that may be promoted.
+     * @param promoteHits   Disk hits needed before a file is promoted.
+     */
+    public memory_tier(long maxBytes, long maxObjectSize, int promoteHits) {
+        this.maxBytes = maxBytes;
+        this.maxObjectSize = Math.min(maxObjectSize, maxBytes);
+        this.promoteHits = Math.max(1, promoteHits);
+    }
+
+    /**
+     * Creates a memory tier using the cache.memory* system properties.
+     *
+     * @return The memory tier.
+     */
+    public static memory_tier fromSettings() {
+        return new memory_tier(
+                Long.getLong("cache.memoryBytes", 64L << 20),
+                Long.getLong("cache.memoryMaxObject", 1L << 20),
+                Integer.getInteger("cache.memoryPromoteHits", 2));
+    }
+
+    /**
+     * Returns the in-memory copy of a file.
+     *
+     * @param fileName The cached file name.
+     * @return A read-only buffer positioned at the start of the file, or null if not held in memory.
+     */
+    public synchronized ByteBuffer get(String fileName) {
+        ByteBuffer data = entries.get(fileName);
+        return data == null ? null : data.duplicate();
+    }
+
+    /**
+     * Records that a file was served from the disk tier, promoting it into
+     * memory once it has been hit often enough and is small enough.
+     *
+     * @param fileName The cached file name.
+     * @param file     The file in the disk tier.
+     */
+    public void recordDiskHit(String fileName, File file) {
+        Object token = new Object();
+        synchronized (this) {
+            if (maxObjectSize <= 0 || entries.containsKey(fileName) || promoting.containsKey(fileName))
+                return;
+            int hits = diskHits.merge(fileName, 1, Integer::sum);
+            if (hits < promoteHits)
+                return;
+            diskHits.remove(fileName);
+            promoting.put(fileName, token);
+        }
+
+        // Read outside the lock so other hits aren't held up by the disk
+        try {
+            long size = file.length();
+            if (size > maxObjectSize)
+                return;
+
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+                while (data.hasRemaining() && channel.read(data) >= 0) {
+                    // Keep reading until the buffer is full
+                }
+                data.flip();
+                put(fileName, data.asReadOnlyBuffer(), token);
+            } catch (IOException e) {
+                System.err.println("Error promoting " + fileName + " to memory: " + e.getMessage());
+            }
+        } finally {
+            synchronized (this) {
+                promoting.remove(fileName, token);
+            }
+        }
+    }
+
+    /**
+     * Drops a file from memory, e.g. after it was evicted from the disk tier.
+     *
+     * @param fileName The cached file name.
+     */
+    public synchronized void remove(String fileName) {
+        promoting.remove(fileName);
+        ByteBuffer data = entries.remove(fileName);
+        if (data != null)
+            totalBytes -= data.capacity();
+        diskHits.remove(fileName);
+    }
+
+    /**
+     * @return The largest file that may be promoted into memory.
+     */
+    public long maxObjectSize() {
+        return maxObjectSize;
+    }
+
+    /**
+     * @return The number of bytes currently held in memory.
+     */
+    public synchronized long bytes() {
+        return totalBytes;
+    }
+
+    // Adds a promoted file, unless it was removed meanwhile, and demotes least recently used files until the tier fits
+    private synchronized void put(String fileName, ByteBuffer data, Object token) {
+        if (promoting.get(fileName) != token)
+            return;
+        ByteBuffer previous = entries.put(fileName, data);
+        if (previous != null)
+            totalBytes -= previous.capacity();
+        totalBytes += data.capacity();
+
+        Iterator<Map.Entry<String, ByteBuffer>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, ByteBuffer> eldest = it.next();
+            totalBytes -= eldest.getValue().capacity();
+            it.remove();
+        }
+    }
+
+}
@@ -0,0 +1,212 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.management.*;
+
+/**
+ * The metrics class is the process-wide registry of counters, gauges and latency
+ * histograms. Counters are LongAdders, which spread concurrent increments over
+ * striped cells instead of contending on one value, so hot paths can count every
+ * request and byte; classes look their counters up once and keep them in static
+ * fields. Gauges are read only when a report is made.
+ *
+ * The registry is reported by the "stats" session command of the server and the
+ * cache (see session_protocol), by the client's "stats" command, and through JMX
+ * as the MBean file_exchange:type=metrics,name=<process>, where every counter,
+ * gauge and histogram percentile is a read-only attribute (jconsole shows them).
+ *
+ * Names are "<process or transport>.<what>", e.g. cache.hits or snw.retransmits;
+ * request latency histograms are named after the command, e.g. cache.get.
+ *
+ * Settings (system properties):
+ *  - metrics.jmx: Whether the server and cache register their MBean (default true).
+ */
+public class metrics {
+
+    static final boolean JMX = Boolean.parseBoolean(System.getProperty("metrics.jmx", "true"));
+
+    // Commands timed under their own name; anything else a client sends is timed as "other"
+    private static final Set<String> COMMANDS = Set.of("get", "put", "stat", "getif", "subscribe", "invalidate", "stats");
+
+    private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Supplier<Number>> gauges = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, latency_histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * @param name The counter's name.
+     * @return The counter, created at 0 the first time it is asked for.
+     */
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    /**
+     * Registers a value that is read when a report is made, e.g. a size or a ratio.
+     *
+     * @param name  The gauge's name.
+     * @param value Reads the current value; must be cheap and thread-safe.
+     */
+    public static void gauge(String name, Supplier<Number> value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * @param name The histogram's name.
+     * @return The histogram, created empty the first time it is asked for.
+     */
+    public static latency_histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new latency_histogram());
+    }
+
+    /**
+     * Records how long a request took in the "<process>.<command>" histogram.
+     *
+     * @param process    The process answering the request, e.g. "cache".
+     * @param command    The request's command line.
+     * @param startNanos When the request arrived, from System.nanoTime().
+     */
+    public static void timeRequest(String process, String command, long startNanos) {
+        int space = command.indexOf(' ');
+        String verb = space < 0 ? command : command.substring(0, space);
+        histogram(process + "." + (COMMANDS.contains(verb) ? verb : "other")).recordSince(startNanos);
+    }
+
+    /**
+     * @return One line per counter and gauge, "<name> <value>", then one line per
+     *         histogram, "<name> count=... p50=...", sorted by name.
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Object> entry : new TreeMap<>(scalars()).entrySet())
+            report.append(entry.getKey()).append(' ').append(format(entry.getValue())).append('\n');
+        for (Map.Entry<String, latency_histogram> entry : new TreeMap<>(histograms).entrySet())
+            report.append(entry.getKey()).append(' ').append(entry.getValue().summary()).append('\n');
+        return report.toString();
+    }
+
+    /**
+     * @return The report as the body of a "stats" response.
+     */
+    public static ByteBuffer reportBody() {
+        return ByteBuffer.wrap(report().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Answers a session's "stats" request with the report as the body.
+     *
+     * @param dos     The session's output stream.
+     * @param message The response message.
+     * @throws IOException If the connection fails.
+     */
+    public static void writeReport(DataOutputStream dos, String message) throws IOException {
+        ByteBuffer body = reportBody();
+        session_protocol.writeHeader(dos, session_protocol.OK, message, body.remaining());
+        dos.write(body.array(), 0, body.remaining());
+        dos.flush();
+    }
+
+    /**
+     * Registers the registry with the platform MBean server, unless metrics.jmx is false.
+     *
+     * @param process The process name, which names the MBean.
+     */
+    public static void registerMBean(String process) {
+        if (!JMX)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new mbean(),
+                    new ObjectName("file_exchange:type=metrics,name=" + process));
+        } catch (JMException e) {
+            System.err.println("Error registering metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    // Counters and gauges by name
+    private static Map<String, Object> scalars() {
+        Map<String, Object> values = new HashMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> {
+            try {
+                values.put(name, gauge.get());
+            } catch (RuntimeException e) {
+                // A gauge whose source isn't set up yet is left out
+            }
+        });
+        return values;
+    }
+
+    // Every value as a JMX attribute: scalars as they are, histograms as count and percentiles
+    private static Map<String, Object> attributes() {
+        Map<String, Object> values = new TreeMap<>(scalars());
+        histograms.forEach((name, histogram) -> {
+            values.put(name + ".count", histogram.count());
+            values.put(name + ".p50Ms", histogram.percentile(0.50) / 1e6);
+            values.put(name + ".p99Ms", histogram.percentile(0.99) / 1e6);
+            values.put(name + ".p999Ms", histogram.percentile(0.999) / 1e6);
+            values.put(name + ".maxMs", histogram.max() / 1e6);
+        });
+        return values;
+    }
+
+    private static String format(Object value) {
+        if (value instanceof Double || value instanceof Float)
+            return String.format("%.4f", ((Number) value).doubleValue());
+        return String.valueOf(value);
+    }
+
+    /**
+     * Exposes the registry as read-only attributes. New metrics appear as attributes
+     * the next time a JMX client asks for the MBean's info.
+     */
+    private static class mbean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = attributes().get(attribute);
+            if (value == null)
+                throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Object> values = attributes();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (values.containsKey(name))
+                    list.add(new Attribute(name, values.get(name)));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(action));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> infos = new ArrayList<>();
+            attributes().forEach((name, value) -> infos.add(
+                    new MBeanAttributeInfo(name, value.getClass().getName(), name, true, false, false)));
+            return new MBeanInfo(metrics.class.getName(), "File exchange metrics",
+                    infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+
+}
@@ -0,0 +1,862 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The nio_engine class is a non-blocking alternative to connection_engine for the
+ * TCP protocol. Connections are spread over a small pool of Selector event loops,
+ * and the get/put command framing and file payloads are parsed as bytes arrive,
+ * so a handful of threads can hold tens of thousands of idle or slow connections.
+ *
+ * The engine speaks the same wire format as the blocking handlers:
+ *  - get: writeUTF(command), answered by writeUTF(header), writeLong(size), file bytes, writeUTF(trailer).
+ *  - put: writeUTF(command), writeUTF(fileName), writeLong(size), file bytes, answered by writeUTF(message).
+ * and, after a "session" handshake, the framed persistent-connection protocol of session_protocol.
+ * The engine answers a session's "encoding" command itself and tells the service with
+ * every later request whether the client chose compressed replies (see deflate_codec).
+ *
+ * What to send or where to store uploads is decided by a service. Work that may block
+ * (like a cache miss going to the origin server) is completed asynchronously by the
+ * service and never runs on an event loop.
+ *
+ * Every request's latency, from its command arriving to its reply being written, is
+ * recorded in the <name>.<command> histogram (see metrics), and sampled requests are
+ * traced (see request_trace).
+ *
+ * Settings (system properties, prefixed with the name passed to the constructor):
+ *  - <name>.ioThreads:      Number of event loops (default: number of CPUs).
+ *  - <name>.maxConnections: Maximum number of open connections (default 10000).
+ *  - <name>.drainTimeout:   Milliseconds to wait for open connections on shutdown (default 30000).
+ */
+public class nio_engine {
+
+    /**
+     * Decides how the engine answers get and put commands.
+     */
+    public interface service {
+
+        /**
+         * Resolves a get command, or any other session command except put. The future
+         * may complete on any thread.
+         *
+         * @param command The client's command.
+         * @param deflate True if the session chose compressed replies, so a whole file
+         *                may be answered with a deflated() reply.
+         * @param client  The address of the client host.
+         * @return The reply to send.
+         */
+        CompletableFuture<reply> get(String command, boolean deflate, InetAddress client);
+
+        /**
+         * Chooses where an upload is stored.
+         *
+         * @param command  The client's command.
+         * @param fileName The file name sent by the client.
+         * @return The file to write, or null to refuse the upload and close the connection.
+         */
+        File putTarget(String command, String fileName);
+
+        /**
+         * Called once an upload has been fully written. The future may complete on any
+         * thread, so storing the upload can be moved off the event loop.
+         *
+         * @param command  The client's command.
+         * @param fileName The file name sent by the client.
+         * @param file     The file that was written.
+         * @param size     The number of bytes written; for a ranged put, the part's length.
+         * @return The reply to send to the client, usually a message; completes
+         *         exceptionally if the upload can't be stored.
+         */
+        CompletableFuture<reply> putComplete(String command, String fileName, File file, long size);
+    }
+
+    /**
+     * A response to a get command: an optional header message, an optional body
+     * (file or in-memory data, preceded by its size) and an optional trailer message.
+     */
+    public static class reply {
+        final byte status;
+        final String header;
+        final File file;
+        final ByteBuffer data;
+        final String trailer;
+        Runnable onComplete;
+
+        // Part of the file to send, when the command asked for a byte range
+        long rangeOffset = 0;
+        long rangeCount = -1;
+
+        private reply(byte status, String header, File file, ByteBuffer data, String trailer) {
+            this.status = status;
+            this.header = header;
+            this.file = file;
+            this.data = data;
+            this.trailer = trailer;
+        }
+
+        /** Sends a file from disk. */
+        public static reply file(String header, File file, String trailer) {
+            return new reply(session_protocol.OK, header, file, null, trailer);
+        }
+
+        /** Sends the compressed form of a file (see deflate_codec); sessions that chose deflate only. */
+        public static reply deflated(String header, File form, String trailer) {
+            return new reply(session_protocol.DEFLATED, header, form, null, trailer);
+        }
+
+        /** Sends in-memory data. */
+        public static reply data(String header, ByteBuffer data, String trailer) {
+            return new reply(session_protocol.OK, header, null, data, trailer);
+        }
+
+        /** Sends a single message and no body. */
+        public static reply message(String message) {
+            return new reply(session_protocol.OK, message, null, null, null);
+        }
+
+        /** Sends a single message saying the client's copy is still current (sessions only). */
+        public static reply notModified(String message) {
+            return new reply(session_protocol.NOT_MODIFIED, message, null, null, null);
+        }
+
+        /** Sends a single message saying the file doesn't exist. */
+        public static reply notFound(String message) {
+            return new reply(session_protocol.NOT_FOUND, message, null, null, null);
+        }
+
+        /** Sends a single message saying the request can't be served. */
+        public static reply error(String message) {
+            return new reply(session_protocol.ERROR, message, null, null, null);
+        }
+
+        /** Closes the connection without sending anything (sessions get a not-found frame). */
+        public static reply none() {
+            return new reply(session_protocol.NOT_FOUND, null, null, null, null);
+        }
+
+        /**
+         * Runs the callback once the reply was sent or the connection failed.
+         *
+         * @param callback The callback, run on an event loop.
+         * @return This reply.
+         */
+        public reply whenDone(Runnable callback) {
+            this.onComplete = callback;
+            return this;
+        }
+
+        /**
+         * Sends only part of the file (see byte_range).
+         *
+         * @param offset Where the part starts in the file.
+         * @param count  The number of bytes to send, already fitted to the file size.
+         * @return This reply.
+         */
+        public reply range(long offset, long count) {
+            this.rangeOffset = offset;
+            this.rangeCount = count;
+            return this;
+        }
+    }
+
+    // Largest chunk handed to transferTo per write attempt
+    private static final long MAX_TRANSFER = 1L << 20;
+
+    private static final String NOT_FOUND_MESSAGE = "File not found in cache or on server. Please check the file name and try again.";
+
+    // Largest command or file name the engine accepts (writeUTF's own limit)
+    private static final int MAX_UTF = 65535;
+
+    private final String name;
+    private final int port;
+    private final service service;
+    private final int maxConnections;
+    private final long drainTimeout;
+    private final event_loop[] loops;
+
+    // Limits the number of open connections; the acceptor waits for a free slot
+    private final Semaphore permits;
+    private final AtomicInteger active = new AtomicInteger();
+
+    private volatile ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+
+    /**
+     * Creates an engine for the given port. Nothing is bound until serve() is called.
+     *
+     * @param name    Name used for thread names and as the settings prefix (e.g. "server").
+     * @param port    The port to accept connections on.
+     * @param service Decides how commands are answered.
+     * @throws IOException If a selector can't be opened.
+     */
+    public nio_engine(String name, int port, service service) throws IOException {
+        this.name = name;
+        this.port = port;
+        this.service = service;
+        this.maxConnections = Math.max(1, Integer.getInteger(name + ".maxConnections", 10000));
+        this.drainTimeout = Long.getLong(name + ".drainTimeout", 30000L);
+        this.permits = new Semaphore(maxConnections);
+
+        int ioThreads = Math.max(1, Integer.getInteger(name + ".ioThreads", Runtime.getRuntime().availableProcessors()));
+        this.loops = new event_loop[ioThreads];
+        for (int i = 0; i < ioThreads; i++)
+            loops[i] = new event_loop(name + "-io-" + i);
+    }
+
+    /**
+     * Binds the port, starts the event loops and accepts connections until shutdown() is called.
+     *
+     * @throws IOException If the port cannot be bound.
+     */
+    public void serve() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        for (event_loop loop : loops)
+            loop.start();
+        System.out.println(name + " NIO engine with " + loops.length + " event loop(s), up to " + maxConnections + " connections");
+
+        int next = 0;
+        while (running) {
+            // Wait for a free slot before accepting, leaving extra clients in the backlog
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+            } catch (IOException e) {
+                permits.release();
+                if (!running)
+                    break; // Channel was closed by shutdown()
+                System.err.println("Error accepting connection: " + e.getMessage());
+                continue;
+            }
+
+            // Spread connections over the loops round-robin
+            active.incrementAndGet();
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    /**
+     * Stops accepting new connections, waits up to the drain timeout for open
+     * connections to finish and then stops the event loops.
+     */
+    public void shutdown() {
+        if (!running)
+            return;
+        running = false;
+
+        System.out.println(name + " shutting down, draining " + active.get() + " connection(s)");
+        try {
+            if (serverChannel != null)
+                serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing server socket: " + e.getMessage());
+        }
+
+        // Idle persistent sessions have nothing to drain
+        for (event_loop loop : loops)
+            loop.execute(loop::closeIdleSessions);
+
+        long deadline = System.currentTimeMillis() + drainTimeout;
+        while (active.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (active.get() > 0)
+            System.err.println(name + " drain timeout reached, aborting remaining transfers.");
+
+        for (event_loop loop : loops)
+            loop.stop();
+    }
+
+    /**
+     * Registers a JVM shutdown hook that drains the engine on Ctrl-C or SIGTERM.
+     */
+    public void shutdownOnExit() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, name + "-shutdown"));
+    }
+
+    /**
+     * @return The number of open connections.
+     */
+    public int activeConnections() {
+        return active.get();
+    }
+
+    // Encodes a message the way DataOutputStream.writeUTF does, optionally followed by a long
+    private static ByteBuffer encode(String message, Long size) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        if (message != null)
+            out.writeUTF(message);
+        if (size != null)
+            out.writeLong(size);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    // Encodes a session_protocol response frame header
+    private static ByteBuffer frame(byte status, String message, long length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(status);
+        out.writeUTF(message);
+        out.writeLong(length);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    // The file name in a "get <file>" or "put <file>" command, or null if there is none
+    private static String fileNameOf(String command) {
+        String[] parts = command.split(" ");
+        return parts.length > 1 ? parts[1] : null;
+    }
+
+    // Decodes a writeUTF string at the buffer's position, or returns null if it hasn't fully arrived
+    private static String decodeUTF(ByteBuffer in) throws IOException {
+        if (in.remaining() < 2)
+            return null;
+        int length = Short.toUnsignedInt(in.getShort(in.position()));
+        if (in.remaining() < 2 + length)
+            return null;
+
+        byte[] encoded = new byte[2 + length];
+        in.get(encoded);
+        return new DataInputStream(new ByteArrayInputStream(encoded)).readUTF();
+    }
+
+    /**
+     * A selector thread that owns a set of connections. All state of a connection is
+     * touched only from its loop; other threads hand work over with execute().
+     */
+    private class event_loop implements Runnable {
+
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean stopped = false;
+
+        // Shared by all connections of this loop for moving upload data
+        private final ByteBuffer transferBuffer = ByteBuffer.allocateDirect(channel_io.BUFFER_SIZE);
+
+        event_loop(String threadName) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, threadName);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void stop() {
+            stopped = true;
+            selector.wakeup();
+        }
+
+        // Hands a newly accepted channel to this loop
+        void register(SocketChannel channel) {
+            execute(() -> {
+                connection conn = new connection(this, channel);
+                try {
+                    conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                } catch (IOException e) {
+                    System.err.println("Error registering connection: " + e.getMessage());
+                    conn.close();
+                }
+            });
+        }
+
+        // Closes sessions that are waiting for their next request
+        void closeIdleSessions() {
+            for (SelectionKey key : selector.keys()) {
+                connection conn = (connection) key.attachment();
+                if (conn.idle())
+                    conn.close();
+            }
+        }
+
+        // Runs a task on this loop's thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                try {
+                    selector.select(1000);
+                } catch (IOException e) {
+                    System.err.println("Selector error: " + e.getMessage());
+                    break;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    connection conn = (connection) key.attachment();
+                    if (!key.isValid())
+                        continue;
+                    try {
+                        if (key.isReadable())
+                            conn.onReadable();
+                        if (key.isValid() && key.isWritable())
+                            conn.onWritable();
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("Error processing client request: " + e.getMessage());
+                        conn.close();
+                    }
+                }
+            }
+
+            // Abort whatever is left after the drain
+            for (SelectionKey key : selector.keys())
+                ((connection) key.attachment()).close();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Error closing selector: " + e.getMessage());
+            }
+        }
+    }
+
+    // Where a connection is in the request/response exchange
+    private enum state { READ_COMMAND, READ_PUT_HEADER, READ_PUT_BODY, WAITING, WRITE_HEADER, WRITE_BODY, WRITE_TRAILER, CLOSED }
+
+    /**
+     * Per-connection state machine.
+     */
+    private class connection {
+
+        final event_loop loop;
+        final SocketChannel channel;
+        final InetAddress client;
+        SelectionKey key;
+        state current = state.READ_COMMAND;
+
+        // Bytes received but not yet parsed (command and put header)
+        ByteBuffer in = ByteBuffer.allocate(1024);
+
+        String command;
+
+        // When the current request arrived, and its trace if it is sampled (see request_trace)
+        long requestStart;
+        request_trace trace;
+
+        // True once the client opened a session (see session_protocol)
+        boolean session = false;
+
+        // True once the session chose compressed replies
+        boolean deflate = false;
+
+        // True while parseBuffered() is running, so a finished reply doesn't re-enter it
+        boolean parsing = false;
+
+        // True if the connection is closed once the current reply is written, e.g. after a
+        // refused put whose body can't be told apart from the next request
+        boolean closeAfterReply = false;
+
+        // Upload in progress
+        String putName;
+        File putFile;
+        FileChannel upload;
+        long putOffset;
+        long putSize;
+        long received;
+
+        // Reply in progress
+        reply pending;
+        ByteBuffer header;
+        FileChannel body;
+        long bodyPosition;
+        long bodySize;
+        ByteBuffer trailer;
+
+        connection(event_loop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.client = channel.socket().getInetAddress();
+        }
+
+        void onReadable() throws IOException {
+            if (current == state.READ_PUT_BODY) {
+                readBody();
+                return;
+            }
+
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            parseBuffered();
+        }
+
+        // Parses whatever is buffered; the input buffer is kept ready for reading between calls
+        void parseBuffered() throws IOException {
+            in.flip();
+            parsing = true;
+            try {
+                // A session may have several requests queued up, keep going while there is progress
+                while (current != state.CLOSED) {
+                    state before = current;
+                    int position = in.position();
+                    parse();
+                    if (current == before && in.position() == position)
+                        break;
+                }
+            } finally {
+                parsing = false;
+                if (current != state.CLOSED)
+                    in.compact();
+            }
+        }
+
+        // Consumes whatever complete pieces of the request are in the input buffer
+        void parse() throws IOException {
+            if (current == state.READ_COMMAND) {
+                command = decodeUTF(in);
+                if (command == null) {
+                    growIfFull();
+                    return;
+                }
+
+                if (!session && command.equals(session_protocol.HANDSHAKE)) {
+                    // Switch to framed requests on a connection that stays open
+                    session = true;
+                    startReply(reply.message("Session started."));
+                    return;
+                }
+                if (session && command.startsWith(session_protocol.ENCODING + " ")) {
+                    deflate = deflate_codec.accepts(command.substring(session_protocol.ENCODING.length() + 1));
+                    startReply(reply.message(deflate ? deflate_codec.NAME : deflate_codec.IDENTITY));
+                    return;
+                }
+                requestStart = System.nanoTime();
+                trace = request_trace.sampled(name, command);
+
+                if (command.startsWith("put")) {
+                    if (session && fileNameOf(command) == null) {
+                        closeAfterReply = true;
+                        startReply(reply.error("Invalid command: " + command));
+                        return;
+                    }
+                    current = state.READ_PUT_HEADER;
+                } else if (command.startsWith("get") || session) {
+                    // Every other session command (stat, getif, ...) is the service's to answer
+                    CompletableFuture<reply> future;
+                    try {
+                        future = service.get(command, deflate, client);
+                    } catch (RuntimeException e) {
+                        future = CompletableFuture.failedFuture(e);
+                    }
+                    await(future);
+                } else {
+                    close();
+                    return;
+                }
+            }
+
+            if (current == state.READ_PUT_HEADER) {
+                // The file name (original protocol only) and size must arrive before the body
+                int start = in.position();
+                String fileName = session ? fileNameOf(command) : decodeUTF(in);
+                if (fileName == null || in.remaining() < 8) {
+                    in.position(start);
+                    growIfFull();
+                    return;
+                }
+                putName = fileName;
+                putSize = in.getLong();
+                received = 0;
+
+                // A ranged session put ("put <file> <offset> <total>") writes its part in place
+                long offset;
+                try {
+                    offset = session ? part_uploads.offsetOf(command.split(" ")) : -1;
+                } catch (NumberFormatException e) {
+                    close();
+                    return;
+                }
+                putOffset = Math.max(0, offset);
+
+                putFile = service.putTarget(command, putName);
+                if (putFile == null) {
+                    close();
+                    return;
+                }
+                putFile.getParentFile().mkdirs();
+                // The parts of a ranged put share one file, so it is not truncated
+                upload = offset >= 0
+                        ? FileChannel.open(putFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+                        : FileChannel.open(putFile.toPath(),
+                                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                current = state.READ_PUT_BODY;
+
+                // Part of the body may already be sitting in the input buffer
+                int leftover = (int) Math.min(in.remaining(), putSize);
+                if (leftover > 0) {
+                    ByteBuffer slice = in.slice();
+                    slice.limit(leftover);
+                    while (slice.hasRemaining())
+                        received += upload.write(slice, putOffset + received);
+                    in.position(in.position() + leftover);
+                }
+                if (received >= putSize)
+                    finishUpload();
+            }
+        }
+
+        // Reads upload data straight into the file
+        void readBody() throws IOException {
+            ByteBuffer buffer = loop.transferBuffer;
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), putSize - received));
+
+            int n = channel.read(buffer);
+            if (n < 0) {
+                System.err.println("Connection closed after " + received + " of " + putSize + " bytes.");
+                close();
+                return;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining())
+                received += upload.write(buffer, putOffset + received);
+
+            if (received >= putSize)
+                finishUpload();
+        }
+
+        void finishUpload() throws IOException {
+            upload.close();
+            upload = null;
+            CompletableFuture<reply> future;
+            try {
+                future = service.putComplete(command, putName, putFile, received);
+            } catch (RuntimeException e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            await(future);
+        }
+
+        // Stops reading until the reply is ready, then starts it on the event loop
+        void await(CompletableFuture<reply> future) {
+            current = state.WAITING;
+            key.interestOps(0);
+            future.whenComplete((r, error) -> loop.execute(() -> {
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    System.err.println("Error processing client request: " + cause.getMessage());
+                    close();
+                } else {
+                    startReply(r);
+                }
+            }));
+        }
+
+        // Prepares the reply buffers and starts writing
+        void startReply(reply r) {
+            if (current == state.CLOSED) {
+                if (r != null && r.onComplete != null)
+                    r.onComplete.run();
+                return;
+            }
+            if (trace != null)
+                trace.stage("service");
+
+            pending = r;
+            try {
+                Long size = null;
+                if (r != null && r.file != null) {
+                    body = FileChannel.open(r.file.toPath(), StandardOpenOption.READ);
+                    bodySize = body.size();
+                    if (r.rangeCount >= 0) {
+                        bodyPosition = r.rangeOffset;
+                        bodySize = Math.min(bodySize, r.rangeOffset + r.rangeCount);
+                    }
+                    size = bodySize - bodyPosition;
+                } else if (r != null && r.data != null) {
+                    size = (long) r.data.remaining();
+                }
+
+                if (session) {
+                    // One frame: status, message, body length, body
+                    byte status = r == null ? session_protocol.NOT_FOUND : r.status;
+                    String message = r == null || (r.header == null && r.trailer == null) ? NOT_FOUND_MESSAGE
+                            : size != null && r.trailer != null ? r.trailer : r.header;
+                    header = frame(status, message, size == null ? 0 : size);
+                    trailer = null;
+                } else {
+                    if (r == null || (r.header == null && r.file == null && r.data == null && r.trailer == null)) {
+                        close();
+                        return;
+                    }
+                    header = encode(r.header, size);
+                    trailer = r.trailer != null ? encode(r.trailer, null) : null;
+                }
+
+                current = state.WRITE_HEADER;
+                key.interestOps(SelectionKey.OP_WRITE);
+                onWritable(); // Most replies fit in the socket buffer right away
+            } catch (IOException e) {
+                System.err.println("Error processing client request: " + e.getMessage());
+                close();
+            }
+        }
+
+        void onWritable() throws IOException {
+            if (current == state.WRITE_HEADER) {
+                channel.write(header);
+                if (header.hasRemaining())
+                    return;
+                current = state.WRITE_BODY;
+            }
+
+            if (current == state.WRITE_BODY) {
+                if (body != null) {
+                    while (bodyPosition < bodySize) {
+                        long n = body.transferTo(bodyPosition, Math.min(bodySize - bodyPosition, MAX_TRANSFER), channel);
+                        if (n <= 0)
+                            return; // Socket buffer full, wait for the next OP_WRITE
+                        bodyPosition += n;
+                    }
+                } else if (pending != null && pending.data != null) {
+                    channel.write(pending.data);
+                    if (pending.data.hasRemaining())
+                        return;
+                }
+                current = state.WRITE_TRAILER;
+            }
+
+            if (current == state.WRITE_TRAILER) {
+                if (trailer != null) {
+                    channel.write(trailer);
+                    if (trailer.hasRemaining())
+                        return;
+                }
+
+                if (session && !closeAfterReply)
+                    nextRequest();
+                else
+                    close();
+            }
+        }
+
+        // True for a session between requests
+        boolean idle() {
+            return session && current == state.READ_COMMAND && in.position() == 0;
+        }
+
+        // Ends the current exchange on a session and waits for the next request
+        void nextRequest() throws IOException {
+            finishReply();
+            current = state.READ_COMMAND;
+            key.interestOps(SelectionKey.OP_READ);
+
+            // Don't keep sessions open while shutting down
+            if (!running && !parsing && idle()) {
+                close();
+                return;
+            }
+
+            // Requests sent back-to-back may already be buffered
+            if (!parsing && in.position() > 0)
+                parseBuffered();
+        }
+
+        // Releases what the finished reply was holding
+        void finishReply() {
+            closeQuietly(body);
+            body = null;
+            bodyPosition = 0;
+            bodySize = 0;
+            header = null;
+            trailer = null;
+
+            reply finished = pending;
+            pending = null;
+            if (requestStart != 0) {
+                // Latency from the command's arrival until its reply was written, per command
+                metrics.timeRequest(name, command, requestStart);
+                requestStart = 0;
+                if (trace != null) {
+                    trace.stage("send");
+                    trace.end(finished == null ? null : finished.trailer != null ? finished.trailer : finished.header);
+                    trace = null;
+                }
+            }
+            if (finished != null && finished.onComplete != null) {
+                try {
+                    finished.onComplete.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Error finishing reply: " + e);
+                }
+            }
+        }
+
+        // A put header that doesn't fit the input buffer needs a bigger one
+        void growIfFull() throws IOException {
+            if (in.position() == 0 && in.limit() == in.capacity()) {
+                if (in.capacity() >= 2 + MAX_UTF + 8)
+                    throw new IOException("Request header too large.");
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(in.capacity() * 4, 2 + MAX_UTF + 8));
+                bigger.put(in);
+                bigger.flip();
+                in = bigger;
+            }
+        }
+
+        void close() {
+            if (current == state.CLOSED)
+                return;
+            current = state.CLOSED;
+
+            if (key != null)
+                key.cancel();
+            closeChannel(channel);
+            closeQuietly(upload);
+            finishReply();
+
+            active.decrementAndGet();
+            permits.release();
+        }
+    }
+
+    private static void closeChannel(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to do with a channel we failed to close
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null)
+                closeable.close();
+        } catch (IOException e) {
+            // Nothing left to do with a file we failed to close
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The parallel_transfer class moves a large file over several session connections
+ * at once. One TCP stream is limited by its congestion window and by the
+ * bandwidth-delay product of the path; splitting the file into chunks and moving
+ * them on parallel connections keeps the link busy where one stream can't.
+ *
+ * Downloads ask for each chunk as a byte range ("get <file> <offset> <length>", see
+ * byte_range) and write it at its offset into the local file. Uploads send each
+ * chunk as a ranged put ("put <file> <offset> <total>"), which the server assembles
+ * (see part_uploads). A fixed number of workers take the next chunk as they finish
+ * one, so a slow connection holds up only its own chunks. A chunk whose connection
+ * fails is tried once more, on a fresh connection; if it fails again, or the server
+ * answers with an error, the transfer stops.
+ *
+ * Files smaller than the threshold go over a single stream, where the extra
+ * round trips and connections would cost more than they gain.
+ *
+ * Settings (system properties):
+ *  - transport.parallelism:       Connections per transfer (default 4, 1 turns parallel transfers off).
+ *  - transport.parallelChunk:     Bytes per chunk (default 8 MiB).
+ *  - transport.parallelThreshold: Smallest transfer done in parallel (default 32 MiB).
+ */
+public class parallel_transfer {
+
+    static final int PARALLELISM = Math.max(1, Integer.getInteger("transport.parallelism", 4));
+    static final long CHUNK_SIZE = Math.max(64 * 1024, Long.getLong("transport.parallelChunk", 8L << 20));
+    static final long THRESHOLD = Long.getLong("transport.parallelThreshold", 32L << 20);
+
+    // Chunk workers; daemon threads so an idle pool doesn't keep the process alive
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ExecutorService workers = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "transfer-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The server answered a chunk with an error, which trying again won't change.
+     */
+    private static class refused extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        refused(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Moves one chunk of a transfer.
+     */
+    private interface chunk {
+        void transfer(long offset, long length) throws IOException;
+    }
+
+    /**
+     * @param bytes The number of bytes left to transfer.
+     * @return True if a transfer of that size should be split over parallel connections.
+     */
+    static boolean worthIt(long bytes) {
+        return PARALLELISM > 1 && bytes >= THRESHOLD;
+    }
+
+    /**
+     * Downloads bytes <have> to <size> of a file in chunks over parallel session
+     * connections, keeping the first <have> bytes already in the local file.
+     *
+     * If the download fails, the local file is cut back to the chunks that arrived
+     * without a gap from its start, so a later download can continue after them.
+     *
+     * @param serverIP   The IP address of the server.
+     * @param serverPort The port number of the server.
+     * @param fileName   The name of the file to download.
+     * @param file       The local file to save it in.
+     * @param have       The number of bytes at the start of the local file to keep.
+     * @param size       The size of the file on the server (see tcp_transport.stat).
+     * @throws IOException If a chunk can't be downloaded.
+     */
+    static void download(String serverIP, int serverPort, String fileName, File file, long have, long size) throws IOException {
+        file.getParentFile().mkdirs();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+
+            BitSet done = new BitSet();
+            try {
+                run(have, size, done, (offset, length) -> tcp_transport.exchange(serverIP, serverPort, conn -> {
+                    conn.out.writeUTF(new byte_range(offset, length).command(fileName));
+                    conn.out.flush();
+
+                    session_protocol.header header = conn.readHeader();
+                    if (header.status != session_protocol.OK)
+                        throw new refused(header.message);
+                    if (header.length != length)
+                        throw new IOException("File " + fileName + " changed on the server during the download.");
+
+                    long received = channel_io.receive(conn.in, conn.socket, channel, offset, length);
+                    if (received < length)
+                        throw new EOFException("Server closed the connection after " + received + " of " + length + " bytes.");
+                    return null;
+                }));
+            } catch (IOException e) {
+                // Keep only the chunks a resumed download can continue after
+                synchronized (done) {
+                    channel.truncate(Math.min(size, have + done.nextClearBit(0) * CHUNK_SIZE));
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Uploads a file in chunks over parallel session connections.
+     *
+     * @param serverIP     The IP address of the server.
+     * @param serverPort   The port number of the server.
+     * @param file         The file to upload.
+     * @param fileName     The name to store it under on the server.
+     * @param fileChecksum The file's checksum, which the server checks the assembled file against.
+     * @return The server's response to the chunk that completed the file.
+     * @throws IOException If a chunk can't be uploaded, or the assembled file is rejected.
+     */
+    static String upload(String serverIP, int serverPort, File file, String fileName, String fileChecksum) throws IOException {
+        long size = file.length();
+        AtomicReference<String> completion = new AtomicReference<>();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            run(0, size, new BitSet(), (offset, length) -> {
+                String message = tcp_transport.exchange(serverIP, serverPort, conn -> {
+                    conn.out.writeUTF("put " + fileName + " " + offset + " " + size + " " + fileChecksum);
+                    conn.out.writeLong(length);
+                    channel_io.sendRange(channel, offset, length, conn.out, conn.socket);
+
+                    session_protocol.header header = conn.readHeader();
+                    if (header.status != session_protocol.OK)
+                        throw new refused(header.message);
+                    return header.message;
+                });
+                if (!message.equals(part_uploads.PART_RECEIVED))
+                    completion.set(message);
+            });
+        }
+
+        if (completion.get() == null)
+            throw new IOException("Server received every part of " + fileName + " but did not assemble the file.");
+        return completion.get();
+    }
+
+    // Transfers bytes <start> to <end> in chunks on up to PARALLELISM workers, marking
+    // each chunk in <done> once it is through; throws the first failure after all workers stopped
+    private static void run(long start, long end, BitSet done, chunk task) throws IOException {
+        int chunks = (int) ((end - start + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        AtomicInteger next = new AtomicInteger();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+
+        List<Future<?>> running = new ArrayList<>();
+        for (int i = 0; i < Math.min(PARALLELISM, chunks); i++) {
+            running.add(workers.submit(() -> {
+                int index;
+                while (failure.get() == null && (index = next.getAndIncrement()) < chunks) {
+                    long offset = start + index * CHUNK_SIZE;
+                    long length = Math.min(CHUNK_SIZE, end - offset);
+                    try {
+                        try {
+                            task.transfer(offset, length);
+                        } catch (refused e) {
+                            throw e;
+                        } catch (IOException e) {
+                            task.transfer(offset, length); // Once more; the failed connection was discarded
+                        }
+                        synchronized (done) {
+                            done.set(index);
+                        }
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+
+        for (Future<?> worker : running) {
+            try {
+                worker.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, new InterruptedIOException("Transfer interrupted."));
+            } catch (ExecutionException e) {
+                failure.compareAndSet(null, new IOException(e.getCause()));
+            }
+        }
+        if (failure.get() != null)
+            throw failure.get();
+    }
+
+}
@@ -0,0 +1,231 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * The part_uploads class assembles files that a client uploads as several byte
+ * ranges in parallel, each on its own session connection:
+ *
+ *   put <file> <offset> <total> [<checksum>], writeLong(length), <length> bytes
+ *
+ * Every part is written at its offset into <dir>/.upload/<file>. Once parts
+ * covering all <total> bytes have arrived, the server checks the whole file and
+ * publishes it, so readers never see a half-assembled upload. The reply to each
+ * part is PART_RECEIVED, except for the one that completes the file. A part sent
+ * again at the same offset counts once; a part overlapping another one abandons
+ * the upload, since the bytes it overwrote can no longer be trusted.
+ *
+ * Whole-file session puts ("put <file> [<checksum>]") are received into a new
+ * staging file in the same directory.
+ *
+ * Uploads no part arrived for in transport.uploadTimeout are abandoned and their
+ * file deleted when the next part of any upload arrives; whatever a previous run
+ * left in the directory is deleted at start-up.
+ *
+ * Settings (system properties):
+ *  - transport.uploadTimeout: Milliseconds an unfinished upload is kept without new parts (default 600000).
+ */
+public class part_uploads {
+
+    static final String PART_RECEIVED = "Part received.";
+
+    static final long UPLOAD_TIMEOUT = Math.max(1000, Long.getLong("transport.uploadTimeout", 600000));
+
+    // An upload in progress: its size (-1 until its first part is recorded), the ranges
+    // received so far, offset -> length, which never overlap, and when a part last started or ended
+    private static class upload {
+        long total = -1;
+        final TreeMap<Long, Long> parts = new TreeMap<>();
+        long received = 0;
+        long lastActive = System.currentTimeMillis();
+    }
+
+    private final File staging;
+    private final Map<String, upload> uploads = new HashMap<>();
+
+    /**
+     * Deletes what uploads of a previous run left behind.
+     *
+     * @param dir The directory uploads are published into; parts are assembled in its .upload directory.
+     */
+    public part_uploads(File dir) {
+        this.staging = new File(dir, ".upload");
+        File[] leftovers = staging.listFiles();
+        if (leftovers != null)
+            for (File leftover : leftovers)
+                leftover.delete();
+    }
+
+    /**
+     * @param parts A put command split on spaces.
+     * @return The part's offset, or -1 if the command uploads a whole file.
+     * @throws NumberFormatException If the offset or total is malformed.
+     */
+    static long offsetOf(String[] parts) {
+        return parts.length < 4 ? -1 : Long.parseLong(parts[2]);
+    }
+
+    /**
+     * @param parts A put command split on spaces, with a part offset.
+     * @return The size of the whole file being uploaded.
+     */
+    static long totalOf(String[] parts) {
+        return Long.parseLong(parts[3]);
+    }
+
+    /**
+     * @param fileName The uploaded file name.
+     * @return The file the parts are written into.
+     */
+    File target(String fileName) {
+        synchronized (uploads) {
+            // A part is starting, which keeps the upload from expiring meanwhile; only
+            // received() registers uploads, so one that completed stays gone
+            upload current = uploads.get(fileName);
+            if (current != null)
+                current.lastActive = System.currentTimeMillis();
+        }
+        staging.mkdirs();
+        return new File(staging, fileName);
+    }
+
+    /**
+     * @param fileName The uploaded file name.
+     * @return A new file to receive a whole-file upload into.
+     * @throws IOException If the file can't be created.
+     */
+    File stagingFile(String fileName) throws IOException {
+        staging.mkdirs();
+        return File.createTempFile(fileName, ".put", staging);
+    }
+
+    /**
+     * Receives the body of a session put, "put <file> [<offset> <total>] [<checksum>]"
+     * followed by writeLong(length) and the data, into a staging file or, for a part,
+     * at its place in target(fileName).
+     *
+     * @param parts  The put command split on spaces.
+     * @param dis    The connection's input stream, positioned at the length.
+     * @param socket The connection.
+     * @return The complete file, ready to be checked and published, or null if the
+     *         command sent a part and others are still missing.
+     * @throws IOException If the command is malformed or the connection fails; either
+     *                     leaves the stream out of sync, so the session can't continue.
+     */
+    File receive(String[] parts, DataInputStream dis, Socket socket) throws IOException {
+        String fileName = parts[1];
+        if (!blob_store.validName(fileName))
+            throw new IOException(blob_store.INVALID_NAME + fileName);
+        long fileSize = dis.readLong();
+        long offset;
+        try {
+            offset = offsetOf(parts);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid command: " + String.join(" ", parts));
+        }
+
+        long received;
+        File staged;
+        if (offset < 0) {
+            staged = stagingFile(fileName);
+            received = channel_io.receiveFile(dis, socket, staged, fileSize);
+        } else {
+            // One part of an upload sent in parallel, written at its place in the assembled file
+            staged = target(fileName);
+            try (FileChannel channel = FileChannel.open(staged.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                received = channel_io.receive(dis, socket, channel, offset, fileSize);
+            }
+        }
+        if (received < fileSize) {
+            if (offset < 0)
+                staged.delete();
+            throw new EOFException("Connection closed after " + received + " of " + fileSize + " bytes.");
+        }
+        return completed(parts, staged, fileSize);
+    }
+
+    /**
+     * @param parts  The put command split on spaces.
+     * @param staged The file the upload was written into.
+     * @param size   The number of bytes written.
+     * @return The complete file, or null if the command sent a part and others are
+     *         still missing.
+     * @throws IOException If the part lies outside the file.
+     */
+    File completed(String[] parts, File staged, long size) throws IOException {
+        long offset = offsetOf(parts);
+        if (offset >= 0 && !received(parts[1], offset, size, totalOf(parts)))
+            return null;
+        return staged;
+    }
+
+    /**
+     * Records a part that was fully written to target(fileName).
+     *
+     * @param fileName The uploaded file name.
+     * @param offset   Where the part starts.
+     * @param length   The part's length.
+     * @param total    The size of the whole file.
+     * @return True if this part completed the file, which is ready to be published.
+     * @throws IOException If the part lies outside the file or overlaps another part,
+     *                     or the completed file can't be trimmed to its size.
+     */
+    boolean received(String fileName, long offset, long length, long total) throws IOException {
+        if (offset < 0 || offset + length > total)
+            throw new IOException("Part of " + fileName + " lies outside the file.");
+
+        synchronized (uploads) {
+            expire();
+            upload current = uploads.computeIfAbsent(fileName, key -> new upload());
+            current.lastActive = System.currentTimeMillis();
+            if (current.total != total) {
+                // A new upload of the file starts over
+                current.total = total;
+                current.parts.clear();
+                current.received = 0;
+            }
+
+            // A part sent again after a failed attempt counts once; any other overlap means
+            // bytes of an earlier part were overwritten, so the parts no longer add up
+            Long previous = current.parts.get(offset);
+            if (previous == null || previous != length) {
+                Map.Entry<Long, Long> before = current.parts.floorEntry(offset);
+                Map.Entry<Long, Long> after = current.parts.ceilingEntry(offset);
+                if ((before != null && before.getKey() + before.getValue() > offset)
+                        || (after != null && after.getKey() < offset + length)) {
+                    uploads.remove(fileName);
+                    new File(staging, fileName).delete();
+                    throw new IOException("Part of " + fileName + " overlaps a part already received, upload abandoned.");
+                }
+                current.parts.put(offset, length);
+                current.received += length;
+            }
+            if (current.received < total)
+                return false;
+            uploads.remove(fileName);
+        }
+
+        File assembled = new File(staging, fileName);
+        try (RandomAccessFile file = new RandomAccessFile(assembled, "rw")) {
+            file.setLength(total); // Drop anything left beyond the end by an earlier, larger upload
+        }
+        return true;
+    }
+
+    // Abandons uploads no part started or ended for in UPLOAD_TIMEOUT; called holding the uploads lock
+    private void expire() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, upload>> it = uploads.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, upload> entry = it.next();
+            if (now - entry.getValue().lastActive < UPLOAD_TIMEOUT)
+                continue;
+            it.remove();
+            new File(staging, entry.getKey()).delete();
+            System.out.println("Unfinished upload of " + entry.getKey() + " expired.");
+        }
+    }
+
+}
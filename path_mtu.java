@@ -0,0 +1,122 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The path_mtu class decides how many file bytes the UDP transports put in one
+ * datagram. Per-packet costs (a syscall, a header, an ACK) dominate long before
+ * the link is full, so chunks should be as large as the path carries. By default
+ * the payload fills a datagram of <udp.mtu> bytes.
+ *
+ * With -Dudp.mtuProbe=true the sender of a transfer first searches for a larger
+ * size that actually gets through, the way packetization-layer path MTU discovery
+ * does: it sends PROBE packets padded to a candidate size, which the peer's
+ * udp_endpoint answers right away, and binary-searches between the configured
+ * chunk size and <udp.maxMtu>. A probe that gets no answer within two RTOs counts
+ * as too large. The result is remembered per peer host, like rtt_estimator.
+ *
+ * The JDK can't set the don't-fragment bit, so a probe larger than a link's MTU may
+ * still arrive in IP fragments; the search finds the largest size that arrives,
+ * which is why it is off by default and bounded by udp.maxMtu.
+ *
+ * Settings (system properties):
+ *  - udp.mtu:      Datagram size (IP packet) assumed without probing (default 1500).
+ *  - udp.mtuProbe: Probe for a larger size before the first transfer to a host (default false).
+ *  - udp.maxMtu:   Largest datagram size to probe for (default 9000, at most 65535).
+ */
+public class path_mtu {
+
+    // IPv4 and UDP headers in front of every datagram
+    static final int IP_UDP_OVERHEAD = 20 + 8;
+
+    static final int MTU = Integer.getInteger("udp.mtu", 1500);
+    static final boolean PROBE = Boolean.getBoolean("udp.mtuProbe");
+    static final int MAX_MTU = Math.min(65535, Integer.getInteger("udp.maxMtu", 9000));
+
+    /** Payload bytes that fill a datagram of udp.mtu bytes. */
+    static final int DEFAULT_PAYLOAD = payloadFor(MTU);
+
+    // Probes are sized in steps of this many bytes
+    private static final int STEP = 64;
+
+    // Probed payload sizes per peer host, kept for the life of the process
+    private static final ConcurrentHashMap<InetAddress, Integer> probed = new ConcurrentHashMap<>();
+
+    // Zeros to fill probe payloads with
+    private static final byte[] PADDING = new byte[udp_packet.MAX_PAYLOAD];
+
+    /**
+     * @param socket     The transfer's session, opened with the peer's address.
+     * @param rtt        The peer's RTT estimator, for the probe timeouts.
+     * @param configured The chunk size the transport is configured with.
+     * @return The payload size to use for the transfer: the configured one, or the
+     *         probed one for the peer's host if probing is enabled and found a larger size.
+     * @throws IOException If sending a probe fails.
+     */
+    static int payloadSize(udp_endpoint.session socket, rtt_estimator rtt, int configured) throws IOException {
+        if (!PROBE)
+            return configured;
+
+        InetAddress host = ((InetSocketAddress) socket.peer()).getAddress();
+        Integer known = probed.get(host);
+        if (known == null) {
+            known = probe(socket, rtt, configured, payloadFor(MAX_MTU));
+            probed.put(host, known);
+            System.out.println("Path to " + host.getHostAddress() + " carries " + known + "-byte chunks.");
+        }
+        return Math.max(configured, known);
+    }
+
+    // Binary search for the largest payload in [low, high] that the peer answers
+    private static int probe(udp_endpoint.session socket, rtt_estimator rtt, int low, int high) throws IOException {
+        while (high - low >= STEP) {
+            int mid = low + (high - low + 1) / 2;
+            if (answered(socket, rtt, mid))
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return low;
+    }
+
+    // Sends a probe with the given payload size, twice if needed, and waits for its answer
+    private static boolean answered(udp_endpoint.session socket, rtt_estimator rtt, int payload) throws IOException {
+        int size = udp_packet.HEADER_SIZE + payload;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            ByteBuffer frame = socket.frame(payload);
+            try {
+                // Only the size matters, but the pooled buffer may hold another transfer's
+                // data, so the padding is zeroed rather than sent to this peer
+                frame.put(PADDING, 0, payload);
+                socket.seal(frame, udp_packet.PROBE, 0);
+                socket.send(frame);
+            } finally {
+                socket.release(frame);
+            }
+
+            int timeout = rtt.rto();
+            long deadline = System.currentTimeMillis() + timeout;
+            try {
+                while (true) {
+                    socket.setSoTimeout((int) Math.max(1, deadline - System.currentTimeMillis()));
+                    udp_packet answer = socket.receive();
+                    boolean matches = answer.is(udp_packet.PROBE) && answer.is(udp_packet.ACK) && answer.seq == size;
+                    answer.release();
+                    if (matches)
+                        return true;
+                    // Answers to smaller probes that were only late
+                }
+            } catch (SocketTimeoutException e) {
+                // Lost, or too large for the path
+            }
+        }
+        return false;
+    }
+
+    // Payload bytes in a datagram of the given IP packet size
+    private static int payloadFor(int mtu) {
+        return Math.max(1, Math.min(udp_packet.MAX_PAYLOAD, mtu - IP_UDP_OVERHEAD - udp_packet.HEADER_SIZE));
+    }
+
+}
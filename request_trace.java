@@ -0,0 +1,103 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The request_trace class follows single requests through their stages and
+ * prints where the time went, e.g.
+ *
+ *     trace cache get a.txt: lookup 0.004ms, origin 8.310ms, send 0.421ms; total 8.735ms (File delivered from server.)
+ *
+ * Only a sampled share of requests is traced (metrics.traceSample), so tracing
+ * can stay on under load; requests that aren't sampled cost one random number.
+ *
+ * A request served on one thread binds its trace to the thread with begin(), and
+ * code anywhere below it marks stages with the static mark() without the trace
+ * being passed along. Work handed to other threads isn't followed; the NIO engine
+ * uses sampled() and times only its own stages.
+ *
+ * Settings (system properties):
+ *  - metrics.traceSample: Share of requests traced, 0 to 1 (default 0, off).
+ */
+public class request_trace {
+
+    static final double SAMPLE = Math.min(1, Math.max(0, Double.parseDouble(System.getProperty("metrics.traceSample", "0"))));
+
+    // The trace of the request the current thread is serving, if it is sampled
+    private static final ThreadLocal<request_trace> current = new ThreadLocal<>();
+
+    private final String request;
+    private final long start;
+    private long last;
+    private final StringBuilder stages = new StringBuilder();
+
+    private request_trace(String request) {
+        this.request = request;
+        this.start = System.nanoTime();
+        this.last = start;
+    }
+
+    /**
+     * Decides whether a request is traced, without binding the trace to the thread.
+     *
+     * @param process The process serving the request, e.g. "cache".
+     * @param command The request's command.
+     * @return The trace, or null if the request isn't sampled.
+     */
+    public static request_trace sampled(String process, String command) {
+        if (SAMPLE <= 0 || ThreadLocalRandom.current().nextDouble() >= SAMPLE)
+            return null;
+        return new request_trace(process + " " + command);
+    }
+
+    /**
+     * Starts tracing a request served on the current thread, if it is sampled.
+     *
+     * @param process The process serving the request, e.g. "cache".
+     * @param command The request's command.
+     * @return The trace, to end() once the request is served, or null if it isn't sampled.
+     */
+    public static request_trace begin(String process, String command) {
+        request_trace trace = sampled(process, command);
+        if (trace != null)
+            current.set(trace);
+        return trace;
+    }
+
+    /**
+     * Ends a stage of the current thread's request, if it is traced: the time since
+     * the previous stage ended (or the request began) is put down to this one.
+     *
+     * @param stage The stage's name.
+     */
+    public static void mark(String stage) {
+        request_trace trace = current.get();
+        if (trace != null)
+            trace.stage(stage);
+    }
+
+    /**
+     * Ends a stage of this request.
+     *
+     * @param stage The stage's name.
+     */
+    public void stage(String stage) {
+        long now = System.nanoTime();
+        if (stages.length() > 0)
+            stages.append(", ");
+        stages.append(stage).append(String.format(" %.3fms", (now - last) / 1e6));
+        last = now;
+    }
+
+    /**
+     * Prints the trace and unbinds it from the thread.
+     *
+     * @param outcome How the request ended, e.g. the message sent to the client, or null.
+     */
+    public void end(String outcome) {
+        if (current.get() == this)
+            current.remove();
+        System.out.println("trace " + request + ": " + stages + (stages.length() > 0 ? "; " : "")
+                + String.format("total %.3fms", (System.nanoTime() - start) / 1e6)
+                + (outcome != null ? " (" + outcome + ")" : ""));
+    }
+
+}
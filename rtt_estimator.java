@@ -0,0 +1,107 @@
+import java.net.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The rtt_estimator class tracks the round-trip time to one peer and derives the
+ * retransmission timeout (RTO) of the UDP transports from it, the way TCP does
+ * (Jacobson/Karels, RFC 6298):
+ *
+ *   first sample:  SRTT = R, RTTVAR = R / 2
+ *   later samples: RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|
+ *                  SRTT   = 7/8 SRTT   + 1/8 R
+ *   RTO = SRTT + 4 RTTVAR, clamped to [minRto, maxRto]
+ *
+ * Each timeout doubles the RTO (exponential backoff, capped at maxRto). The backoff
+ * is cleared by the next ACK for new data, as in QUIC, rather than only by the next
+ * valid sample, so a burst of losses doesn't leave later packets waiting on a huge
+ * timer. Callers must not sample packets that were retransmitted, since their ACK
+ * can't be matched to one send (Karn's algorithm).
+ *
+ * Estimators are shared per peer host, so a transfer starts with what earlier
+ * transfers to the same host learned instead of the initial guess.
+ *
+ * Settings (system properties):
+ *  - rtt.initialRto: Milliseconds to wait before the first sample (default 250).
+ *  - rtt.minRto:     Lower bound of the RTO in milliseconds (default 20).
+ *  - rtt.maxRto:     Upper bound of the RTO, including backoff, in milliseconds (default 10000).
+ */
+public class rtt_estimator {
+
+    static final int INITIAL_RTO = Math.max(1, Integer.getInteger("rtt.initialRto", 250));
+    static final int MIN_RTO = Math.max(1, Integer.getInteger("rtt.minRto", 20));
+    static final int MAX_RTO = Math.max(MIN_RTO, Integer.getInteger("rtt.maxRto", 10000));
+
+    // One estimator per peer host, kept for the life of the process
+    private static final ConcurrentHashMap<InetAddress, rtt_estimator> peers = new ConcurrentHashMap<>();
+
+    // Smoothed RTT and its mean deviation in microseconds; srtt < 0 until the first sample
+    private long srtt = -1;
+    private long rttvar;
+
+    // Number of timeouts since the last valid sample
+    private int backoff = 0;
+
+    /**
+     * @param peer The address of the other side of the transfer.
+     * @return The shared estimator for the peer's host.
+     */
+    static rtt_estimator forPeer(SocketAddress peer) {
+        InetAddress host = ((InetSocketAddress) peer).getAddress();
+        return peers.computeIfAbsent(host, h -> new rtt_estimator());
+    }
+
+    /**
+     * Adds a round-trip measurement and clears any backoff.
+     *
+     * @param rttNanos Time between sending a packet (sent only once) and receiving its answer.
+     */
+    synchronized void sample(long rttNanos) {
+        long r = Math.max(1, rttNanos / 1000);
+        if (srtt < 0) {
+            srtt = r;
+            rttvar = r / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - r)) / 4;
+            srtt = (7 * srtt + r) / 8;
+        }
+        backoff = 0;
+    }
+
+    /**
+     * Clears the backoff once the peer acknowledges new data, even if the ACK can't be sampled.
+     */
+    synchronized void acked() {
+        backoff = 0;
+    }
+
+    /**
+     * Doubles the RTO after a retransmission timeout.
+     */
+    synchronized void backoff() {
+        if (rtoWithoutBackoff() << backoff < MAX_RTO)
+            backoff++;
+    }
+
+    /**
+     * @return The current retransmission timeout in milliseconds.
+     */
+    synchronized int rto() {
+        return (int) Math.min(MAX_RTO, rtoWithoutBackoff() << backoff);
+    }
+
+    /**
+     * @return The smoothed round-trip time in milliseconds, or -1 before the first sample.
+     */
+    synchronized double srttMillis() {
+        return srtt < 0 ? -1 : srtt / 1000.0;
+    }
+
+    // SRTT + 4 RTTVAR in milliseconds, clamped to the configured bounds
+    private long rtoWithoutBackoff() {
+        if (srtt < 0)
+            return INITIAL_RTO;
+        long rto = (srtt + 4 * rttvar + 999) / 1000;
+        return Math.max(MIN_RTO, Math.min(MAX_RTO, rto));
+    }
+
+}
@@ -1,22 +1,91 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * The Server class handles incoming client requests to upload (put) or download (get) files.
- * It supports both TCP and Stop-and-Wait (SNW) protocols for data transfer.
+ * It supports TCP, Stop-and-Wait (SNW) and sliding-window (SR) protocols for data transfer.
  * 
  * Usage:
  *     java server <port> <protocol>
  * 
  * Parameters:
  * - <port>: Port number to start the server.
- * - <protocol>: Transport protocol ("tcp" or "snw") to be used for file transfers.
+ * - <protocol>: Transport protocol ("tcp", "snw" or "sr") to be used for file transfers.
+ * 
+ * Start with -Dserver.engine=nio to serve TCP clients from the non-blocking
+ * nio_engine instead of one worker thread per connection.
+ *
+ * Over TCP, "get <file> <offset> [<length>]" sends only that byte range of the
+ * file (see byte_range), which lets clients and the cache resume broken downloads.
+ * Sessions also answer "stat <file>" with the file's size, and accept large uploads
+ * in parallel parts, "put <file> <offset> <total>" (see part_uploads).
+ *
+ * Uploads are received into server_fl/.upload, checked against the checksum the
+ * client sent and published through a blob_store, so identical content uploaded
+ * under different names is stored once. stat answers with the file's checksum.
+ *
+ * The checksum is also the file's version: "getif <file> <version>" sends the file
+ * only if it changed, and caches that sent "subscribe <host> <port>" are told
+ * "invalidate <file> <checksum>" whenever an upload replaces a file, so they stop serving
+ * their old copy right away instead of when it expires. Invalidations go to the port
+ * on the host the subscription came from, whatever <host> says, so a client can't
+ * point the server at other machines. At most -Dserver.maxSubscribers caches (default
+ * 64) are subscribed at once, and a cache is dropped after three failed invalidations
+ * in a row until it subscribes again.
+ *
+ * Requests, bytes and invalidations are counted in metrics; sessions answer "stats"
+ * with the report, and the same values are published over JMX.
+ *
+ * Sessions that chose deflate (see deflate_codec) get whole files that were uploaded
+ * here in their compressed form, made once per content and kept with its blob.
  */
 public class server {
 	
-	// Protocol handlers for TCP and Stop-and-Wait (SNW) transports
-    static tcp_transport tcpTransport = new tcp_transport();
-    static snw_transport snwTransport = new snw_transport(); 
+	// Protocol handler for the UDP transports (SNW or SR); TCP handlers are created per connection
+    static udp_transport udpTransport;
+
+    // Server settings, shared by all connection handlers
+    static int port;
+    static String protocol;
+
+    // Milliseconds a persistent session may sit idle between requests
+    static final int SESSION_TIMEOUT = Integer.getInteger("server.sessionTimeout", 60000);
+
+    // Uploads arriving in parallel parts, assembled in server_fl/.upload
+    static final part_uploads uploads = new part_uploads(new File("server_fl"));
+
+    // Content-addressed storage of server_fl
+    static blob_store blobs;
+
+    static final String CHECKSUM_MISMATCH = "Checksum mismatch, upload discarded.";
+
+    // Caches to send "invalidate <file> <version>" to when an upload changes a file, as
+    // "host:port" -> invalidations that failed in a row
+    static final ConcurrentHashMap<String, Integer> subscribers = new ConcurrentHashMap<>();
+    static final int MAX_SUBSCRIBERS = Integer.getInteger("server.maxSubscribers", 64);
+    static final int MAX_DELIVERY_FAILURES = 3;
+
+    // Counters reported by the stats command and JMX (see metrics)
+    static final LongAdder BYTES_SERVED = metrics.counter("server.bytes.served");
+    static final LongAdder BYTES_RECEIVED = metrics.counter("server.bytes.received");
+    static final LongAdder PUTS = metrics.counter("server.puts");
+    static final LongAdder NOT_FOUND = metrics.counter("server.notFound");
+    static final LongAdder NOT_MODIFIED = metrics.counter("server.notModified");
+    static final LongAdder CHECKSUM_MISMATCHES = metrics.counter("server.checksumMismatches");
+    static final LongAdder INVALIDATIONS_SENT = metrics.counter("server.invalidations.sent");
+    static final LongAdder INVALIDATIONS_FAILED = metrics.counter("server.invalidations.failed");
+
+    // Sends invalidations in the background, so replies to uploads don't wait for the caches
+    static final ExecutorService invalidations = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "invalidations");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public static void main(String[] args) {
         if (args.length < 2) {
@@ -24,10 +93,10 @@ public class server {
             return;
         }
 
-        int port = Integer.parseInt(args[0]);
-        String protocol = args[1].toLowerCase();
+        port = Integer.parseInt(args[0]);
+        protocol = args[1].toLowerCase();
         
-        if (!protocol.equals("tcp") &&  !protocol.equals("snw")) {
+        if (!protocol.equals("tcp") &&  !protocol.equals("snw") && !protocol.equals("sr")) {
         	System.out.println("Error: Invalid protocol");
         	return;
         }
@@ -35,69 +104,512 @@ public class server {
         File directory = new File("server_fl");
         if (!directory.exists()) 
         	directory.mkdirs();
+        blobs = new blob_store(directory);
+        metrics.gauge("server.subscribers", subscribers::size);
+        metrics.registerMBean("server");
         
         
-        // Start the server socket on the specified port
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        try {
             System.out.println(protocol + " server started on port " + port);
 
-            while (true) {
-            	// Accept client connections
-                try (Socket clientSocket = serverSocket.accept();
-                     DataInputStream dis = new DataInputStream(clientSocket.getInputStream());
-                     DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream())) {
-                    
-                    // Read and process the client's command
-                    String command = dis.readUTF();
-                    if (command.startsWith("put")) {
-                    	// Handle file upload from client
-                    	if (protocol.equals("tcp")) {
-                    		tcpTransport.receiveFile(dis, dos);
-                    	} else if (protocol.equals("snw")) {
-                    		snwTransport.downloadFile(port, command.split(" ")[1], "server_fl");
-                    	}
-                    	
-                    } else if (command.startsWith("get")) {
-                    	// Handle file download to client
-                    	String fileName = command.split(" ")[1];
-                        File file = new File("server_fl/" + fileName);
-                        
-                        if (file.exists()) {
-                        	if (protocol.equals("tcp")) {
-                        		dos.writeUTF("File found, starting transfer.");
-                        		dos.writeLong(file.length());
-                        	
-                        	// Send file data to the client
-                            try (FileInputStream fis = new FileInputStream(file)) {
-                                byte[] buffer = new byte[4096];
-                                int bytesRead;
-                                while ((bytesRead = fis.read(buffer)) > 0) {
-                                    dos.write(buffer, 0, bytesRead);
-                                }
-                                dos.flush();
-                            }
-                            dos.writeUTF("File delivered from server.");
-                            
-                        	} else if (protocol.equals("snw")) {
-                        		String feedback = "File delivered from server.";
-                        		// Use Stop-and-Wait protocol to send the file
-                        		InetAddress localAddress = clientSocket.getLocalAddress();
-                                String clientIP = localAddress.getHostAddress(); 
-                                int clientPort = clientSocket.getLocalPort();
-                                snwTransport.uploadFile(clientIP, clientPort, file, feedback);
-                        	}
-                            
-                        } else {
-                        	System.out.print("File not found in cache or on server. Please check the file name and try again.");
+            if (!protocol.equals("tcp")) {
+                // One UDP socket, on the same port number as TCP, carries every SNW/SR transfer
+                udpTransport = udp_transport.forProtocol(protocol, udp_endpoint.open(port));
+            }
+
+            if (System.getProperty("server.engine", "blocking").equals("nio") && protocol.equals("tcp")) {
+                // Non-blocking engine: a few event loops handle all connections
+                nio_engine engine = new nio_engine("server", port, new nio_service());
+                engine.shutdownOnExit();
+                engine.serve();
+            } else {
+                // Start accepting clients, each serviced on its own worker
+                connection_engine engine = new connection_engine("server", port, server::handleClient);
+                engine.shutdownOnExit();
+                engine.serve();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Answers get, stat, getif, subscribe and put commands for the NIO engine (-Dserver.engine=nio, TCP only).
+     */
+    static class nio_service implements nio_engine.service {
+
+        // Checksums of files that changed have to be computed, which is kept off the event loops
+        private final ExecutorService checksumPool = Executors.newFixedThreadPool(2);
+
+        @Override
+        public CompletableFuture<nio_engine.reply> get(String command, boolean deflate, InetAddress client) {
+            String[] parts = command.split(" ");
+            if (parts[0].equals("stats"))
+                return CompletableFuture.completedFuture(nio_engine.reply.data("Server statistics.", metrics.reportBody(), null));
+            if (parts.length < 2)
+                return CompletableFuture.completedFuture(nio_engine.reply.error("Invalid command: " + command));
+            String fileName = parts[1];
+            File file = new File("server_fl/" + fileName);
+
+            if (parts[0].equals("subscribe")) {
+                String refused = subscribe(parts, client);
+                return CompletableFuture.completedFuture(refused == null
+                        ? nio_engine.reply.message("Subscribed.")
+                        : nio_engine.reply.error(refused));
+            }
+            if (!blob_store.validName(fileName))
+                return CompletableFuture.completedFuture(nio_engine.reply.error(blob_store.INVALID_NAME + fileName));
+
+            if (parts[0].equals("getif") && parts.length == 3) {
+                if (!file.exists()) {
+                    NOT_FOUND.increment();
+                    return CompletableFuture.completedFuture(nio_engine.reply.notFound(
+                            "File not found in cache or on server. Please check the file name and try again."));
+                }
+                return CompletableFuture.supplyAsync(() -> {
+                    try {
+                        // The reply's message is the version of the file it carries
+                        String version = checksumOf(fileName, file);
+                        if (version.equals(parts[2])) {
+                            NOT_MODIFIED.increment();
+                            return nio_engine.reply.notModified("File not modified.");
                         }
+                        File form = deflate ? deflate_codec.formOf(blobs, version) : null;
+                        if (form != null) {
+                            BYTES_SERVED.add(form.length());
+                            return nio_engine.reply.deflated(version, form, null);
+                        }
+                        BYTES_SERVED.add(file.length());
+                        return nio_engine.reply.file(version, file, null);
+                    } catch (IOException e) {
+                        return nio_engine.reply.error("Error reading " + fileName + ": " + e.getMessage());
                     }
+                }, checksumPool);
+            }
+
+            if (parts[0].equals("stat")) {
+                if (!file.exists()) {
+                    NOT_FOUND.increment();
+                    return CompletableFuture.completedFuture(nio_engine.reply.notFound(
+                            "File not found in cache or on server. Please check the file name and try again."));
+                }
+                return CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return nio_engine.reply.data("File found.",
+                                session_protocol.statBody(file.length(), checksumOf(fileName, file)), null);
+                    } catch (IOException e) {
+                        return nio_engine.reply.error("Error reading " + fileName + ": " + e.getMessage());
+                    }
+                }, checksumPool);
+            }
+
+            if (!parts[0].equals("get"))
+                return CompletableFuture.completedFuture(nio_engine.reply.error("Invalid command: " + command));
+
+            if (!file.exists()) {
+                NOT_FOUND.increment();
+                System.out.print("File not found in cache or on server. Please check the file name and try again.");
+                return CompletableFuture.completedFuture(nio_engine.reply.none());
+            }
+
+            byte_range range = byte_range.parse(parts);
+            if (range == null)
+                return CompletableFuture.completedFuture(nio_engine.reply.error("Invalid command: " + command));
+            long count = range.count(file.length());
+            if (count < 0)
+                return CompletableFuture.completedFuture(nio_engine.reply.error(byte_range.NOT_SATISFIABLE));
+
+            File form = deflate && range.isAll() ? deflate_codec.formOf(blobs, blobs.checksumOf(fileName)) : null;
+            if (form != null) {
+                BYTES_SERVED.add(form.length());
+                return CompletableFuture.completedFuture(nio_engine.reply.deflated("File found, starting transfer.", form, "File delivered from server."));
+            }
+            BYTES_SERVED.add(count);
+
+            return CompletableFuture.completedFuture(
+                    nio_engine.reply.file("File found, starting transfer.", file, "File delivered from server.")
+                            .range(range.offset, count));
+        }
+
+        @Override
+        public File putTarget(String command, String fileName) {
+            if (!blob_store.validName(fileName)) {
+                System.err.println(blob_store.INVALID_NAME + fileName);
+                return null;
+            }
+            if (part_uploads.offsetOf(command.split(" ")) >= 0)
+                return uploads.target(fileName);
+            try {
+                return uploads.stagingFile(fileName);
+            } catch (IOException e) {
+                System.err.println("Error receiving file: " + e.getMessage());
+                return null;
+            }
+        }
+
+        @Override
+        public CompletableFuture<nio_engine.reply> putComplete(String command, String fileName, File file, long size) {
+            // Checking and publishing read the whole file, off the event loop
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    String[] parts = command.split(" ");
+                    File staged = uploads.completed(parts, file, size);
+                    if (staged == null)
+                        return nio_engine.reply.message(part_uploads.PART_RECEIVED);
+
+                    String message = publishUpload(fileName, staged, checksum.fromCommand(parts));
+                    return message != null ? nio_engine.reply.message(message) : nio_engine.reply.error(CHECKSUM_MISMATCH);
                 } catch (IOException e) {
-                    System.err.println("Connection error: " + e.getMessage());
+                    throw new CompletionException(e);
                 }
+            }, checksumPool);
+        }
+    }
+
+    /**
+     * Handles a single client connection: reads the command and either receives
+     * an uploaded file (put) or sends the requested file (get).
+     *
+     * @param clientSocket The accepted client connection.
+     * @throws IOException If the connection fails while reading the command or replying.
+     */
+    static void handleClient(Socket clientSocket) throws IOException {
+        tcp_transport tcpTransport = new tcp_transport();
+
+        try (DataInputStream dis = new DataInputStream(clientSocket.getInputStream());
+             DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream())) {
+            
+            // Read and process the client's command
+            String command = dis.readUTF();
+            if (command.equals(session_protocol.HANDSHAKE)) {
+            	// Persistent connection: keep serving framed requests until the client is done
+            	session_protocol.serve(clientSocket, dis, dos, SESSION_TIMEOUT,
+            			(sessionCommand, deflate) -> handleSessionCommand(clientSocket, dis, dos, sessionCommand, deflate));
+            	return;
+            }
+
+            long start = System.nanoTime();
+            request_trace trace = request_trace.begin("server", command);
+            try {
+            	handleCommand(clientSocket, dis, dos, command, tcpTransport);
+            } finally {
+            	metrics.timeRequest("server", command, start);
+            	if (trace != null)
+            		trace.end(null);
+            }
+        }
+    }
+
+    // Serves a request in the original one-request protocol: a put or get over TCP, or the
+    // command starting an SNW/SR transfer
+    static void handleCommand(Socket clientSocket, DataInputStream dis, DataOutputStream dos, String command,
+                              tcp_transport tcpTransport) throws IOException {
+        if (command.startsWith("put")) {
+        	// Handle file upload from client
+        	if (protocol.equals("tcp")) {
+        		// "put [<file> <checksum>]", followed by the file name, size and data
+        		tcpTransport.receiveFile(clientSocket, dis, dos, checksum.fromCommand(command.split(" ")), server::publishUpload);
+        	} else {
+        		// "put <file> <session>": the file arrives on our UDP endpoint in that session
+        		String[] parts = command.split(" ");
+        		if (parts.length < 3) {
+        			System.out.println("Invalid command: " + command);
+        			return;
+        		}
+        		if (!blob_store.validName(parts[1])) {
+        			System.out.println(blob_store.INVALID_NAME + parts[1]);
+        			return;
+        		}
+        		// The transport checks the file against the checksum the sender announced
+        		File staging = new File("server_fl/.upload", "udp-" + parts[2]);
+        		if (udpTransport.downloadFile(Long.parseLong(parts[2]), parts[1], staging.getPath()))
+        			publishUpload(parts[1], new File(staging, parts[1]), null);
+        		new File(staging, parts[1]).delete();
+        		staging.delete();
+        	}
+        	
+        } else if (command.startsWith("get")) {
+        	// Handle file download to client
+        	String fileName = command.split(" ")[1];
+            File file = new File("server_fl/" + fileName);
+            
+            if (!blob_store.validName(fileName)) {
+            	System.out.println(blob_store.INVALID_NAME + fileName);
+            } else if (file.exists()) {
+            	if (protocol.equals("tcp")) {
+            		// Only the requested byte range, if the command names one
+            		byte_range range = byte_range.parse(command.split(" "));
+            		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            			long count = range == null ? -1 : range.count(channel.size());
+            			if (count < 0) {
+            				dos.writeUTF(range == null ? "Invalid command: " + command : byte_range.NOT_SATISFIABLE);
+            				return;
+            			}
+            			dos.writeUTF("File found, starting transfer.");
+            			dos.writeLong(count);
+
+            			// Send file data to the client, zero-copy when the platform supports it
+            			channel_io.sendRange(channel, range.offset, count, dos, clientSocket);
+            			BYTES_SERVED.add(count);
+            		}
+            		dos.writeUTF("File delivered from server.");
+                
+            	} else {
+            		String feedback = "File delivered from server.";
+            		// Use the UDP transport (Stop-and-Wait or sliding window) to send the file
+            		// to the endpoint and session given in "get <file> <udp-port> <session>"
+            		String[] parts = command.split(" ");
+            		if (parts.length < 4) {
+            			System.out.println("Invalid command: " + command);
+            			return;
+            		}
+                    String clientIP = clientSocket.getInetAddress().getHostAddress();
+                    udpTransport.uploadFile(clientIP, Integer.parseInt(parts[2]), Long.parseLong(parts[3]), file, feedback);
+                    BYTES_SERVED.add(file.length());
+            	}
+                
+            } else {
+            	NOT_FOUND.increment();
+            	System.out.print("File not found in cache or on server. Please check the file name and try again.");
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
     
+    /**
+     * Handles one request on a session connection and records its latency in the
+     * server.<command> histogram, tracing it if it is sampled (see request_trace).
+     *
+     * @param clientSocket The client connection.
+     * @param dis          The connection's input stream.
+     * @param dos          The connection's output stream.
+     * @param command      The request command.
+     * @param deflate      True if the session chose compressed replies.
+     * @throws IOException If the connection fails.
+     */
+    static void handleSessionCommand(Socket clientSocket, DataInputStream dis, DataOutputStream dos, String command,
+                                     boolean deflate) throws IOException {
+        long start = System.nanoTime();
+        request_trace trace = request_trace.begin("server", command);
+        try {
+            serveSessionCommand(clientSocket, dis, dos, command, deflate);
+        } finally {
+            metrics.timeRequest("server", command, start);
+            if (trace != null)
+                trace.end(null);
+        }
+    }
+
+    /**
+     * Handles one request on a session connection (see session_protocol) and writes its response frame.
+     *
+     * @param clientSocket The client connection.
+     * @param dis          The connection's input stream.
+     * @param dos          The connection's output stream.
+     * @param command      The request command.
+     * @param deflate      True if the session chose compressed replies, which whole files are
+     *                     sent as once their compressed form is made (see deflate_codec).
+     * @throws IOException If the connection fails.
+     */
+    static void serveSessionCommand(Socket clientSocket, DataInputStream dis, DataOutputStream dos, String command,
+                                    boolean deflate) throws IOException {
+        String[] parts = command.split(" ");
+        if (parts[0].equals("stats")) {
+            metrics.writeReport(dos, "Server statistics.");
+            return;
+        }
+        if (parts.length < 2) {
+            session_protocol.writeHeader(dos, session_protocol.ERROR, "Invalid command: " + command, 0);
+            // A put's body follows, which can't be told from the next request, so the session ends
+            if (parts[0].equals("put"))
+                throw new IOException("Invalid command: " + command);
+            return;
+        }
+        String fileName = parts[1];
+        // A put's name is checked by part_uploads.receive, before its body is read
+        if (!parts[0].equals("subscribe") && !parts[0].equals("put") && !blob_store.validName(fileName)) {
+            session_protocol.writeHeader(dos, session_protocol.ERROR, blob_store.INVALID_NAME + fileName, 0);
+            return;
+        }
+
+        if (parts[0].equals("stat")) {
+            File file = new File("server_fl/" + fileName);
+            if (!file.exists()) {
+                NOT_FOUND.increment();
+                session_protocol.writeHeader(dos, session_protocol.NOT_FOUND,
+                        "File not found in cache or on server. Please check the file name and try again.", 0);
+                return;
+            }
+            ByteBuffer body = session_protocol.statBody(file.length(), checksumOf(fileName, file));
+            session_protocol.writeHeader(dos, session_protocol.OK, "File found.", body.remaining());
+            dos.write(body.array(), 0, body.remaining());
+            dos.flush();
+
+        } else if (parts[0].equals("getif") && parts.length == 3) {
+            // Conditional get: the whole file, with its version as the message, only if it changed
+            File file = new File("server_fl/" + fileName);
+            if (!file.exists()) {
+                NOT_FOUND.increment();
+                session_protocol.writeHeader(dos, session_protocol.NOT_FOUND,
+                        "File not found in cache or on server. Please check the file name and try again.", 0);
+                return;
+            }
+            String version = checksumOf(fileName, file);
+            request_trace.mark("checksum");
+            if (version.equals(parts[2])) {
+                NOT_MODIFIED.increment();
+                session_protocol.writeHeader(dos, session_protocol.NOT_MODIFIED, "File not modified.", 0);
+                return;
+            }
+            if (deflate && sendCompressed(dos, clientSocket, version, version))
+                return;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                session_protocol.writeHeader(dos, session_protocol.OK, version, size);
+                channel_io.sendRange(channel, 0, size, dos, clientSocket);
+                BYTES_SERVED.add(size);
+                request_trace.mark("send");
+            }
+
+        } else if (parts[0].equals("subscribe")) {
+            String refused = subscribe(parts, clientSocket.getInetAddress());
+            if (refused == null)
+                session_protocol.writeHeader(dos, session_protocol.OK, "Subscribed.", 0);
+            else
+                session_protocol.writeHeader(dos, session_protocol.ERROR, refused, 0);
+
+        } else if (parts[0].equals("get")) {
+            File file = new File("server_fl/" + fileName);
+            if (!file.exists()) {
+                NOT_FOUND.increment();
+                session_protocol.writeHeader(dos, session_protocol.NOT_FOUND,
+                        "File not found in cache or on server. Please check the file name and try again.", 0);
+                return;
+            }
+            byte_range range = byte_range.parse(parts);
+            if (range == null) {
+                session_protocol.writeHeader(dos, session_protocol.ERROR, "Invalid command: " + command, 0);
+                return;
+            }
+            if (deflate && range.isAll() && sendCompressed(dos, clientSocket, blobs.checksumOf(fileName), "File delivered from server."))
+                return;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long count = range.count(channel.size());
+                if (count < 0) {
+                    session_protocol.writeHeader(dos, session_protocol.ERROR, byte_range.NOT_SATISFIABLE, 0);
+                    return;
+                }
+                session_protocol.writeHeader(dos, session_protocol.OK, "File delivered from server.", count);
+                channel_io.sendRange(channel, range.offset, count, dos, clientSocket);
+                BYTES_SERVED.add(count);
+                request_trace.mark("send");
+            }
+
+        } else if (parts[0].equals("put")) {
+            // A whole file, or one part of an upload sent in parallel
+            File staged = uploads.receive(parts, dis, clientSocket);
+            request_trace.mark("receive");
+            if (staged == null) {
+                session_protocol.writeHeader(dos, session_protocol.OK, part_uploads.PART_RECEIVED, 0);
+                return;
+            }
+
+            String message = publishUpload(fileName, staged, checksum.fromCommand(parts));
+            if (message == null)
+                session_protocol.writeHeader(dos, session_protocol.ERROR, CHECKSUM_MISMATCH, 0);
+            else
+                session_protocol.writeHeader(dos, session_protocol.OK, message, 0);
+
+        } else {
+            session_protocol.writeHeader(dos, session_protocol.ERROR, "Invalid command: " + command, 0);
+        }
+    }
+
+    // Checks a complete upload against the checksum the client sent (if any) and publishes it
+    // under its name; returns the message for the client, or null if the upload was discarded
+    static String publishUpload(String fileName, File staged, String expected) throws IOException {
+        if (!checksum.matches(expected, staged)) {
+            CHECKSUM_MISMATCHES.increment();
+            System.err.println("Checksum mismatch, upload of " + fileName + " discarded.");
+            staged.delete();
+            return null;
+        }
+        String version = checksum.contentOf(staged);
+        request_trace.mark("verify");
+        PUTS.increment();
+        BYTES_RECEIVED.add(staged.length());
+        blobs.publish(staged, fileName, version);
+        request_trace.mark("publish");
+        System.out.println("File " + fileName + " received.");
+        invalidate(fileName, version);
+        return "File successfully uploaded.";
+    }
+
+    // Sends the compressed form of a content as a DEFLATED reply if it is ready; returns
+    // false, with nothing sent, if the file has to go as it is
+    static boolean sendCompressed(DataOutputStream dos, Socket clientSocket, String checksum, String message) throws IOException {
+        File form = deflate_codec.formOf(blobs, checksum);
+        long sent = form != null ? deflate_codec.send(form, dos, clientSocket, message) : -1;
+        if (sent < 0)
+            return false;
+        BYTES_SERVED.add(sent);
+        request_trace.mark("send");
+        return true;
+    }
+
+    // Records a cache's "subscribe <host> <port>" for the port on the host the command came
+    // from; the <host> sent is ignored. Returns why the subscription was refused, or null.
+    static String subscribe(String[] parts, InetAddress client) {
+        int port;
+        try {
+            port = parts.length == 3 ? Integer.parseInt(parts[2]) : -1;
+        } catch (NumberFormatException e) {
+            port = -1;
+        }
+        if (port <= 0 || port > 65535)
+            return "Invalid command: " + String.join(" ", parts);
+
+        String subscriber = client.getHostAddress() + ":" + port;
+        synchronized (subscribers) {
+            if (subscribers.containsKey(subscriber)) {
+                subscribers.put(subscriber, 0); // Reachable again, if it wasn't
+                return null;
+            }
+            if (subscribers.size() >= MAX_SUBSCRIBERS)
+                return "Too many subscribers.";
+            subscribers.put(subscriber, 0);
+        }
+        System.out.println("Cache at " + subscriber + " subscribed to invalidations.");
+        return null;
+    }
+
+    // Tells every subscribed cache that a file changed; caches that can't be reached several
+    // times in a row are dropped until they subscribe again
+    static void invalidate(String fileName, String version) {
+        for (String subscriber : subscribers.keySet()) {
+            invalidations.execute(() -> {
+                int colon = subscriber.lastIndexOf(':');
+                try {
+                    new tcp_transport().invalidate(subscriber.substring(0, colon),
+                            Integer.parseInt(subscriber.substring(colon + 1)), fileName, version);
+                    INVALIDATIONS_SENT.increment();
+                    subscribers.replace(subscriber, 0);
+                } catch (IOException e) {
+                    INVALIDATIONS_FAILED.increment();
+                    Integer failures = subscribers.computeIfPresent(subscriber,
+                            (key, failed) -> failed + 1 >= MAX_DELIVERY_FAILURES ? null : failed + 1);
+                    if (failures == null)
+                        System.err.println("Cache at " + subscriber + " unreachable, unsubscribed: " + e.getMessage());
+                    else
+                        System.err.println("Cache at " + subscriber + " unreachable: " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    // The checksum of a file in server_fl: known if it was uploaded, computed if it was put there by hand
+    static String checksumOf(String fileName, File file) throws IOException {
+        String known = blobs.checksumOf(fileName);
+        return known != null ? known : checksum.contentOf(file);
+    }
+
 }
@@ -0,0 +1,192 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+
+/**
+ * The session_protocol class defines the framed request/response protocol used on
+ * persistent TCP connections, so many get/put requests can share one connection
+ * instead of paying a TCP handshake each.
+ *
+ * A client opens a session by sending writeUTF("session") as its first command and
+ * reading the response. After that every request is:
+ *  - get:  writeUTF("get <file> [<offset> [<length>]]")
+ *  - put:  writeUTF("put <file> [<offset> <total>] [<checksum>]"), writeLong(size), file bytes
+ *  - stat: writeUTF("stat <file>"), answered with writeLong(size), writeUTF(checksum) as the body
+ *  - getif: writeUTF("getif <file> <version>"), a conditional get: NOT_MODIFIED with no body if
+ *           the file's version (its checksum) is still <version>, otherwise OK with the new
+ *           version as the message and the whole file as the body
+ *  - subscribe: writeUTF("subscribe <host> <port>"), asks the server to send "invalidate <file>
+ *           <version>" to the cache listening there whenever an upload changes a file
+ *  - invalidate: writeUTF("invalidate <file> [<version>]"), tells a cache its copy of the file is
+ *           out of date unless its version is already <version>
+ *  - encoding: writeUTF("encoding <name>[,<name>...]"), offers compressed replies for the rest of
+ *           the session, answered with the encoding chosen as the message (see deflate_codec)
+ * Caches also accept put, which they write through to the server or back to it later.
+ * and every response is a frame:
+ *  - writeByte(status), writeUTF(message), writeLong(length), <length> body bytes
+ * where a whole-file get or getif on a session that chose deflate may have status DEFLATED,
+ * meaning OK with the file's compressed form as the body.
+ *
+ * The connection stays open for the next request until either side closes it or
+ * it sits idle longer than the server's session timeout. Connections that don't
+ * start with the handshake keep using the original one-request protocol.
+ */
+public class session_protocol {
+
+    // First command sent on a connection to switch it to framed mode
+    public static final String HANDSHAKE = "session";
+
+    // Response status codes
+    public static final byte OK = 0;
+    public static final byte NOT_FOUND = 1;
+    public static final byte ERROR = 2;
+    public static final byte NOT_MODIFIED = 3;
+    public static final byte DEFLATED = 4;
+
+    // Session command offering compressed replies
+    public static final String ENCODING = "encoding";
+
+    // How often an idle session checks whether it should end
+    private static final int POLL_INTERVAL = 1000;
+
+    // Set when the process is shutting down
+    private static volatile boolean draining = false;
+
+    /**
+     * Handles one request read from a session.
+     */
+    public interface handler {
+        /**
+         * @param command The request.
+         * @param deflate True if the client chose compressed replies (see deflate_codec).
+         * @throws IOException If the connection fails.
+         */
+        void handle(String command, boolean deflate) throws IOException;
+    }
+
+    /**
+     * The fixed part of a response frame.
+     */
+    public static class header {
+        public final byte status;
+        public final String message;
+        public final long length;
+
+        header(byte status, String message, long length) {
+            this.status = status;
+            this.message = message;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Encodes the body of a stat response.
+     *
+     * @param size     The file size.
+     * @param checksum The file's checksum (see checksum), or null if it isn't known.
+     * @return writeLong(size) followed by writeUTF(checksum) if there is one.
+     */
+    public static ByteBuffer statBody(long size, String checksum) {
+        byte[] text = checksum == null ? new byte[0] : checksum.getBytes();
+        ByteBuffer body = ByteBuffer.allocate(8 + (checksum == null ? 0 : 2 + text.length));
+        body.putLong(size);
+        if (checksum != null)
+            body.putShort((short) text.length).put(text);
+        body.flip();
+        return body;
+    }
+
+    /**
+     * Writes a response frame header. The caller writes <length> body bytes after it.
+     *
+     * @param dos     The stream to write to.
+     * @param status  OK, NOT_FOUND, ERROR, NOT_MODIFIED or DEFLATED.
+     * @param message A human-readable message shown to the user.
+     * @param length  The number of body bytes that follow.
+     * @throws IOException If the connection fails.
+     */
+    public static void writeHeader(DataOutputStream dos, byte status, String message, long length) throws IOException {
+        dos.writeByte(status);
+        dos.writeUTF(message);
+        dos.writeLong(length);
+        dos.flush();
+    }
+
+    /**
+     * Reads a response frame header.
+     *
+     * @param dis The stream to read from.
+     * @return The header; the body follows in the stream.
+     * @throws IOException If the connection fails or closes.
+     */
+    public static header readHeader(DataInputStream dis) throws IOException {
+        byte status = dis.readByte();
+        String message = dis.readUTF();
+        long length = dis.readLong();
+        return new header(status, message, length);
+    }
+
+    /**
+     * Runs the server side of a session after the handshake command was read:
+     * acknowledges it, then hands every following request to the handler until
+     * the client closes the connection or stays idle too long. The session's
+     * "encoding" command is answered here.
+     *
+     * @param socket      The client connection.
+     * @param dis         The connection's input stream.
+     * @param dos         The connection's output stream.
+     * @param idleTimeout Milliseconds a session may wait for its next request (0 waits forever).
+     * @param handler     Handles each request and writes its response frame.
+     * @throws IOException If the connection fails in the middle of a request.
+     */
+    public static void serve(Socket socket, DataInputStream dis, DataOutputStream dos, int idleTimeout, handler handler) throws IOException {
+        writeHeader(dos, OK, "Session started.", 0);
+
+        long idleSince = System.currentTimeMillis();
+        boolean deflate = false;
+        while (!draining) {
+            int first;
+            try {
+                // Only the wait for a request's first byte is limited, not the request or the
+                // transfers, so a timeout never loses part of a command. Wake up every poll
+                // interval to notice a shutdown while idle.
+                socket.setSoTimeout(POLL_INTERVAL);
+                first = dis.read();
+                socket.setSoTimeout(0);
+            } catch (SocketTimeoutException e) {
+                if (idleTimeout > 0 && System.currentTimeMillis() - idleSince >= idleTimeout)
+                    return; // Client left the session idle too long
+                continue;
+            }
+            if (first < 0)
+                return; // Client closed the session
+
+            // The rest of the command follows the byte already read
+            String command;
+            try {
+                command = DataInputStream.readUTF(new DataInputStream(new SequenceInputStream(
+                        new ByteArrayInputStream(new byte[] { (byte) first }), dis)));
+            } catch (EOFException e) {
+                return; // Client closed the session in the middle of a command
+            }
+
+            if (command.startsWith(ENCODING + " ")) {
+                deflate = deflate_codec.accepts(command.substring(ENCODING.length() + 1));
+                writeHeader(dos, OK, deflate ? deflate_codec.NAME : deflate_codec.IDENTITY, 0);
+            } else {
+                handler.handle(command, deflate);
+            }
+            dos.flush();
+            idleSince = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Makes sessions end once they are idle, so a shutdown only waits for
+     * requests in progress instead of for clients holding connections open.
+     */
+    public static void drain() {
+        draining = true;
+    }
+
+}
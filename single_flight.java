@@ -0,0 +1,156 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The single_flight class coalesces concurrent requests for the same key into
+ * one fetch. The first caller for a key runs the fetch; callers that arrive
+ * while it is in flight wait for and share its result instead of starting
+ * their own.
+ *
+ * Every acquire() must be paired with a release(). When the last caller of a
+ * flight releases it, the publisher is run once with the shared result (e.g. to
+ * move a downloaded file into place), so the result stays valid for everyone
+ * still using it. Publishing runs outside the lock, so a slow publish only holds
+ * up callers of the same key, which wait for it before starting a new flight.
+ *
+ * A flight whose fetch failed is dropped as soon as it fails, so callers arriving
+ * afterwards start a new fetch instead of sharing the stale exception. It has
+ * nothing to publish; the releases of its callers are only counted off.
+ *
+ * @param <T> The type of the fetched result.
+ */
+public class single_flight<T> {
+
+    /**
+     * Fetches the value for a key. Runs at most once per flight.
+     */
+    public interface fetcher<T> {
+        T fetch() throws IOException;
+    }
+
+    /**
+     * Finishes a flight whose fetch succeeded once nobody is using its result anymore.
+     */
+    public interface publisher<T> {
+        void publish(String key, T result);
+    }
+
+    // A fetch in progress (or finished but still in use) and the number of callers sharing it
+    private static class flight<T> {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        int callers = 1;
+
+        // Completed once the flight is published and removed; set while it is being published
+        CompletableFuture<Void> published;
+    }
+
+    private final publisher<T> publisher;
+    private final Map<String, flight<T>> flights = new HashMap<>();
+
+    // Callers of dropped failed flights that haven't released yet, per key. Releases
+    // don't say which flight they belong to; any release of the key counts off one
+    // of these first, which never lets a newer flight publish before all its callers
+    // released, since every caller releases exactly once.
+    private final Map<String, Integer> failedCallers = new HashMap<>();
+
+    /**
+     * @param publisher Run once per flight when its last caller releases it.
+     */
+    public single_flight(publisher<T> publisher) {
+        this.publisher = publisher;
+    }
+
+    /**
+     * Returns the result for the key, running the fetch if no flight for the
+     * key is in progress, or waiting for the one that is.
+     *
+     * @param key     The key being fetched.
+     * @param fetcher Fetches the value if this caller starts the flight.
+     * @return The shared result.
+     * @throws IOException If the flight's fetch failed.
+     */
+    public T acquire(String key, fetcher<T> fetcher) throws IOException {
+        flight<T> current;
+        boolean leader;
+        while (true) {
+            CompletableFuture<Void> publishing;
+            synchronized (flights) {
+                current = flights.get(key);
+                publishing = current != null ? current.published : null;
+                if (publishing == null) {
+                    leader = current == null;
+                    if (leader) {
+                        current = new flight<>();
+                        flights.put(key, current);
+                    } else {
+                        current.callers++;
+                    }
+                    break;
+                }
+            }
+            // The previous flight is being published; its result is about to be in place
+            publishing.join();
+        }
+
+        if (leader) {
+            try {
+                current.result.complete(fetcher.fetch());
+            } catch (IOException | RuntimeException e) {
+                synchronized (flights) {
+                    // Later callers start over; the callers sharing this flight get the exception
+                    current.result.completeExceptionally(e);
+                    flights.remove(key);
+                    failedCallers.merge(key, current.callers, Integer::sum);
+                }
+            }
+        }
+
+        try {
+            return current.result.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException("Fetch for " + key + " failed: " + cause, cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + key);
+        }
+    }
+
+    /**
+     * Releases the caller's share of the key's flight. The last release
+     * publishes the result and ends the flight.
+     *
+     * @param key The key passed to acquire().
+     */
+    public void release(String key) {
+        flight<T> current;
+        synchronized (flights) {
+            Integer failed = failedCallers.get(key);
+            if (failed != null) {
+                if (failed > 1)
+                    failedCallers.put(key, failed - 1);
+                else
+                    failedCallers.remove(key);
+                return;
+            }
+            current = flights.get(key);
+            if (current == null || current.published != null || --current.callers > 0)
+                return;
+            // Keep the flight in place while it is published, so new callers never see neither
+            current.published = new CompletableFuture<>();
+        }
+
+        try {
+            publisher.publish(key, current.result.getNow(null));
+        } finally {
+            synchronized (flights) {
+                flights.remove(key);
+            }
+            current.published.complete(null);
+        }
+    }
+
+}
@@ -1,204 +1,453 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.*;
 
 /**
  * This class provides methods for file transfer over a UDP connection using
  * Stop-and-Wait protocol. It includes methods to upload and download files with
  * acknowledgement (ACK) and completion (FIN) signals to ensure reliable transfer.
+ *
+ * Every datagram carries a udp_packet header (flags, sequence number, length, session and
+ * checksum). Data packets are numbered, so the receiver recognizes a retransmitted
+ * packet whose ACK was lost and acknowledges it again without writing it twice, and
+ * the sender resends a packet whose ACK doesn't arrive instead of giving up.
+ *
+ * How long to wait for an ACK follows the measured round-trip time to the peer
+ * (rtt_estimator), doubling on every timeout, instead of a fixed second.
+ *
+ * Transfers run as sessions of a shared udp_endpoint, so any number of them can
+ * run at once without a dedicated socket or port per file. Chunks are read into
+ * pooled packet frames and resent from the same frame, and each packet fills a
+ * datagram of the path MTU (see path_mtu) instead of carrying 1000 bytes.
+ *
+ * Stop-and-wait moves one packet per round trip, so compression pays by putting
+ * more of the file in each packet rather than by shrinking packets. With
+ * -Dtransport.compression=deflate the sender offers it with the LEN packet; a
+ * receiver that accepts answers with DEFLATE set in its ACK, and the sender then
+ * packs each DATA packet with as much of the file (up to MAX_SPAN chunks) as
+ * deflates into it, guessing from how well the previous packet compressed, and
+ * sends chunks that don't compress as they are. Receivers always accept.
+ *
+ * Settings (system properties):
+ *  - snw.retries:     Times a packet is resent before the transfer is abandoned (default 10).
+ *  - snw.idleTimeout: Milliseconds the receiver waits for the next packet (default 30000).
+ *  - snw.chunkSize:   File bytes per packet (default: what fills a udp.mtu datagram, 1453 bytes).
+ *
+ * Packets, retransmissions, duplicates, failed transfers and round-trip samples are
+ * counted under snw.* (see metrics).
  */
-public class snw_transport {
-	
+public class snw_transport implements udp_transport {
+
 	// Protocol handlers for TCP and Stop-and-Wait
     static tcp_transport tcpTransport = new tcp_transport();
-	
+
+    // Retransmission settings, shared by every transfer
+    static final int RETRIES = Integer.getInteger("snw.retries", 10);
+    static final int IDLE_TIMEOUT = Integer.getInteger("snw.idleTimeout", 30000);
+
+    // Chunk size for file data
+    static final int CHUNK_SIZE = Math.max(1, Math.min(Integer.getInteger("snw.chunkSize", path_mtu.DEFAULT_PAYLOAD),
+            udp_packet.MAX_PAYLOAD));
+
+    // Counters reported by the stats commands and JMX (see metrics)
+    static final LongAdder PACKETS_SENT = metrics.counter("snw.packets.sent");
+    static final LongAdder RETRANSMITS = metrics.counter("snw.retransmits");
+    static final LongAdder DUPLICATES = metrics.counter("snw.duplicates");
+    static final LongAdder FAILED = metrics.counter("snw.transfers.failed");
+    static final LongAdder BYTES_SENT = metrics.counter("snw.bytes.sent");
+    static final LongAdder BYTES_RECEIVED = metrics.counter("snw.bytes.received");
+    static final LongAdder PACKETS_DEFLATED = metrics.counter("snw.packets.deflated");
+    static final latency_histogram RTT = metrics.histogram("snw.rtt");
+
+    // Most chunks of file data a deflated packet carries
+    static final int MAX_SPAN = 16;
+
+    // The socket all transfers of this process share
+    private final udp_endpoint endpoint;
+
+    /**
+     * Fills DATA packets with deflated file data, as much as fits in one packet.
+     */
+    private static class packer {
+        final int chunkSize;
+        final Deflater deflater = new Deflater(deflate_codec.LEVEL, true);
+        final byte[] raw;
+        final byte[] deflated;
+
+        // File bytes to try in the next packet; the file bytes the last packet took, and whether deflated
+        int span;
+        int taken;
+        boolean compressed;
+
+        packer(int chunkSize) {
+            this.chunkSize = chunkSize;
+            this.raw = new byte[chunkSize * MAX_SPAN];
+            this.deflated = new byte[chunkSize];
+            this.span = chunkSize * 2;
+        }
+
+        // Reads the file from position on and fills the next packet's frame, deflated if that
+        // helps; sets taken and compressed. The frame is sealed by the caller.
+        ByteBuffer pack(udp_endpoint.session socket, FileChannel channel, long position, long fileSize) throws IOException {
+            int length = (int) Math.min(span, fileSize - position);
+            ByteBuffer chunk = ByteBuffer.wrap(raw, 0, length);
+            while (chunk.hasRemaining()) {
+                if (channel.read(chunk, position + chunk.position()) < 0)
+                    throw new EOFException("File shrank while sending");
+            }
+
+            int stored = deflate_codec.deflate(deflater, raw, length, deflated, Math.min(chunkSize, length - 1));
+            if (stored < 0 && length > chunkSize) {
+                // The guess was too much, one chunk is sure to fit as it is
+                length = (int) Math.min(chunkSize, fileSize - position);
+                stored = deflate_codec.deflate(deflater, raw, length, deflated, length - 1);
+            }
+            taken = length;
+            compressed = stored >= 0;
+
+            ByteBuffer frame;
+            if (!compressed) {
+                span = chunkSize;
+                frame = socket.frame(length);
+                frame.put(raw, 0, length);
+                return frame;
+            }
+            // Aim a little below a full packet next time, compression varies along the file
+            span = (int) Math.max(chunkSize, Math.min((long) chunkSize * MAX_SPAN,
+                    (long) length * chunkSize * 7 / 8 / Math.max(1, stored)));
+            frame = socket.frame(stored);
+            frame.put(deflated, 0, stored);
+            PACKETS_DEFLATED.increment();
+            deflate_codec.BYTES_SAVED.add(length - stored);
+            return frame;
+        }
+
+        void end() {
+            deflater.end();
+        }
+    }
+
+    public snw_transport(udp_endpoint endpoint) {
+        this.endpoint = endpoint;
+    }
+
 	/**
 	 * Uploads a file to the server using UDP protocol with Stop-and-Wait strategy.
 	 * The method sends the file length, waits for an ACK, then sends file chunks.
-	 * Each chunk is acknowledged by the server before the next one is sent.
-	 * 
+	 * Each chunk is acknowledged by the server before the next one is sent, and
+	 * resent up to RETRIES times when its ACK doesn't arrive.
+	 *
 	 * @param serverIP   The IP address of the server.
-	 * @param serverPort The port number of the server.
+	 * @param serverPort The UDP port of the server's endpoint.
+	 * @param sessionId  The transfer's session ID.
 	 * @param file       The file to be uploaded.
 	 */
-	public void uploadFile(String serverIP, int serverPort, File file, String feedback) {
-	    try (DatagramSocket socket = new DatagramSocket()) {
-	        InetAddress serverAddress = InetAddress.getByName(serverIP);
-	        
-	        // Prepare the length message to send the file size to the server
-	        String lengthMessage = "LEN:" + file.length();
-	        byte[] lengthData = lengthMessage.getBytes();
-	        boolean ackReceived = false; // Track if acknowledgment is received
-	        int retries = 3; // Maximum retries for sending the length message
+	@Override
+	public void uploadFile(String serverIP, int serverPort, long sessionId, File file, String feedback) {
+	    SocketAddress serverAddress;
+	    try {
+	        serverAddress = new InetSocketAddress(InetAddress.getByName(serverIP), serverPort);
+	    } catch (UnknownHostException e) {
+	        System.out.println("Unknown host: " + serverIP);
+	        return;
+	    }
+
+	    ByteBuffer lastPacket = null;
+	    packer packer = null;
+	    try (udp_endpoint.session socket = endpoint.open(sessionId, serverAddress);
+	         FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+	        rtt_estimator rtt = rtt_estimator.forPeer(serverAddress);
+	        long fileSize = channel.size();
+	        int chunkSize = path_mtu.payloadSize(socket, rtt, CHUNK_SIZE);
+
+	        // Prepare the length message to send the file size and checksum to the server
+	        byte[] fileChecksum = checksum.of(file).getBytes();
+	        lastPacket = socket.frame(12 + fileChecksum.length);
+	        lastPacket.putLong(fileSize).putInt(chunkSize).put(fileChecksum);
+	        socket.seal(lastPacket, deflate_codec.ENABLED ? (byte) (udp_packet.LEN | udp_packet.DEFLATE) : udp_packet.LEN, 0);
 
 	        // Retry loop for sending the length message until an ACK is received
-	        for (int i = 0; i < retries; i++) {
-	            DatagramPacket lengthPacket = new DatagramPacket(lengthData, lengthData.length, serverAddress, serverPort);
-	            
-	            socket.send(lengthPacket); // Send length packet
-	            socket.setSoTimeout(1000); // Set timeout to wait for ACK
-
-	            byte[] ackBuffer = new byte[100]; // Buffer for receiving ACK
-	            DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
-	            
-	            try {
-	                System.out.println("Awaiting server response.");
-	                socket.receive(ackPacket); // Wait for ACK from server
-	                String ack = new String(ackPacket.getData(), 0, ackPacket.getLength());
-	                
-	                if (ack.equals("ACK")) { // Check if received message is ACK
-	                    ackReceived = true; 
-	                    break; // Exit loop if ACK is received
-	                } else {
-	                    System.out.println("Received unexpected message: " + ack);
-	                }
-	            } catch (SocketTimeoutException e) {
-	                System.out.println("Did not receive ACK for LEN. Retrying...");
-	                
-	                // Add sleep here for a retry pause only if ACK was not received
-	                try {
-	                    Thread.sleep(5000);
-	                } catch (InterruptedException e1) {
-	                    e1.printStackTrace();
-	                }
-	            }
+	        System.out.println("Awaiting server response.");
+	        byte ackFlags = sendAndAwaitAck(socket, rtt, lastPacket, 0);
+	        if (ackFlags == 0) {
+	            FAILED.increment();
+	            System.out.println("Failed to receive ACK after " + RETRIES + " attempts. Terminating.");
+	            return;
 	        }
 
+	        // The receiver inflates DATA packets if it set DEFLATE in its ACK
+	        if (deflate_codec.ENABLED && (ackFlags & udp_packet.DEFLATE) != 0)
+	            packer = new packer(chunkSize);
+
+	        // Send the file contents in chunks, each numbered so duplicates can be recognized
+	        // and read straight into the packet that carries it
+	        int seq = 0;
+	        long payloadBytesSent = 0;
+	        for (long position = 0; position < fileSize; ) {
+	            int length;
+	            socket.release(lastPacket);
+	            if (packer != null) {
+	                lastPacket = packer.pack(socket, channel, position, fileSize);
+	                length = packer.taken;
+	                socket.seal(lastPacket, packer.compressed ? (byte) (udp_packet.DATA | udp_packet.DEFLATE) : udp_packet.DATA, seq);
+	            } else {
+	                length = (int) Math.min(chunkSize, fileSize - position);
+	                lastPacket = socket.frame(length);
+	                int start = lastPacket.position();
+	                while (lastPacket.hasRemaining()) {
+	                    if (channel.read(lastPacket, position + lastPacket.position() - start) < 0)
+	                        throw new EOFException("File shrank while sending");
+	                }
+	                socket.seal(lastPacket, udp_packet.DATA, seq);
+	            }
+	            position += length;
+	            payloadBytesSent += lastPacket.limit() - udp_packet.HEADER_SIZE;
 
-	        // If ACK is not received after retries, terminate the upload
-	        if (!ackReceived) {
-	            System.out.println("Failed to receive ACK after " + retries + " attempts. Terminating.");
-	            return; 
+	            if (sendAndAwaitAck(socket, rtt, lastPacket, seq + 1) == 0) {
+	                FAILED.increment();
+	                System.out.println("Did not receive ACK for data packet " + seq + " after " + RETRIES + " attempts. Terminating.");
+	                return;
+	            }
+	            seq++;
 	        }
 
-	        // Open the file for reading and start sending its contents in chunks
-	        try (FileInputStream fis = new FileInputStream(file)) {
-	            byte[] buffer = new byte[1000]; // Chunk size for file data
-	            int bytesRead;
-	            DatagramPacket ackPacket = new DatagramPacket(new byte[100], 100); 
-	            
-	            // Read and send the file data in chunks
-	            while ((bytesRead = fis.read(buffer)) > 0) {
-	            	// Create a data packet for each file chunk and send to server
-	                DatagramPacket dataPacket = new DatagramPacket(buffer, bytesRead, serverAddress, serverPort);
-	                socket.send(dataPacket);
-
-	                // Wait for acknowledgment (ACK) from server for each chunk
-	                socket.setSoTimeout(1000); // Timeout for each ACK
-	                try {
-	                    socket.receive(ackPacket); // Receive ACK for data packet
-	                    String ack = new String(ackPacket.getData(), 0, ackPacket.getLength());
-	                    if (!ack.equals("ACK")) { // Check if ACK is received
-	                        throw new IOException("ACK not received for data packet.");
-	                    }
-	                } catch (SocketTimeoutException e) {
-	                    System.out.println("Did not receive ACK for data packet. Terminating.");
-	                    return; 
+	        // After all chunks are sent, wait for server's FIN message to confirm completion.
+	        // The last packet is resent if FIN is lost; a finished receiver answers it with FIN again.
+	        for (int attempt = 0; attempt <= RETRIES; attempt++) {
+	            socket.setSoTimeout(rtt.rto());
+	            try {
+	                udp_packet fin = socket.receive();
+	                fin.release();
+	                if (fin.is(udp_packet.FIN)) {
+	                	socket.send(udp_packet.MSG, seq, feedback.getBytes());
+	                	BYTES_SENT.add(payloadBytesSent);
+
+	                	System.out.println("Server response: File successfully uploaded.");
+	                	return;
 	                }
+	            } catch (SocketTimeoutException e) {
+	                rtt.backoff();
+	                socket.send(lastPacket);
+	                PACKETS_SENT.increment();
+	                RETRANSMITS.increment();
 	            }
 	        }
-	        
-	        // After all chunks are sent, wait for server's FIN message to confirm completion
-	        byte[] finBuffer = new byte[100]; // Buffer for receiving FIN message
-	        DatagramPacket finPacket = new DatagramPacket(finBuffer, finBuffer.length);
-	        
-	        try {
-                socket.setSoTimeout(1000);
-                socket.receive(finPacket); // Receive FIN message
-                String finMessage = new String(finPacket.getData(), 0, finPacket.getLength());
-                if (finMessage.equals("FIN")) { // Check if received message is FIN
-                	byte[] feedbackData = feedback.getBytes();
-		        
-                	DatagramPacket feedbackPacket = new DatagramPacket(feedbackData, feedbackData.length, serverAddress, serverPort);
-                	socket.send(feedbackPacket);
-	        	
-                	System.out.println("Server response: File successfully uploaded.");
-                }
-	        } catch (SocketTimeoutException e) {
-                System.out.println("Did not receive FIN. Terminating.");
-            }
+	        FAILED.increment();
+	        System.out.println("Did not receive FIN. Terminating.");
 
 	    } catch (IOException e) {
+	        FAILED.increment();
 	        e.printStackTrace();
+	    } finally {
+	        buffer_pool.release(lastPacket);
+	        if (packer != null)
+	            packer.end();
 	    }
 	}
 
+	// Sends a packet and waits for the ACK of the next sequence number, resending it when the
+	// RTO expires; returns the ACK's flags, or 0 if it never came
+	private byte sendAndAwaitAck(udp_endpoint.session socket, rtt_estimator rtt, ByteBuffer packet,
+	                                int expectedAck) throws IOException {
+	    for (int attempt = 0; attempt <= RETRIES; attempt++) {
+	        long sentAt = System.nanoTime();
+	        int rto = rtt.rto();
+	        socket.send(packet);
+	        PACKETS_SENT.increment();
+	        if (attempt > 0)
+	            RETRANSMITS.increment();
+	        socket.setSoTimeout(rto);
+
+	        // Keep listening until the timeout; stale ACKs for earlier packets are ignored
+	        long deadline = System.currentTimeMillis() + rto;
+	        try {
+	            while (true) {
+	                udp_packet ack = socket.receive();
+	                ack.release();
+	                if (ack.is(udp_packet.ACK) && ack.seq == expectedAck) {
+	                    // A resent packet's ACK could belong to either send, so only first sends are sampled
+	                    if (attempt == 0) {
+	                        rtt.sample(System.nanoTime() - sentAt);
+	                        RTT.recordSince(sentAt);
+	                    } else
+	                        rtt.acked();
+	                    return ack.flags;
+	                }
+	                socket.setSoTimeout((int) Math.max(1, deadline - System.currentTimeMillis()));
+	            }
+	        } catch (SocketTimeoutException e) {
+	            rtt.backoff();
+	            System.out.println("Did not receive ACK for packet " + (expectedAck - 1) + ". Retrying...");
+	        }
+	    }
+	    return 0;
+	}
+
 	/**
 	 * Downloads a file from a client over UDP using the Stop-and-Wait protocol.
-	 * This method listens on the specified port, receives the file length from the client,
+	 * This method waits for the session's packets on the endpoint, receives the file length from the client,
 	 * sends an acknowledgment (ACK) for each packet received, and saves the file to the specified directory.
+	 * Packets that were already written are acknowledged again but not written twice.
 	 *
-	 * @param port     The port on which the server listens for incoming file data.
-	 * @param filename The name to save the downloaded file as.
-	 * @param dir      The directory to save the downloaded file. Defaults to "client_fl" if not provided.
+	 * @param sessionId The transfer's session ID, sent to the other side with the command.
+	 * @param filename  The name to save the downloaded file as.
+	 * @param dir       The directory to save the downloaded file. Defaults to "client_fl" if not provided.
+	 * @return True if the whole file was received.
 	 */
-	public void downloadFile(int port, String filename, String dir) {
-	    try (DatagramSocket socket = new DatagramSocket(port)) {
-	    	
+	@Override
+	public boolean downloadFile(long sessionId, String filename, String dir) {
+	    boolean complete = false;
+	    try (udp_endpoint.session socket = endpoint.open(sessionId, null)) {
+
 	    	// If directory is null or empty, set default directory
 	    	if (dir == null || dir.isEmpty()) {
 	            dir = "client_fl";
 	        }
 
+	        // Give up if the sender goes silent
+	        socket.setSoTimeout(IDLE_TIMEOUT);
+
+	        // Receive LEN message from client indicating the file size
+	        udp_packet lengthMessage;
 	        while (true) {
-	        	// Receive LEN message from client indicating the file size
-	            byte[] buffer = new byte[1024];
-	            DatagramPacket lengthPacket = new DatagramPacket(buffer, buffer.length);
-	            socket.receive(lengthPacket);
-	            String lengthMessage = new String(lengthPacket.getData(), 0, lengthPacket.getLength());
-
-	            // Check if received message is a LEN message
-	            if (lengthMessage.startsWith("LEN:")) {
-	                long fileSize = Long.parseLong(lengthMessage.substring(4));
-
-	                // Send ACK for LEN message to client
-	                byte[] ackData = "ACK".getBytes();
-	                DatagramPacket ackPacket = new DatagramPacket(ackData, ackData.length, lengthPacket.getAddress(), lengthPacket.getPort());
-	                socket.send(ackPacket);
-
-	                // Prepare to receive file data
-	                File file = new File(dir, filename);
-	                file.getParentFile().mkdirs(); // Create directories if needed
-
-	                try (FileOutputStream fos = new FileOutputStream(file)) {
-	                    long totalBytesReceived = 0;
-
-	                    // Receive file data packets until the entire file is received
-	                    while (totalBytesReceived < fileSize) {
-	                        DatagramPacket dataPacket = new DatagramPacket(buffer, buffer.length);
-	                        socket.receive(dataPacket);
-
-	                        // Write received data to file
-	                        fos.write(dataPacket.getData(), 0, dataPacket.getLength());
-	                        totalBytesReceived += dataPacket.getLength();
-
-	                        // Send ACK for each data packet
-	                        byte[] ackDataForData = "ACK".getBytes();
-	                        DatagramPacket ackPacketForData = new DatagramPacket(ackDataForData, ackDataForData.length, dataPacket.getAddress(), dataPacket.getPort());
-	                        socket.send(ackPacketForData);
-	                    }
+	            lengthMessage = socket.receive();
+	            if (lengthMessage.is(udp_packet.LEN) && lengthMessage.length >= 12)
+	                break;
+	            lengthMessage.release();
+	        }
+
+	        rtt_estimator rtt = rtt_estimator.forPeer(socket.peer());
+	        long fileSize = lengthMessage.payload.getLong(0);
+	        String expectedChecksum = lengthMessage.length > 12 ? lengthMessage.text(12) : null;
+
+	        // Accept deflated packets whenever the sender offers them
+	        byte ackFlags = lengthMessage.is(udp_packet.DEFLATE) ? (byte) (udp_packet.ACK | udp_packet.DEFLATE) : udp_packet.ACK;
+	        lengthMessage.release();
+	        Inflater inflater = new Inflater(true);
+	        byte[] inflated = new byte[64 * 1024];
+
+	        // Send ACK for LEN message to client; the first data packet answers it, which
+	        // gives the receiving side an RTT sample for its own timers
+	        socket.send(ackFlags, 0);
+	        long ackSentAt = System.nanoTime();
+	        boolean sampled = false;
 
-	                    // After receiving the entire file, send FIN to the client
-	                    byte[] finData = "FIN".getBytes();
-	                    DatagramPacket finPacket = new DatagramPacket(finData, finData.length, lengthPacket.getAddress(), lengthPacket.getPort());
-	                    socket.send(finPacket);
-	                	// Protocol handlers for TCP and Stop-and-Wait
-	                    buffer = new byte[1024];
-	    	            DatagramPacket feedbackPacket = new DatagramPacket(buffer, buffer.length);
-	    	            socket.receive(feedbackPacket);
-	    	            String feedbackMessage = new String(feedbackPacket.getData(), 0, feedbackPacket.getLength());
-	    	            if (feedbackMessage != "")
-	    	            	System.out.println("Server Response: " + feedbackMessage);
-	                } catch (IOException e) {
-	                    System.err.println("Error while receiving the file: " + e.getMessage());
+	        // Prepare to receive file data
+	        File file = new File(dir, filename);
+	        file.getParentFile().mkdirs(); // Create directories if needed
+
+	        try (FileChannel channel = FileChannel.open(file.toPath(),
+	                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+	            long totalBytesReceived = 0;
+	            long packetBytesReceived = 0;
+	            int expected = 0; // Sequence number of the next new packet
+
+	            // Receive file data packets until the entire file is received
+	            while (totalBytesReceived < fileSize) {
+	                udp_packet dataPacket = socket.receive();
+
+	                if (dataPacket.is(udp_packet.LEN)) {
+	                    // Our ACK for LEN was lost, and the round trip can no longer be measured
+	                    dataPacket.release();
+	                    socket.send(ackFlags, 0);
+	                    sampled = true;
+	                    continue;
 	                }
+	                if (!dataPacket.is(udp_packet.DATA)) {
+	                    dataPacket.release();
+	                    continue;
+	                }
+
+	                if (!sampled) {
+	                    rtt.sample(System.nanoTime() - ackSentAt);
+	                    sampled = true;
+	                }
+
+	                // Write received data to file, unless it is a retransmission we already have
+	                if (dataPacket.seq == expected) {
+	                    if (dataPacket.is(udp_packet.DEFLATE)) {
+	                        totalBytesReceived += inflate(inflater, dataPacket.payload, inflated, channel);
+	                    } else {
+	                        while (dataPacket.payload.hasRemaining())
+	                            channel.write(dataPacket.payload);
+	                        totalBytesReceived += dataPacket.length;
+	                    }
+	                    packetBytesReceived += dataPacket.length;
+	                    expected++;
+	                } else {
+	                    DUPLICATES.increment();
+	                }
+	                dataPacket.release();
+
+	                // ACK the packet (again, for a duplicate whose ACK was lost)
+	                if (dataPacket.seq < expected)
+	                    socket.send(udp_packet.ACK, dataPacket.seq + 1);
 	            }
+	            BYTES_RECEIVED.add(packetBytesReceived);
+	        } finally {
+	            inflater.end();
+	        }
 
-	            break; // Break the loop after one file transfer
+	        // Every packet passed its own CRC; the file checksum catches anything else
+	        complete = checksum.matches(expectedChecksum, file);
+	        if (!complete) {
+	            System.err.println("Checksum mismatch, received file " + filename + " discarded.");
+	            file.delete();
 	        }
+
+	        // After receiving the entire file, send FIN to the client, again for every
+	        // retransmission until the feedback message arrives
+	        socket.send(udp_packet.FIN, 0);
+	        socket.setSoTimeout(Math.min(IDLE_TIMEOUT, rtt.rto() * (RETRIES + 1)));
+	        try {
+	            while (true) {
+	                udp_packet feedbackPacket = socket.receive();
+	                String feedbackMessage = feedbackPacket.is(udp_packet.MSG) ? feedbackPacket.text() : null;
+	                feedbackPacket.release();
+	                if (feedbackMessage != null) {
+	                    if (!feedbackMessage.isEmpty())
+	                        System.out.println("Server Response: " + feedbackMessage);
+	                    break;
+	                }
+	                socket.send(udp_packet.FIN, 0);
+	            }
+	        } catch (SocketTimeoutException e) {
+	            // The file is complete, only the feedback message went missing
+	        }
+
+	    } catch (SocketTimeoutException e) {
+	        System.err.println("Error while receiving the file: timed out waiting for the sender.");
 	    } catch (IOException e) {
 	        System.err.println("Error in server: " + e.getMessage());
 	    }
+	    if (!complete)
+	        FAILED.increment();
+	    return complete;
 	}
 
-}
+	// Inflates a deflated DATA payload and appends it to the file; returns the file bytes it held
+	private static long inflate(Inflater inflater, ByteBuffer payload, byte[] buffer, FileChannel channel) throws IOException {
+	    inflater.reset();
+	    inflater.setInput(payload);
+	    long written = 0;
+	    try {
+	        while (!inflater.finished()) {
+	            int n = inflater.inflate(buffer);
+	            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+	                throw new IOException("Invalid deflated packet.");
+	            ByteBuffer data = ByteBuffer.wrap(buffer, 0, n);
+	            while (data.hasRemaining())
+	                channel.write(data);
+	            written += n;
+	        }
+	    } catch (DataFormatException e) {
+	        throw new IOException("Invalid deflated packet: " + e.getMessage());
+	    }
+	    return written;
+	}
 
+}
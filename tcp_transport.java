@@ -1,14 +1,61 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * The tcp_transport class provides methods for uploading files to a server 
  * using TCP and receiving files on the server.
+ * 
+ * Connections are opened as SocketChannels and file bodies are moved with
+ * channel_io, which uses FileChannel.transferTo (sendfile) for sending and a
+ * direct buffer for receiving.
+ * 
+ * sendCommand/uploadFile/downloadFile use the original one-request-per-connection
+ * protocol. get/put/fetch use session_protocol over pooled persistent connections.
+ *
+ * Downloads are resumable: get saves into "<file>.part" and, if a previous attempt
+ * left one behind, only asks for the bytes after it (see byte_range). getRange
+ * fetches an arbitrary byte range into its place in the file.
+ *
+ * Large files are downloaded and uploaded in chunks over several connections at
+ * once (see parallel_transfer); get first asks the server for the file's size with
+ * "stat <file>" to decide. Smaller files use a single connection.
+ *
+ * Transfers are checked end to end (see checksum): stat also returns the file's
+ * checksum, which get verifies before keeping a download, and put sends the
+ * checksum with its command so the server can verify the upload.
+ *
+ * Session exchanges are timed in the tcp.exchange histogram, and bytes moved,
+ * retried exchanges and checksum mismatches are counted (see metrics).
+ *
+ * With -Dtransport.compression=deflate, sessions ask for compressed replies (see
+ * deflate_codec); whole-file downloads that arrive compressed are decoded as the
+ * frames come in, so the file on disk, and any client it is relayed to, get the
+ * file's own bytes. Byte counts are what crossed the network.
  */
 public class tcp_transport {
 	
 	// Keep the socket open for use during file upload
     private Socket socket;
+
+    // Session connections shared by all instances, kept open between requests
+    private static final connection_pool pool = connection_pool.fromSettings();
+
+    static {
+        // Close idle sessions on exit, so servers see them end instead of waiting out their idle timeout
+        Runtime.getRuntime().addShutdownHook(new Thread(pool::closeAll, "connection-pool-close"));
+    }
+
+    // Counters reported by the stats commands and JMX (see metrics)
+    static final LongAdder BYTES_SENT = metrics.counter("tcp.bytes.sent");
+    static final LongAdder BYTES_RECEIVED = metrics.counter("tcp.bytes.received");
+    static final LongAdder RETRIED = metrics.counter("tcp.exchanges.retried");
+    static final LongAdder CHECKSUM_MISMATCHES = metrics.counter("tcp.checksumMismatches");
+    static final latency_histogram EXCHANGE_LATENCY = metrics.histogram("tcp.exchange");
 	
 	
     /**
@@ -21,7 +68,7 @@ public class tcp_transport {
     public void sendCommand(String serverIP, int serverPort, String command) {
         try {
             // Create a socket connection to the server using the specified IP and port
-            socket = new Socket(serverIP, serverPort);
+            socket = channel_io.connect(serverIP, serverPort);
 
             // Create a DataOutputStream to send data to the server
             DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
@@ -47,7 +94,7 @@ public class tcp_transport {
         try {
         	// Ensure the socket is connected to the server
             if (socket == null || socket.isClosed()) {
-                socket = new Socket(serverIP, serverPort);
+                socket = channel_io.connect(serverIP, serverPort);
             }
 
             DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
@@ -57,14 +104,8 @@ public class tcp_transport {
             dataOutputStream.writeUTF(file.getName());
             dataOutputStream.writeLong(file.length());
 
-            // Open file input stream and send file data in chunks
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) > 0) {
-                    dataOutputStream.write(buffer, 0, bytesRead);
-                }
-            }
+            // Send the file data straight from the page cache to the socket
+            channel_io.sendFile(file, dataOutputStream, socket);
 
             dataOutputStream.flush(); // Ensure all data is sent
 
@@ -89,51 +130,70 @@ public class tcp_transport {
     }
 	
     /**
-     * Receives a file from a client over TCP, saving it to the server's "server_files" directory.
+     * Stores a file a client finished uploading.
+     */
+	public interface upload_handler {
+	    /**
+	     * @param fileName         The name the client sent.
+	     * @param staged           The received file, in the upload directory.
+	     * @param expectedChecksum The checksum the client sent, or null.
+	     * @return The confirmation message, or null if the upload was rejected and discarded.
+	     * @throws IOException If the file can't be stored.
+	     */
+	    String complete(String fileName, File staged, String expectedChecksum) throws IOException;
+	}
+
+    /**
+     * Receives a file from a client over TCP into the server's "server_fl/.upload"
+     * directory and hands it to the handler, which checks it against the checksum the
+     * client sent with its command and stores it.
+     * Reads the file data through the socket's channel when it has one.
      *
+     * @param clientSocket     The client connection the streams belong to, or null.
      * @param dataInputStream  The input stream to read file data from.
      * @param dataOutputStream The output stream to send confirmation to the client.
-     * @throws IOException If an error occurs during file reception.
+     * @param expectedChecksum The checksum from the client's "put <file> <checksum>", or null.
+     * @param handler          Stores the received file.
      */
-	public void receiveFile(DataInputStream dataInputStream, DataOutputStream dataOutputStream) {
+	public void receiveFile(Socket clientSocket, DataInputStream dataInputStream, DataOutputStream dataOutputStream,
+	                        String expectedChecksum, upload_handler handler) {
+        File staged = null;
         try {
         	// Read the file name sent by the client
             String fileName = dataInputStream.readUTF(); 
 
             // Read the file size sent by the client
             long fileSize = dataInputStream.readLong(); 
+
+            // Names of the server's own files, or reaching outside server_fl, are refused
+            if (!blob_store.validName(fileName)) {
+                dataOutputStream.writeUTF(blob_store.INVALID_NAME + fileName);
+                return;
+            }
             
-            // Create new file in 'server_files' directory with received file name
-            File file = new File("server_fl", fileName);
-            file.getParentFile().mkdirs(); 
+            // Receive into the upload directory, the file only gets its name once it checks out
+            File uploads = new File("server_fl", ".upload");
+            uploads.mkdirs();
+            staged = File.createTempFile(fileName, ".put", uploads);
 
             // Write received data to file
-            try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
-                byte[] buffer = new byte[4096];
-                long totalBytesRead = 0;
-                int bytesRead;
-
-                // Continue reading until the total bytes read is less than the file size
-                while (totalBytesRead < fileSize) {
-                	// Read a chunk of data from the input stream into the buffer
-                    bytesRead = dataInputStream.read(buffer);
-                    if (bytesRead == -1) break; 
-                    
-                    // Write the chunk of data to the file
-                    fileOutputStream.write(buffer, 0, bytesRead);
-                    // Update the total bytes read
-                    totalBytesRead += bytesRead;
-                }
+            long totalBytesRead = channel_io.receiveFile(dataInputStream, clientSocket, staged, fileSize);
+            if (totalBytesRead < fileSize) {
+                throw new EOFException("Connection closed after " + totalBytesRead + " of " + fileSize + " bytes.");
             }
 
             // Send a confirmation response back to the client indicating successful upload
-            dataOutputStream.writeUTF("File successfully uploaded.");
-            System.out.println("File " + fileName + " received.");
+            String message = handler.complete(fileName, staged, expectedChecksum);
+            dataOutputStream.writeUTF(message != null ? message : "Checksum mismatch, upload discarded.");
 
         } catch (EOFException e) {
             System.err.println("End of stream reached unexpectedly: " + e.getMessage());
         } catch (IOException e) {
             System.err.println("Error receiving file: " + e.getMessage());
+        } finally {
+            // Nothing is left behind unless it was published
+            if (staged != null)
+                staged.delete();
         }
     }
 	
@@ -144,8 +204,10 @@ public class tcp_transport {
      * @param serverPort The port number of the server.
      * @param fileName The name of the file to download.
      * @param dir The directory to save the downloaded file. Defaults to "client_fl" if not specified.
+     * @return True if the whole file was received.
      */
-	public void downloadFile(String serverIP, int serverPort, String fileName, String dir) {
+	public boolean downloadFile(String serverIP, int serverPort, String fileName, String dir) {
+	    boolean complete = false;
 	    try {
 	    	
 	    	// Set default directory if none specified
@@ -155,7 +217,7 @@ public class tcp_transport {
 	    	
 	    	// Establish connection if not already connected
 	        if (socket == null || socket.isClosed()) {
-	            socket = new Socket(serverIP, serverPort);
+	            socket = channel_io.connect(serverIP, serverPort);
 	        }
 
 	        DataInputStream dis = new DataInputStream(socket.getInputStream());
@@ -172,18 +234,9 @@ public class tcp_transport {
 	            File file = new File(dir + "/" + fileName);
 	            file.getParentFile().mkdirs();
 
-	            // Write received file data to the file
-	            try (FileOutputStream fos = new FileOutputStream(file)) {
-	                byte[] buffer = new byte[4096];
-	                long totalBytesRead = 0;
-	                int bytesRead;
-
-	                // Read exactly 'fileSize' bytes
-	                while (totalBytesRead < fileSize && (bytesRead = dis.read(buffer, 0, (int)Math.min(buffer.length, fileSize - totalBytesRead))) > 0) {
-	                    fos.write(buffer, 0, bytesRead);
-	                    totalBytesRead += bytesRead;
-	                }
-	            }
+	            // Read exactly 'fileSize' bytes into the file
+	            long totalBytesRead = channel_io.receiveFile(dis, socket, file, fileSize);
+	            complete = totalBytesRead == fileSize;
 	            // After file transfer, read final server message
 	            String finalMessage = dis.readUTF();
 	            System.out.println("Server response: " + finalMessage);
@@ -204,6 +257,453 @@ public class tcp_transport {
 	            System.err.println("Error closing socket: " + e.getMessage());
 	        }
 	    }
+	    return complete;
+	}
+    
+	/**
+     * Downloads a file over a pooled session connection (see session_protocol),
+     * reusing an open connection to the server when one is available. The file is
+     * received as "<file>.part" and renamed once complete; if the transfer breaks,
+     * the part is kept and the next get for the file only asks for the rest. Large
+     * files are downloaded in parallel chunks (see parallel_transfer).
+     *
+     * @param serverIP The IP address of the server.
+     * @param serverPort The port number of the server.
+     * @param fileName The name of the file to download.
+     * @param dir The directory to save the downloaded file. Defaults to "client_fl" if not specified.
+     * @return True if the whole file was received.
+     */
+	public boolean get(String serverIP, int serverPort, String fileName, String dir) {
+		// Set default directory if none specified
+		String targetDir = (dir == null || dir.isEmpty()) ? "client_fl" : dir;
+		File file = new File(targetDir, fileName);
+		File part = new File(targetDir, fileName + ".part");
+		part.getParentFile().mkdirs();
+
+		long have = part.length();
+		if (have > 0)
+			System.out.println("Resuming " + fileName + " after " + have + " bytes.");
+
+	    try {
+	        // The size tells whether parallel chunks are worth it, the checksum whether the download is intact
+	        file_info info = stat(serverIP, serverPort, fileName);
+	        if (info != null && info.size >= have && parallel_transfer.worthIt(info.size - have)) {
+	            parallel_transfer.download(serverIP, serverPort, fileName, part, have, info.size);
+	            System.out.println("Server response: File delivered over " + parallel_transfer.PARALLELISM + " connections.");
+	        } else if (!fetch(serverIP, serverPort, fileName, part, have, null, null, null)) {
+	            // The file is gone or no longer matches what we have, start over next time
+	            part.delete();
+	            return false;
+	        }
+
+	        if (info != null && !checksum.matches(info.checksum, part)) {
+	            // Resuming can't repair it, since the bad bytes may be anywhere
+	            CHECKSUM_MISMATCHES.increment();
+	            System.err.println("Checksum mismatch, downloaded file " + fileName + " discarded.");
+	            part.delete();
+	            return false;
+	        }
+	        Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	        return true;
+	    } catch (IOException e) {
+	        System.err.println("Error receiving file: " + e.getMessage());
+	        if (part.length() > 0)
+	            System.err.println(part.length() + " bytes kept, get " + fileName + " again to resume.");
+	        return false;
+	    }
+	}
+
+	/**
+     * The answer to a stat request.
+     */
+	public static class file_info {
+	    public final long size;
+
+	    // The file's checksum (see checksum), or null if the server sent none
+	    public final String checksum;
+
+	    file_info(long size, String checksum) {
+	        this.size = size;
+	        this.checksum = checksum;
+	    }
+	}
+
+	/**
+     * Asks the server for the size and checksum of a file over a pooled session connection.
+     *
+     * @param serverIP The IP address of the server.
+     * @param serverPort The port number of the server.
+     * @param fileName The name of the file.
+     * @return The file's size and checksum, or null if the server doesn't have it.
+     * @throws IOException If the request fails.
+     */
+	public file_info stat(String serverIP, int serverPort, String fileName) throws IOException {
+	    return exchange(serverIP, serverPort, conn -> {
+	        conn.out.writeUTF("stat " + fileName);
+	        conn.out.flush();
+
+	        session_protocol.header header = conn.readHeader();
+	        if (header.status != session_protocol.OK)
+	            return null;
+	        long size = conn.in.readLong();
+	        return new file_info(size, header.length > 8 ? conn.in.readUTF() : null);
+	    });
+	}
+
+	/**
+     * Downloads one byte range of a file over a pooled session connection and writes
+     * it at the same offset into the local file, leaving the rest of the file as it is.
+     *
+     * @param serverIP The IP address of the server.
+     * @param serverPort The port number of the server.
+     * @param fileName The name of the file to download.
+     * @param dir The directory of the local file. Defaults to "client_fl" if not specified.
+     * @param range The byte range to download.
+     * @return True if the range was received.
+     */
+	public boolean getRange(String serverIP, int serverPort, String fileName, String dir, byte_range range) {
+		String targetDir = (dir == null || dir.isEmpty()) ? "client_fl" : dir;
+		File file = new File(targetDir, fileName);
+		file.getParentFile().mkdirs();
+
+	    try {
+	        return exchange(serverIP, serverPort, conn -> {
+	            conn.out.writeUTF(range.command(fileName));
+	            conn.out.flush();
+
+	            session_protocol.header header = conn.readHeader();
+	            if (header.status != session_protocol.OK) {
+	                System.out.println(header.message);
+	                return false;
+	            }
+
+	            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+	                long received = channel_io.receive(conn.in, conn.socket, channel, range.offset, header.length);
+	                BYTES_RECEIVED.add(received);
+	                if (received < header.length)
+	                    throw new EOFException("Server closed the connection after " + received + " of " + header.length + " bytes.");
+	            }
+	            System.out.println("Server response: " + header.message + " (" + header.length + " bytes at offset " + range.offset + ")");
+	            return true;
+	        });
+	    } catch (IOException e) {
+	        System.err.println("Error receiving file: " + e.getMessage());
+	        return false;
+	    }
+	}
+
+	/**
+     * Uploads a file over a pooled session connection (see session_protocol),
+     * reusing an open connection to the server when one is available. Large files
+     * are uploaded in parallel chunks (see parallel_transfer).
+     *
+     * @param serverIP The IP address of the server.
+     * @param serverPort The port number of the server.
+     * @param file The file to be uploaded.
+     * @return True if the server accepted the file.
+     */
+	public boolean put(String serverIP, int serverPort, File file) {
+	    try {
+	        // The server checks the upload against this before storing it
+	        String fileChecksum = checksum.of(file);
+	        if (parallel_transfer.worthIt(file.length()))
+	            System.out.println("Uploading " + file.getName() + " over " + parallel_transfer.PARALLELISM + " connections.");
+	        else
+	            System.out.println("Awaiting server response.");
+	        System.out.println("Server response: " + upload(serverIP, serverPort, file, file.getName(), fileChecksum));
+	        return true;
+	    } catch (IOException e) {
+	        System.err.println("Error uploading file: " + e.getMessage());
+	        return false;
+	    }
+	}
+
+	/**
+     * Uploads a file under the given name, over a pooled session connection or, for
+     * large files, in parallel chunks.
+     *
+     * @param serverIP The IP address of the server.
+     * @param serverPort The port number of the server.
+     * @param file The file to be uploaded.
+     * @param fileName The name to store it under.
+     * @param fileChecksum The file's checksum, which the server checks the upload against.
+     * @return The server's response.
+     * @throws IOException If the upload fails or the server refuses it.
+     */
+	public String upload(String serverIP, int serverPort, File file, String fileName, String fileChecksum) throws IOException {
+	    if (parallel_transfer.worthIt(file.length()))
+	        return parallel_transfer.upload(serverIP, serverPort, file, fileName, fileChecksum);
+	    return exchange(serverIP, serverPort, conn -> {
+	        // Send the request, file size and file data
+	        conn.out.writeUTF("put " + fileName + " " + fileChecksum);
+	        conn.out.writeLong(file.length());
+	        channel_io.sendFile(file, conn.out, conn.socket);
+	        BYTES_SENT.add(file.length());
+
+	        session_protocol.header header = conn.readHeader();
+	        if (header.status != session_protocol.OK)
+	            throw new IOException(header.message);
+	        return header.message;
+	    });
+	}
+
+	/**
+     * Conditionally downloads a file over a pooled session connection: the server only
+     * sends it if its version (checksum) is no longer the given one.
+     *
+     * @param serverIP The IP address of the server.
+     * @param serverPort The port number of the server.
+     * @param fileName The name of the file.
+     * @param version The version of the copy we have.
+     * @param file The local file to save a changed file in.
+     * @return The given version if the file didn't change, the new version if it did
+     *         (and was saved to the local file), or null if the server no longer has it.
+     * @throws IOException If the request fails.
+     */
+	public String getIfChanged(String serverIP, int serverPort, String fileName, String version, File file) throws IOException {
+	    return exchange(serverIP, serverPort, conn -> {
+	        conn.out.writeUTF("getif " + fileName + " " + version);
+	        conn.out.flush();
+
+	        session_protocol.header header = conn.readHeader();
+	        if (header.status == session_protocol.NOT_MODIFIED)
+	            return version;
+	        if (header.status != session_protocol.OK && header.status != session_protocol.DEFLATED)
+	            return null;
+
+	        file.getParentFile().mkdirs();
+	        deflate_codec.decoder decoder = decoderFor(conn, header);
+	        long size = decoder != null ? decoder.size() : header.length;
+	        try (FileChannel channel = FileChannel.open(file.toPath(),
+	                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+	            long received = channel_io.receive(bodyOf(conn, decoder), channel, 0, size);
+	            BYTES_RECEIVED.add(decoder != null ? header.length : received);
+	            if (received < size)
+	                throw new EOFException("Server closed the connection after " + received + " of " + size + " bytes.");
+	            if (decoder != null)
+	                decoder.finish();
+	        }
+	        return header.message;
+	    });
+	}
+
+	/**
+     * Asks the server to send "invalidate <file>" to a cache whenever an upload changes a file.
+     *
+     * @param serverIP The IP address of the server.
+     * @param serverPort The port number of the server.
+     * @param cachePort The TCP port the cache listens on; its host is the address this connection comes from.
+     * @throws IOException If the request fails or is refused.
+     */
+	public void subscribe(String serverIP, int serverPort, int cachePort) throws IOException {
+	    exchange(serverIP, serverPort, conn -> {
+	        conn.out.writeUTF("subscribe " + conn.socket.getLocalAddress().getHostAddress() + " " + cachePort);
+	        conn.out.flush();
+
+	        session_protocol.header header = conn.readHeader();
+	        if (header.status != session_protocol.OK)
+	            throw new IOException(header.message);
+	        return null;
+	    });
+	}
+
+	/**
+     * Tells a cache that a file changed, so a copy with other content is out of date.
+     *
+     * @param cacheIP The IP address of the cache.
+     * @param cachePort The port number of the cache.
+     * @param fileName The changed file.
+     * @param version The checksum of the file's new content.
+     * @throws IOException If the request fails.
+     */
+	public void invalidate(String cacheIP, int cachePort, String fileName, String version) throws IOException {
+	    exchange(cacheIP, cachePort, conn -> {
+	        conn.out.writeUTF("invalidate " + fileName + " " + version);
+	        conn.out.flush();
+	        conn.readHeader();
+	        return null;
+	    });
+	}
+
+	/**
+     * Asks a server or cache for its metrics report (see metrics).
+     *
+     * @param ip The IP address of the server or cache.
+     * @param port Its port number.
+     * @return The report, one metric per line.
+     * @throws IOException If the request fails or is refused.
+     */
+	public String stats(String ip, int port) throws IOException {
+	    return exchange(ip, port, conn -> {
+	        conn.out.writeUTF("stats");
+	        conn.out.flush();
+
+	        session_protocol.header header = conn.readHeader();
+	        if (header.status != session_protocol.OK)
+	            throw new IOException(header.message);
+	        byte[] body = new byte[(int) header.length];
+	        conn.in.readFully(body);
+	        return new String(body, StandardCharsets.UTF_8);
+	    });
+	}
+
+	/**
+     * Writes the response header to a client a download is being streamed to,
+     * once the file size is known.
+     */
+	public interface relay_header {
+	    void write(long fileSize) throws IOException;
+	}
+
+	/**
+     * Downloads a file over a pooled session connection, optionally forwarding it to a
+     * client as the bytes arrive, so the client doesn't wait for the whole file to be
+     * saved before its own transfer starts.
+     *
+     * The download can continue an earlier one: the first <have> bytes already in the
+     * local file are kept, only the rest is requested from the server, and a client
+     * being forwarded to gets the kept bytes from the file first.
+     *
+     * @param serverIP The IP address of the server.
+     * @param serverPort The port number of the server.
+     * @param fileName The name of the file to download.
+     * @param file The local file to save it in.
+     * @param have The number of bytes at the start of the local file to keep and not download again.
+     * @param client The stream to forward the file to, or null to only save it.
+     * @param clientSocket The socket the client stream belongs to.
+     * @param relayHeader Writes the client's response header before the data is forwarded.
+     * @return True if the whole file was received, false if the server doesn't have it
+     *         (in which case nothing was sent to the client).
+     * @throws IOException If the transfer fails.
+     */
+	public boolean fetch(String serverIP, int serverPort, String fileName, File file, long have,
+	                     DataOutputStream client, Socket clientSocket, relay_header relayHeader) throws IOException {
+	    return exchange(serverIP, serverPort, conn -> {
+	        conn.out.writeUTF(new byte_range(have, -1).command(fileName));
+	        conn.out.flush();
+
+	        session_protocol.header header = conn.readHeader();
+	        if (header.status != session_protocol.OK && header.status != session_protocol.DEFLATED) {
+	            System.out.println(header.message);
+	            return false;
+	        }
+
+	        file.getParentFile().mkdirs();
+
+	        // A compressed body only ever answers a whole-file request, so <have> is 0 then
+	        deflate_codec.decoder decoder = decoderFor(conn, header);
+	        long size = decoder != null ? decoder.size() : header.length;
+	        ReadableByteChannel source = bodyOf(conn, decoder);
+
+	        long totalBytesRead;
+	        if (client == null) {
+	            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+	                channel.truncate(have);
+	                totalBytesRead = channel_io.receive(source, channel, have, size);
+	            }
+	        } else {
+	            // Pass the header on so the client can start receiving right away
+	            relayHeader.write(have + size);
+	            totalBytesRead = relayBody(source, file, have, size, client, clientSocket);
+	        }
+
+	        BYTES_RECEIVED.add(decoder != null ? header.length : totalBytesRead);
+	        if (totalBytesRead < size) {
+	            throw new EOFException("Server closed the connection after " + totalBytesRead + " of " + size + " bytes.");
+	        }
+	        if (decoder != null)
+	            decoder.finish();
+	        System.out.println("Server response: " + header.message);
+	        return true;
+	    });
+	}
+
+	/**
+     * A request/response exchange on a session connection.
+     */
+	interface request<T> {
+	    T run(connection_pool.connection conn) throws IOException;
+	}
+
+	// Runs an exchange on a pooled connection, retrying once on a fresh connection if an
+	// idle pooled one turned out to be closed by the server before it answered
+	static <T> T exchange(String serverIP, int serverPort, request<T> request) throws IOException {
+	    long start = System.nanoTime();
+	    connection_pool.connection conn = pool.acquire(serverIP, serverPort);
+	    while (true) {
+	        try {
+	            T result = request.run(conn);
+	            pool.release(conn);
+	            EXCHANGE_LATENCY.recordSince(start);
+	            return result;
+	        } catch (IOException e) {
+	            pool.discard(conn);
+	            if (!conn.reused || conn.responded)
+	                throw e;
+	            RETRIED.increment();
+	            conn = pool.open(serverIP, serverPort);
+	        } catch (RuntimeException e) {
+	            // The exchange stopped part-way, so the connection's stream can't be trusted either
+	            pool.discard(conn);
+	            throw e;
+	        }
+	    }
+	}
+
+	// Reads the body of a DEFLATED reply through a decoder; null for a body sent as it is
+	private static deflate_codec.decoder decoderFor(connection_pool.connection conn, session_protocol.header header) throws IOException {
+	    return header.status == session_protocol.DEFLATED ? new deflate_codec.decoder(conn.in, header.length) : null;
+	}
+
+	// The file's bytes of a reply body: decoded, or straight from the socket
+	private static ReadableByteChannel bodyOf(connection_pool.connection conn, deflate_codec.decoder decoder) {
+	    return decoder != null ? decoder : channel_io.readableChannel(conn.in, conn.socket);
+	}
+
+	// Sends the kept first <have> bytes of the file to the client, then writes each
+	// chunk of the remaining <fileSize> bytes to the file and to the client as it arrives
+	private static long relayBody(ReadableByteChannel source, File file, long have, long fileSize,
+	                              DataOutputStream client, Socket clientSocket) throws IOException {
+	    long totalBytesRead = 0;
+	    boolean clientConnected = true;
+	    WritableByteChannel target = channel_io.writableChannel(client, clientSocket);
+	    ByteBuffer buffer = channel_io.buffer();
+
+	    try (FileChannel fileChannel = FileChannel.open(file.toPath(),
+	            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+	        fileChannel.truncate(have);
+	        try {
+	            channel_io.sendRange(fileChannel, 0, have, client, clientSocket);
+	        } catch (IOException e) {
+	            System.err.println("Client disconnected during transfer: " + e.getMessage());
+	            clientConnected = false;
+	        }
+
+	        while (totalBytesRead < fileSize) {
+	            buffer.clear();
+	            buffer.limit((int) Math.min(buffer.capacity(), fileSize - totalBytesRead));
+	            if (source.read(buffer) < 0)
+	                break;
+
+	            buffer.flip();
+	            while (buffer.hasRemaining())
+	                fileChannel.write(buffer, have + totalBytesRead + buffer.position());
+	            totalBytesRead += buffer.limit();
+
+	            if (clientConnected) {
+	                try {
+	                    buffer.rewind();
+	                    while (buffer.hasRemaining())
+	                        target.write(buffer);
+	                } catch (IOException e) {
+	                    // Keep downloading for the cache even if this client went away
+	                    System.err.println("Client disconnected during transfer: " + e.getMessage());
+	                    clientConnected = false;
+	                }
+	            }
+	        }
+	    }
+	    return totalBytesRead;
 	}
     
 }
@@ -0,0 +1,121 @@
+import java.util.*;
+
+/**
+ * W-TinyLFU eviction. New files enter a small LRU window; the main area is a
+ * segmented LRU (probation + protected). When the window overflows, its oldest
+ * file moves to probation. If the cache then has to evict, that file competes
+ * with the main area's eviction candidate and the one with the lower estimated
+ * request frequency is evicted; while the cache has room it is admitted freely.
+ *
+ * This keeps one-hit wonders from flushing popular files out of the cache,
+ * while the window still lets bursts of new files get a chance to prove themselves.
+ */
+public class tinylfu_policy implements eviction_policy {
+
+    // Share of tracked files kept in the window (percent)
+    private static final int WINDOW_PERCENT = 1;
+
+    // Share of the main area reserved for files hit while on probation (percent)
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final frequency_sketch sketch;
+
+    // Each segment iterates from least to most recently used
+    private final LinkedHashMap<String, Boolean> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Files the last insert moved from the window to probation, which still have to win their place
+    private final ArrayDeque<String> candidates = new ArrayDeque<>();
+
+    /**
+     * @param maxEntries Expected maximum number of cached files, used to size the sketch.
+     */
+    public tinylfu_policy(int maxEntries) {
+        this.sketch = new frequency_sketch(maxEntries);
+    }
+
+    @Override
+    public void recordAccess(String key, boolean hit) {
+        // Misses count too, so a file that keeps being requested earns admission
+        sketch.increment(key);
+        if (!hit)
+            return;
+
+        if (window.containsKey(key)) {
+            window.get(key);
+        } else if (probation.remove(key) != null) {
+            // A second hit promotes the file out of probation
+            protectedSegment.put(key, Boolean.TRUE);
+            int mainSize = probation.size() + protectedSegment.size();
+            while (protectedSegment.size() > Math.max(1, mainSize * PROTECTED_PERCENT / 100)) {
+                String demoted = eldest(protectedSegment);
+                protectedSegment.remove(demoted);
+                probation.put(demoted, Boolean.TRUE);
+            }
+        } else {
+            protectedSegment.get(key);
+        }
+    }
+
+    @Override
+    public void onInsert(String key) {
+        onRemove(key);
+        window.put(key, Boolean.TRUE);
+
+        // Candidates of earlier inserts weren't contested, so the main area had room for them
+        candidates.clear();
+        int tracked = window.size() + probation.size() + protectedSegment.size();
+        while (window.size() > Math.max(1, tracked * WINDOW_PERCENT / 100)) {
+            String candidate = eldest(window);
+            window.remove(candidate);
+            probation.put(candidate, Boolean.TRUE);
+            candidates.add(candidate);
+        }
+    }
+
+    @Override
+    public void onRemove(String key) {
+        if (window.remove(key) == null && probation.remove(key) == null)
+            protectedSegment.remove(key);
+    }
+
+    @Override
+    public String victim() {
+        // The main area is full: files just moved out of the window must win their place
+        while (!candidates.isEmpty()) {
+            String candidate = candidates.peek();
+            if (!probation.containsKey(candidate)) {
+                candidates.poll(); // Hit or removed since it was moved
+                continue;
+            }
+            String mainVictim = eldestExcept(probation, candidate);
+            if (mainVictim == null)
+                mainVictim = eldest(protectedSegment);
+            if (mainVictim == null)
+                break;
+
+            candidates.poll();
+            if (sketch.frequency(candidate) > sketch.frequency(mainVictim))
+                return mainVictim;
+            return candidate;
+        }
+
+        String mainVictim = !probation.isEmpty() ? eldest(probation) : eldest(protectedSegment);
+        return mainVictim != null ? mainVictim : eldest(window);
+    }
+
+    private static String eldest(LinkedHashMap<String, Boolean> segment) {
+        Iterator<String> it = segment.keySet().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    private static String eldestExcept(LinkedHashMap<String, Boolean> segment, String key) {
+        for (String candidate : segment.keySet()) {
+            if (!candidate.equals(key))
+                return candidate;
+        }
+        return null;
+    }
+
+}
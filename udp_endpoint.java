@@ -0,0 +1,379 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The udp_endpoint class owns one long-lived UDP socket that all reliable-UDP
+ * transfers of a process share. Every udp_packet carries a session ID chosen by
+ * the side that requested the transfer; a single receive thread reads the socket
+ * and hands each datagram to the inbox of its session, so any number of uploads
+ * and downloads can run at once over the same port.
+ *
+ * The receiving side of a transfer usually learns the session ID over the TCP
+ * command connection, which may arrive after the sender's first packet. A LEN
+ * packet for a session nobody opened yet therefore creates the session's inbox,
+ * and it waits there for up to <udp.unclaimedTimeout> until the transfer opens it.
+ * Anyone can send such packets, so at most <udp.maxUnclaimed> inboxes wait at once
+ * (later LEN packets are dropped, and resent by their sender), and an inbox holds
+ * only a few packets until it is opened. Other packets for unknown sessions are
+ * dropped. PROBE packets (see path_mtu) are
+ * answered by the receive thread itself, whatever their session.
+ *
+ * The socket is a non-blocking DatagramChannel. The receive thread wakes up on a
+ * Selector and drains every datagram that arrived before it sleeps again, into one
+ * direct buffer; only the payload of a packet that belongs to a session is copied
+ * out, into a pooled buffer (buffer_pool). Packets are sent from pooled direct
+ * frames (udp_packet.frame), so the packet path allocates no byte arrays or
+ * DatagramPackets. The JDK has no sendmmsg/recvmmsg, so each datagram is still one
+ * system call; batching saves the wakeups and the copies around them.
+ *
+ * Settings (system properties):
+ *  - udp.inboxPackets:     Packets queued per session before new ones are dropped (default 1024).
+ *  - udp.receiveBuffer:    Socket receive buffer to request, in bytes (default 4 MiB).
+ *  - udp.sendBuffer:       Socket send buffer to request, in bytes (default 4 MiB).
+ *  - udp.unclaimedTimeout: Milliseconds an inbox created by an early LEN waits to be opened (default 30000).
+ *  - udp.maxUnclaimed:     Most inboxes created by early LENs waiting at once (default 64).
+ *  - udp.simLoss:          Fraction of arriving packets to drop, simulating a lossy path (default 0).
+ *  - udp.simDelay:         Milliseconds to hold each arriving packet, simulating a long path (default 0).
+ *
+ * The two simulation settings make SNW/SR measurements on localhost meaningful (see
+ * loadgen); set them on both sides to affect both directions of a transfer.
+ */
+public class udp_endpoint {
+
+    static final int INBOX_PACKETS = Math.max(1, Integer.getInteger("udp.inboxPackets", 1024));
+    static final int RECEIVE_BUFFER = Integer.getInteger("udp.receiveBuffer", 4 * 1024 * 1024);
+    static final int SEND_BUFFER = Integer.getInteger("udp.sendBuffer", 4 * 1024 * 1024);
+    static final long UNCLAIMED_TIMEOUT = Long.getLong("udp.unclaimedTimeout", 30000L);
+    static final int MAX_UNCLAIMED = Math.max(1, Integer.getInteger("udp.maxUnclaimed", 64));
+    static final double SIM_LOSS = Double.parseDouble(System.getProperty("udp.simLoss", "0"));
+    static final long SIM_DELAY = Long.getLong("udp.simDelay", 0L);
+
+    // Holds arriving packets for SIM_DELAY; one thread, so packets keep their order
+    private static ScheduledExecutorService delayed;
+
+    // How long a sender waits for room in a full socket send buffer before the datagram
+    // is dropped like one lost on the way, in 20 microsecond steps
+    private static final int SEND_WAITS = 500;
+
+    // Packets an inbox created by an early LEN holds until its transfer opens it; the
+    // sender resends the rest
+    private static final int UNCLAIMED_PACKETS = 64;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final int port;
+    private final ConcurrentHashMap<Long, session> sessions = new ConcurrentHashMap<>();
+
+    // Sessions created by early LEN packets and not opened yet
+    private final AtomicInteger unclaimed = new AtomicInteger();
+
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    /**
+     * Binds the endpoint and starts its receive thread.
+     *
+     * @param port The UDP port to bind, or 0 for any free port.
+     * @return The endpoint.
+     * @throws IOException If the port cannot be bound.
+     */
+    public static udp_endpoint open(int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER);
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            return new udp_endpoint(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private udp_endpoint(DatagramChannel channel) throws IOException {
+        this.channel = channel;
+        this.port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        this.selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+
+        Thread receiver = new Thread(this::receiveLoop, "udp-endpoint-" + port);
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * @return The local UDP port, to be advertised to peers.
+     */
+    public int port() {
+        return port;
+    }
+
+    /**
+     * @return A fresh random session ID for a transfer this side requests.
+     */
+    public long newSessionId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0 || sessions.containsKey(id));
+        return id;
+    }
+
+    /**
+     * Opens a session, or claims the inbox an early LEN packet already created for it.
+     *
+     * @param id   The session ID.
+     * @param peer The other side of the transfer, or null to learn it from the first packet.
+     * @return The session.
+     */
+    public session open(long id, SocketAddress peer) {
+        session s = sessions.computeIfAbsent(id, session::new);
+        s.claim();
+        if (peer != null)
+            s.peer = peer;
+        return s;
+    }
+
+    // Reads the socket and routes every datagram to its session
+    private void receiveLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(udp_packet.MAX_SIZE);
+        long lastSweep = System.currentTimeMillis();
+
+        while (channel.isOpen()) {
+            try {
+                selector.select(1000);
+                selector.selectedKeys().clear();
+
+                // Drain everything that queued up since the last wakeup
+                SocketAddress from;
+                while ((from = channel.receive(buffer.clear())) != null) {
+                    buffer.flip();
+                    dispatch(buffer, from);
+                }
+            } catch (IOException e) {
+                if (channel.isOpen())
+                    System.err.println("UDP endpoint receive error: " + e.getMessage());
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastSweep > 1000) {
+                sweepUnclaimed(now);
+                lastSweep = now;
+            }
+        }
+    }
+
+    // Hands one datagram to its session, or answers it if it is a probe
+    private void dispatch(ByteBuffer datagram, SocketAddress from) throws IOException {
+        int size = datagram.remaining();
+        udp_packet packet = udp_packet.peek(datagram, from);
+        if (packet == null)
+            return; // Damaged or foreign datagram
+
+        if (packet.is(udp_packet.PROBE) && !packet.is(udp_packet.ACK)) {
+            // Tell the prober how large a datagram got here
+            ByteBuffer answer = udp_packet.frame(0);
+            udp_packet.seal(answer, (byte) (udp_packet.PROBE | udp_packet.ACK), size, packet.session);
+            transmit(answer, from);
+            buffer_pool.release(answer);
+            return;
+        }
+
+        // Simulated path conditions, off unless configured
+        if (SIM_LOSS > 0 && ThreadLocalRandom.current().nextDouble() < SIM_LOSS)
+            return;
+
+        session s = sessions.get(packet.session);
+        if (s == null && packet.is(udp_packet.LEN) && unclaimed.get() < MAX_UNCLAIMED) {
+            // The receiver hasn't opened this transfer yet, hold its packets until it does
+            session early = new session(packet.session);
+            early.waiting.set(true);
+            s = sessions.putIfAbsent(packet.session, early);
+            if (s == null) {
+                s = early;
+                unclaimed.incrementAndGet();
+            }
+        }
+        if (s == null)
+            return;
+        udp_packet arrived = packet.copyPayload(datagram);
+        if (SIM_DELAY > 0) {
+            session target = s;
+            delayer().schedule(() -> target.deliver(arrived), SIM_DELAY, TimeUnit.MILLISECONDS);
+        } else {
+            s.deliver(arrived);
+        }
+    }
+
+    // The delay thread, started the first time it is needed
+    private static synchronized ScheduledExecutorService delayer() {
+        if (delayed == null) {
+            delayed = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "udp-delay");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return delayed;
+    }
+
+    // Sends a sealed frame from its start. The channel is non-blocking for the receive
+    // thread, so a full send buffer is waited out briefly instead of blocking.
+    private void transmit(ByteBuffer frame, SocketAddress to) throws IOException {
+        frame.rewind();
+        for (int waits = 0; channel.send(frame, to) == 0 && waits < SEND_WAITS; waits++)
+            LockSupport.parkNanos(20_000);
+    }
+
+    // Drops inboxes created by LEN packets of transfers that were never opened
+    private void sweepUnclaimed(long now) {
+        for (session s : sessions.values()) {
+            if (s.waiting.get() && now - s.createdAt > UNCLAIMED_TIMEOUT)
+                s.close();
+        }
+    }
+
+    /**
+     * One transfer's view of the endpoint: packets sent carry its session ID and
+     * only packets with that ID are received.
+     */
+    public class session implements Closeable {
+
+        final long id;
+        final long createdAt = System.currentTimeMillis();
+        // Linked, so an inbox takes memory for the packets it holds rather than its capacity
+        private final BlockingQueue<udp_packet> inbox = new LinkedBlockingQueue<>(INBOX_PACKETS);
+        private volatile SocketAddress peer;
+
+        // True while an inbox created by an early LEN waits for its transfer to open it
+        private final AtomicBoolean waiting = new AtomicBoolean();
+        private int timeout = 0;
+
+        private session(long id) {
+            this.id = id;
+        }
+
+        /**
+         * @return The other side of the transfer, or null before anything was received from it.
+         */
+        SocketAddress peer() {
+            return peer;
+        }
+
+        /**
+         * @return The most packets this session queues before dropping new ones.
+         */
+        int capacity() {
+            return INBOX_PACKETS;
+        }
+
+        /**
+         * Sets how long receive() waits, like DatagramSocket.setSoTimeout (0 waits forever).
+         */
+        void setSoTimeout(int timeout) {
+            this.timeout = timeout;
+        }
+
+        /**
+         * @param payloadCapacity The most payload bytes the packet will carry.
+         * @return A pooled frame positioned at the payload, to fill and seal.
+         */
+        ByteBuffer frame(int payloadCapacity) {
+            return udp_packet.frame(payloadCapacity);
+        }
+
+        /**
+         * Writes this session's header into a filled frame (see udp_packet.seal).
+         */
+        void seal(ByteBuffer frame, byte flags, int seq) {
+            udp_packet.seal(frame, flags, seq, id);
+        }
+
+        /**
+         * Sends a sealed frame to the peer. The same frame can be sent again to retransmit it.
+         */
+        void send(ByteBuffer frame) throws IOException {
+            transmit(frame, peer);
+        }
+
+        /**
+         * Returns a frame to the pool once it won't be sent again.
+         */
+        void release(ByteBuffer frame) {
+            buffer_pool.release(frame);
+        }
+
+        /**
+         * Builds and sends a packet.
+         */
+        void send(byte flags, int seq, byte[] payload) throws IOException {
+            ByteBuffer frame = frame(payload.length);
+            try {
+                frame.put(payload);
+                seal(frame, flags, seq);
+                send(frame);
+            } finally {
+                release(frame);
+            }
+        }
+
+        /**
+         * Builds and sends a packet without a payload.
+         */
+        void send(byte flags, int seq) throws IOException {
+            send(flags, seq, NO_PAYLOAD);
+        }
+
+        /**
+         * Waits for the next packet of this session.
+         *
+         * @return The packet.
+         * @throws SocketTimeoutException If nothing arrives within the timeout.
+         */
+        udp_packet receive() throws IOException {
+            try {
+                udp_packet packet = timeout > 0 ? inbox.poll(timeout, TimeUnit.MILLISECONDS) : inbox.take();
+                if (packet == null)
+                    throw new SocketTimeoutException("Receive timed out");
+                return packet;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while receiving");
+            }
+        }
+
+        // Called when the transfer opens the session
+        private void claim() {
+            if (waiting.compareAndSet(true, false))
+                unclaimed.decrementAndGet();
+        }
+
+        // Called by the receive thread
+        private void deliver(udp_packet packet) {
+            if (peer == null)
+                peer = packet.from;
+            // A full inbox drops the packet like a full socket buffer would
+            if ((waiting.get() && inbox.size() >= UNCLAIMED_PACKETS) || !inbox.offer(packet))
+                packet.release();
+        }
+
+        /**
+         * Ends the session; later packets with its ID are dropped.
+         */
+        @Override
+        public void close() {
+            claim();
+            sessions.remove(id, this);
+            udp_packet packet;
+            while ((packet = inbox.poll()) != null)
+                packet.release();
+        }
+    }
+
+}
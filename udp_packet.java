@@ -0,0 +1,212 @@
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * The udp_packet class encodes and decodes the datagrams of the UDP transports
+ * (snw_transport and window_transport). Every datagram starts with a small header
+ * so the receiver can tell packets apart, put them back in order, drop duplicates
+ * and drop packets that were damaged on the way:
+ *
+ *   byte flags | int seq | short length | long session | int checksum | <length> payload bytes
+ *
+ * The session ID identifies the transfer, so udp_endpoint can run many transfers
+ * over one socket. The checksum is a CRC32C over the whole packet (computed with a
+ * CPU instruction where available). A packet whose checksum doesn't match is dropped
+ * like a lost one and recovered by retransmission.
+ *
+ * Packets are built in place in a pooled direct buffer (a "frame", see buffer_pool):
+ * the sender gets a frame positioned after the header, writes or reads the payload
+ * straight into it, and seal() fills in the header. A received packet's payload is
+ * copied once out of the endpoint's receive buffer into a pooled buffer, which the
+ * consumer hands back with release().
+ *
+ * Packet flags:
+ *  - LEN:   Starts a transfer. Payload is the file size (long), the chunk size (int) and
+ *           the whole file's checksum as text (see checksum), which the receiver verifies.
+ *  - DATA:  One chunk of the file. seq is the chunk number, starting at 0.
+ *  - ACK:   seq is the next chunk the receiver is missing (cumulative). In the windowed
+ *           transport the payload is the receive window (int) followed by a bitmap of the
+ *           chunks after seq that already arrived (selective).
+ *  - FIN:   The receiver has the whole file.
+ *  - MSG:   Feedback text shown by the receiver once the transfer is done.
+ *  - PROBE: Padding of a given size, answered by the peer's endpoint with PROBE|ACK and
+ *           seq set to the datagram size that arrived (see path_mtu).
+ *  - DEFLATE: With LEN, the sender can deflate its chunks; with the ACK of LEN, the receiver
+ *           can inflate them; with DATA, the payload is deflated (see snw_transport).
+ */
+public class udp_packet {
+
+    static final byte LEN = 1;
+    static final byte DATA = 2;
+    static final byte ACK = 4;
+    static final byte FIN = 8;
+    static final byte MSG = 16;
+    static final byte PROBE = 32;
+    static final byte DEFLATE = 64;
+
+    // flags + seq + length + session + checksum
+    static final int HEADER_SIZE = 1 + 4 + 2 + 8 + 4;
+
+    // Where the checksum sits in the header
+    private static final int CHECKSUM_OFFSET = 1 + 4 + 2 + 8;
+
+    // Largest datagram either side sends or expects
+    static final int MAX_SIZE = 65507;
+
+    // Largest payload that fits in one datagram
+    static final int MAX_PAYLOAD = MAX_SIZE - HEADER_SIZE;
+
+    // Payload of packets whose payload wasn't copied
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    // CRC state reused by each thread
+    private static final ThreadLocal<CRC32C> CRC = ThreadLocal.withInitial(CRC32C::new);
+
+    final byte flags;
+    final int seq;
+    final long session;
+    final int length;
+
+    // The payload, from position 0 to length; returned to the pool by release()
+    final ByteBuffer payload;
+
+    // Where the packet came from
+    final SocketAddress from;
+
+    private udp_packet(byte flags, int seq, long session, ByteBuffer payload, SocketAddress from) {
+        this.flags = flags;
+        this.seq = seq;
+        this.session = session;
+        this.payload = payload;
+        this.length = payload.remaining();
+        this.from = from;
+    }
+
+    /**
+     * Takes a pooled frame for a packet with up to payloadCapacity payload bytes. The
+     * frame is positioned where the payload starts; fill it, then seal() it.
+     *
+     * @param payloadCapacity The most payload bytes the packet will carry.
+     * @return The frame.
+     */
+    static ByteBuffer frame(int payloadCapacity) {
+        ByteBuffer frame = buffer_pool.acquire(HEADER_SIZE + payloadCapacity);
+        frame.position(HEADER_SIZE);
+        return frame;
+    }
+
+    /**
+     * Writes the header in front of the payload the frame holds up to its position,
+     * and readies the frame for sending: position 0, limit at the end of the payload.
+     * A frame can be resent after rewind().
+     *
+     * @param frame   A frame from frame(), filled up to its position.
+     * @param flags   The packet flags.
+     * @param seq     The sequence number.
+     * @param session The transfer's session ID.
+     */
+    static void seal(ByteBuffer frame, byte flags, int seq, long session) {
+        int end = frame.position();
+        frame.put(0, flags).putInt(1, seq).putShort(5, (short) (end - HEADER_SIZE))
+             .putLong(7, session).putInt(CHECKSUM_OFFSET, 0);
+        frame.position(0).limit(end);
+        frame.putInt(CHECKSUM_OFFSET, checksum(frame));
+    }
+
+    /**
+     * Checks the datagram in the buffer (from its position to its limit) and reads its
+     * header. The payload is not copied yet; see copyPayload.
+     *
+     * @param datagram The received datagram; its position is left where the payload starts.
+     * @param from     The sender's address.
+     * @return The packet without a payload, or null if the datagram is too short, its
+     *         length field doesn't match or its checksum is wrong.
+     */
+    static udp_packet peek(ByteBuffer datagram, SocketAddress from) {
+        int start = datagram.position();
+        int size = datagram.remaining();
+        if (size < HEADER_SIZE)
+            return null;
+
+        byte flags = datagram.get(start);
+        int seq = datagram.getInt(start + 1);
+        int length = datagram.getShort(start + 5) & 0xFFFF;
+        long session = datagram.getLong(start + 7);
+        int expected = datagram.getInt(start + CHECKSUM_OFFSET);
+        if (length != size - HEADER_SIZE)
+            return null;
+
+        // The checksum was computed with its own field set to zero
+        datagram.putInt(start + CHECKSUM_OFFSET, 0);
+        int actual = checksum(datagram);
+        datagram.putInt(start + CHECKSUM_OFFSET, expected);
+        if (actual != expected)
+            return null;
+
+        datagram.position(start + HEADER_SIZE);
+        return new udp_packet(flags, seq, session, EMPTY, from);
+    }
+
+    /**
+     * @param datagram The datagram peek() accepted, positioned at its payload.
+     * @return The same packet with its payload copied into a pooled buffer, so the
+     *         datagram's buffer can be reused for the next receive.
+     */
+    udp_packet copyPayload(ByteBuffer datagram) {
+        ByteBuffer copy = buffer_pool.acquire(datagram.remaining());
+        copy.put(datagram).flip();
+        return new udp_packet(flags, seq, session, copy, from);
+    }
+
+    /**
+     * @param flag One of the packet flags.
+     * @return True if the packet has the flag set.
+     */
+    boolean is(byte flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * @return A view of the payload, for reading the LEN and ACK fields.
+     */
+    ByteBuffer payloadBuffer() {
+        return payload.duplicate();
+    }
+
+    /**
+     * @return The payload as text, for MSG packets.
+     */
+    String text() {
+        return text(0);
+    }
+
+    /**
+     * @param offset Where the text starts in the payload.
+     * @return The rest of the payload as text, e.g. the checksum in a LEN packet.
+     */
+    String text(int offset) {
+        byte[] bytes = new byte[Math.max(0, length - offset)];
+        payload.duplicate().position(Math.min(offset, length)).get(bytes);
+        return new String(bytes);
+    }
+
+    /**
+     * Returns the payload buffer to the pool. The packet must not be used afterwards.
+     */
+    void release() {
+        if (payload != EMPTY)
+            buffer_pool.release(payload);
+    }
+
+    // CRC32C over the buffer from its position to its limit
+    private static int checksum(ByteBuffer data) {
+        CRC32C crc = CRC.get();
+        crc.reset();
+        int position = data.position();
+        crc.update(data);
+        data.position(position);
+        return (int) crc.getValue();
+    }
+
+}
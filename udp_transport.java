@@ -0,0 +1,54 @@
+import java.io.*;
+
+/**
+ * A reliable file transfer over UDP. The TCP control connection carries the
+ * command, the file itself is sent with one of these transports:
+ *  - "snw": snw_transport, one packet in flight (Stop-and-Wait).
+ *  - "sr":  window_transport, a window of packets in flight with selective ACKs (Selective Repeat).
+ *
+ * Transfers run over the process's udp_endpoint. The side that requests a transfer
+ * picks its session ID (udp_endpoint.newSessionId) and sends it, together with its
+ * UDP port when it is the receiver, in the TCP command:
+ *   get <file> <udp-port> <session>   (the file comes back to <udp-port>)
+ *   put <file> <session>              (the file goes to the server's UDP port, the same number as its TCP port)
+ */
+public interface udp_transport {
+
+    /**
+     * Sends a file to a receiver waiting in downloadFile.
+     *
+     * @param ip       The IP address of the receiver.
+     * @param port     The UDP port of the receiver's endpoint.
+     * @param session  The transfer's session ID.
+     * @param file     The file to be sent.
+     * @param feedback Message shown by the receiver once the file is delivered.
+     */
+    void uploadFile(String ip, int port, long session, File file, String feedback);
+
+    /**
+     * Waits for a file sent with uploadFile in the given session and saves it.
+     *
+     * @param session  The transfer's session ID.
+     * @param filename The name to save the downloaded file as.
+     * @param dir      The directory to save the file in. Defaults to "client_fl" if not provided.
+     * @return True if the whole file was received.
+     */
+    boolean downloadFile(long session, String filename, String dir);
+
+    /**
+     * @param protocol The protocol name given on the command line.
+     * @param endpoint The process's UDP endpoint the transfers run over.
+     * @return The UDP transport for the protocol, or null if it isn't a UDP protocol.
+     */
+    static udp_transport forProtocol(String protocol, udp_endpoint endpoint) {
+        switch (protocol) {
+            case "snw":
+                return new snw_transport(endpoint);
+            case "sr":
+                return new window_transport(endpoint);
+            default:
+                return null;
+        }
+    }
+
+}
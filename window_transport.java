@@ -0,0 +1,532 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class transfers files over UDP with a sliding window (Selective Repeat).
+ * Unlike snw_transport, which waits for an ACK after every packet, the sender keeps
+ * up to <window.size> numbered packets in flight. The receiver writes each packet
+ * at its place in the file as it arrives, in any order, and answers with the next
+ * missing packet number plus a bitmap of the packets after it that it already has,
+ * so the sender only retransmits the packets that were actually lost. Transfers run
+ * as sessions of a shared udp_endpoint.
+ *
+ * Retransmission timers follow the measured round-trip time (rtt_estimator), and a
+ * chunk that is still missing after three chunks sent after it were acknowledged is
+ * resent right away instead of waiting for its timer (fast retransmit). When a timer
+ * runs out, only the oldest missing chunk is resent at once; the other overdue chunks
+ * follow as the collapsed congestion window lets them, as in TCP Reno, instead of
+ * bursting into the path that just lost them.
+ *
+ * How many packets are actually in flight is the smallest of three windows:
+ *  - the congestion window of a congestion_controller, which grows while the path
+ *    keeps up and shrinks on loss, so the sender behaves on shared links;
+ *  - the receive window advertised in every ACK, sized so that a receiver busy
+ *    writing to a slow disk can't have its inbox on the udp_endpoint overrun;
+ *  - window.size, a hard upper limit.
+ *
+ * Chunks are read from the file straight into pooled packet frames and written
+ * from the received payload straight into the file at their position, with no
+ * intermediate arrays. The chunk size defaults to what fills a datagram of the
+ * path MTU and can be probed larger (see path_mtu).
+ *
+ * Packets are encoded with udp_packet. A transfer goes:
+ *   sender LEN(size, chunk, checksum) -> receiver ACK(0, rwnd)
+ *   sender DATA(0..n-1)     -> receiver ACK(next missing, rwnd, bitmap) for every packet
+ *                              receiver FIN once every packet is written
+ *   sender MSG(feedback)
+ *
+ * Settings (system properties):
+ *  - window.size:          Most packets in flight (default 1024).
+ *  - window.congestion:    Congestion controller, "aimd" or "delay" (default aimd).
+ *  - window.receiveWindow: Most packets the receiver accepts beyond the next missing one (default 256,
+ *                          lowered to what its udp_endpoint inbox holds).
+ *  - window.chunkSize:     File bytes per packet (default: what fills a udp.mtu datagram, 1453 bytes).
+ *  - window.retries:       Times a packet is resent before the transfer is abandoned (default 10).
+ *  - window.idleTimeout:   Milliseconds the receiver waits for the next packet (default 30000).
+ *
+ * Chunks sent, retransmissions (after a timeout or fast), timeouts, duplicates,
+ * failed transfers and round-trip samples are counted under sr.* (see metrics).
+ */
+public class window_transport implements udp_transport {
+
+    static final int WINDOW = Math.max(1, Integer.getInteger("window.size", 1024));
+    static final String CONGESTION = System.getProperty("window.congestion", "aimd");
+    static final int RECEIVE_WINDOW = Math.max(1, Integer.getInteger("window.receiveWindow", 256));
+    static final int CHUNK_SIZE = Math.max(1, Math.min(Integer.getInteger("window.chunkSize", path_mtu.DEFAULT_PAYLOAD),
+            udp_packet.MAX_PAYLOAD));
+    static final int RETRIES = Integer.getInteger("window.retries", 10);
+    static final int IDLE_TIMEOUT = Integer.getInteger("window.idleTimeout", 30000);
+
+    // Most packets after the next missing one that a single ACK reports
+    private static final int MAX_SACK_BITS = 1024;
+
+    // Counters reported by the stats commands and JMX (see metrics)
+    static final LongAdder PACKETS_SENT = metrics.counter("sr.packets.sent");
+    static final LongAdder RETRANSMITS = metrics.counter("sr.retransmits");
+    static final LongAdder FAST_RETRANSMITS = metrics.counter("sr.retransmits.fast");
+    static final LongAdder TIMEOUTS = metrics.counter("sr.timeouts");
+    static final LongAdder DUPLICATES = metrics.counter("sr.duplicates");
+    static final LongAdder FAILED = metrics.counter("sr.transfers.failed");
+    static final LongAdder BYTES_SENT = metrics.counter("sr.bytes.sent");
+    static final LongAdder BYTES_RECEIVED = metrics.counter("sr.bytes.received");
+    static final latency_histogram RTT = metrics.histogram("sr.rtt");
+
+    // The socket all transfers of this process share
+    private final udp_endpoint endpoint;
+
+    public window_transport(udp_endpoint endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Uploads a file to a receiver waiting in downloadFile. The file size is announced
+     * first, then the file is sent in numbered chunks, as many at a time as the congestion
+     * and receive windows allow.
+     *
+     * @param ip       The IP address of the receiver.
+     * @param port     The UDP port of the receiver's endpoint.
+     * @param session  The transfer's session ID.
+     * @param file     The file to be uploaded.
+     * @param feedback Message shown by the receiver once the file is delivered.
+     */
+    @Override
+    public void uploadFile(String ip, int port, long session, File file, String feedback) {
+        SocketAddress receiver;
+        try {
+            receiver = new InetSocketAddress(InetAddress.getByName(ip), port);
+        } catch (UnknownHostException e) {
+            System.out.println("Unknown host: " + ip);
+            return;
+        }
+
+        try (udp_endpoint.session socket = endpoint.open(session, receiver);
+             FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            rtt_estimator rtt = rtt_estimator.forPeer(receiver);
+            long fileSize = channel.size();
+            int chunkSize = path_mtu.payloadSize(socket, rtt, CHUNK_SIZE);
+            int total = (int) ((fileSize + chunkSize - 1) / chunkSize);
+            byte[] fileChecksum = checksum.of(file).getBytes();
+
+            System.out.println("Awaiting server response.");
+            int rwnd = announce(socket, rtt, fileSize, chunkSize, fileChecksum);
+            if (rwnd < 0) {
+                FAILED.increment();
+                System.out.println("Failed to receive ACK after " + RETRIES + " attempts. Terminating.");
+                return;
+            }
+
+            if (!sendWindowed(socket, rtt, channel, fileSize, chunkSize, total, rwnd)) {
+                FAILED.increment();
+                System.out.println("Too many retransmissions, transfer abandoned.");
+                return;
+            }
+
+            if (!awaitFin(socket, rtt, channel, fileSize, chunkSize, total, fileChecksum)) {
+                FAILED.increment();
+                System.out.println("Did not receive FIN. Terminating.");
+                return;
+            }
+
+            byte[] feedbackData = feedback.getBytes();
+            socket.send(udp_packet.MSG, total, feedbackData);
+            BYTES_SENT.add(fileSize);
+            System.out.println("Server response: File successfully uploaded.");
+
+        } catch (IOException e) {
+            FAILED.increment();
+            System.err.println("Error sending file: " + e.getMessage());
+        }
+    }
+
+    // Sends the LEN packet announcing the file size, chunk size and file checksum
+    private static void sendLen(udp_endpoint.session socket, long fileSize, int chunkSize, byte[] fileChecksum) throws IOException {
+        ByteBuffer frame = socket.frame(12 + fileChecksum.length);
+        try {
+            frame.putLong(fileSize).putInt(chunkSize).put(fileChecksum);
+            socket.seal(frame, udp_packet.LEN, 0);
+            socket.send(frame);
+        } finally {
+            socket.release(frame);
+        }
+    }
+
+    // Sends LEN until the receiver acknowledges it, backing off while it may still be starting up.
+    // Returns the receive window from the ACK, or -1 if no ACK arrived.
+    private int announce(udp_endpoint.session socket, rtt_estimator rtt, long fileSize, int chunkSize,
+                         byte[] fileChecksum) throws IOException {
+        for (int attempt = 0; attempt <= RETRIES; attempt++) {
+            long sentAt = System.nanoTime();
+            sendLen(socket, fileSize, chunkSize, fileChecksum);
+            socket.setSoTimeout(rtt.rto());
+            try {
+                udp_packet ack = socket.receive();
+                try {
+                    if (ack.is(udp_packet.ACK) && ack.seq == 0 && ack.length >= 4) {
+                        // Only an unambiguous round trip is a valid sample
+                        if (attempt == 0)
+                            rtt.sample(System.nanoTime() - sentAt);
+                        return ack.payload.getInt(0);
+                    }
+                } finally {
+                    ack.release();
+                }
+            } catch (SocketTimeoutException e) {
+                rtt.backoff();
+            }
+        }
+        return -1;
+    }
+
+    // Runs the sliding window until every chunk is acknowledged
+    private boolean sendWindowed(udp_endpoint.session socket, rtt_estimator rtt, FileChannel channel,
+                                 long fileSize, int chunkSize, int total, int rwnd) throws IOException {
+        congestion_controller cc = congestion_controller.create(CONGESTION, WINDOW);
+        BitSet acked = new BitSet(total);
+        BitSet newlyAcked = new BitSet();
+        long[] sentAt = new long[WINDOW];
+        int[] attempts = new int[WINDOW];
+
+        int base = 0; // Oldest chunk not yet acknowledged
+        int next = 0; // Next chunk never sent
+        BitSet fastResent = new BitSet(total); // Chunks already resent without waiting for their timer
+        BitSet lost = new BitSet(total); // Chunks a timeout gave up on, waiting for room in the window
+        while (base < total) {
+            // Fill the window, as far as congestion and the receiver allow: chunks a timeout
+            // gave up on first, then new ones
+            int window = Math.max(1, Math.min(WINDOW, Math.min(cc.window(), rwnd)));
+            int inFlight = 0;
+            for (int seq = base; seq < next; seq++) {
+                if (!acked.get(seq) && !lost.get(seq))
+                    inFlight++;
+            }
+            for (int seq = lost.nextSetBit(base); seq >= 0 && inFlight < window; seq = lost.nextSetBit(seq + 1)) {
+                lost.clear(seq);
+                int slot = seq % WINDOW;
+                if (++attempts[slot] > RETRIES)
+                    return false;
+                sendChunk(socket, channel, fileSize, chunkSize, seq);
+                RETRANSMITS.increment();
+                sentAt[slot] = System.nanoTime();
+                inFlight++;
+            }
+            while (next < total && next < base + window && inFlight < window) {
+                sendChunk(socket, channel, fileSize, chunkSize, next);
+                sentAt[next % WINDOW] = System.nanoTime();
+                attempts[next % WINDOW] = 0;
+                next++;
+                inFlight++;
+            }
+
+            // Wait for an ACK, but no longer than until the oldest pending chunk is due
+            long rto = rtt.rto() * 1_000_000L;
+            long now = System.nanoTime();
+            long due = Long.MAX_VALUE;
+            for (int seq = base; seq < next; seq++) {
+                if (!acked.get(seq) && !lost.get(seq))
+                    due = Math.min(due, sentAt[seq % WINDOW] + rto);
+            }
+            socket.setSoTimeout((int) Math.max(1, (due - now) / 1_000_000L));
+            try {
+                udp_packet ack = socket.receive();
+                if (ack.is(udp_packet.ACK) && ack.length >= 4) {
+                    rwnd = ack.payload.getInt(0);
+
+                    // Everything before the cumulative ACK has arrived, plus whatever the bitmap reports
+                    newlyAcked.clear();
+                    for (int seq = base; seq < Math.min(ack.seq, total); seq++) {
+                        if (!acked.get(seq))
+                            newlyAcked.set(seq);
+                    }
+                    for (int i = 4; i < ack.length; i++) {
+                        // Bit b of bitmap byte k stands for chunk ack.seq + 1 + 8k + b
+                        for (int bits = ack.payload.get(i) & 0xFF; bits != 0; bits &= bits - 1) {
+                            int seq = ack.seq + 1 + (i - 4) * 8 + Integer.numberOfTrailingZeros(bits);
+                            if (seq < total && !acked.get(seq))
+                                newlyAcked.set(seq);
+                        }
+                    }
+                    ack.release();
+                    if (!newlyAcked.isEmpty()) {
+                        rtt.acked();
+                        cc.onAck(newlyAcked.cardinality(), sampleRtt(rtt, newlyAcked, sentAt, attempts));
+                        acked.or(newlyAcked);
+                        lost.andNot(newlyAcked);
+                    }
+
+                    // A chunk still missing after three later chunks arrived was lost: resend it now
+                    // instead of waiting for its timer (fast retransmit). With selective ACKs this
+                    // catches every loss in the window, not only the first one as duplicate ACKs would.
+                    int lostBelow = acked.previousSetBit(next - 1) - 2;
+                    for (int seq = acked.nextClearBit(base); seq < lostBelow; seq = acked.nextClearBit(seq + 1)) {
+                        if (fastResent.get(seq) || lost.get(seq))
+                            continue;
+                        fastResent.set(seq);
+                        cc.onLoss(seq, next);
+                        int slot = seq % WINDOW;
+                        if (++attempts[slot] > RETRIES)
+                            return false;
+                        sendChunk(socket, channel, fileSize, chunkSize, seq);
+                        RETRANSMITS.increment();
+                        FAST_RETRANSMITS.increment();
+                        sentAt[slot] = System.nanoTime();
+                    }
+                } else {
+                    ack.release();
+                }
+            } catch (SocketTimeoutException e) {
+                // Fall through to retransmission
+            }
+
+            while (base < total && acked.get(base))
+                base++;
+
+            // On a timeout, resend only the oldest missing chunk, as Reno does; the other
+            // overdue chunks count as lost and go out as the collapsed window lets them
+            now = System.nanoTime();
+            int oldest = -1;
+            for (int seq = base; seq < next; seq++) {
+                if (acked.get(seq) || lost.get(seq) || now - sentAt[seq % WINDOW] < rto)
+                    continue;
+                if (oldest < 0)
+                    oldest = seq;
+                else
+                    lost.set(seq);
+            }
+            if (oldest >= 0) {
+                TIMEOUTS.increment();
+                rtt.backoff();
+                cc.onTimeout();
+                int slot = oldest % WINDOW;
+                if (++attempts[slot] > RETRIES)
+                    return false;
+                sendChunk(socket, channel, fileSize, chunkSize, oldest);
+                RETRANSMITS.increment();
+                sentAt[slot] = now;
+            }
+        }
+        return true;
+    }
+
+    // Takes one RTT sample per ACK from the most recently sent chunk it acknowledges,
+    // skipping chunks that were retransmitted (Karn's algorithm). Returns the sample, or -1.
+    private static long sampleRtt(rtt_estimator rtt, BitSet newlyAcked, long[] sentAt, int[] attempts) {
+        long latest = -1;
+        for (int seq = newlyAcked.nextSetBit(0); seq >= 0; seq = newlyAcked.nextSetBit(seq + 1)) {
+            int slot = seq % WINDOW;
+            if (attempts[slot] == 0 && (latest < 0 || sentAt[slot] - latest > 0))
+                latest = sentAt[slot];
+        }
+        if (latest < 0)
+            return -1;
+        long sample = System.nanoTime() - latest;
+        rtt.sample(sample);
+        RTT.record(sample);
+        return sample;
+    }
+
+    // Reads chunk <seq> from the file straight into a packet frame and sends it
+    private static void sendChunk(udp_endpoint.session socket, FileChannel channel,
+                                  long fileSize, int chunkSize, int seq) throws IOException {
+        long position = (long) seq * chunkSize;
+        int length = (int) Math.min(chunkSize, fileSize - position);
+        ByteBuffer frame = socket.frame(length);
+        try {
+            int start = frame.position();
+            while (frame.hasRemaining()) {
+                if (channel.read(frame, position + frame.position() - start) < 0)
+                    throw new EOFException("File shrank while sending");
+            }
+            socket.seal(frame, udp_packet.DATA, seq);
+            socket.send(frame);
+            PACKETS_SENT.increment();
+        } finally {
+            socket.release(frame);
+        }
+    }
+
+    // Waits for FIN, poking the receiver with the last chunk if the FIN seems lost
+    private boolean awaitFin(udp_endpoint.session socket, rtt_estimator rtt, FileChannel channel,
+                             long fileSize, int chunkSize, int total, byte[] fileChecksum) throws IOException {
+        for (int attempt = 0; attempt <= RETRIES; ) {
+            socket.setSoTimeout(rtt.rto());
+            try {
+                udp_packet packet = socket.receive();
+                packet.release();
+                if (packet.is(udp_packet.FIN))
+                    return true;
+                // Late ACKs for chunks already acknowledged are ignored
+            } catch (SocketTimeoutException e) {
+                // A complete receiver answers any packet with FIN again
+                attempt++;
+                rtt.backoff();
+                TIMEOUTS.increment();
+                RETRANSMITS.increment();
+                if (total > 0)
+                    sendChunk(socket, channel, fileSize, chunkSize, total - 1);
+                else
+                    sendLen(socket, fileSize, chunkSize, fileChecksum);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Receives a file sent with uploadFile in the given session and saves it to the
+     * directory. Chunks are written at their place in the file as they arrive, so
+     * nothing has to be held back while earlier chunks are retransmitted.
+     *
+     * @param session  The transfer's session ID, sent to the other side with the command.
+     * @param filename The name to save the downloaded file as.
+     * @param dir      The directory to save the file in. Defaults to "client_fl" if not provided.
+     * @return True if the whole file was received.
+     */
+    @Override
+    public boolean downloadFile(long session, String filename, String dir) {
+        // If directory is null or empty, set default directory
+        if (dir == null || dir.isEmpty())
+            dir = "client_fl";
+
+        try (udp_endpoint.session socket = endpoint.open(session, null)) {
+            socket.setSoTimeout(IDLE_TIMEOUT);
+
+            // Wait for the LEN packet announcing the transfer
+            udp_packet len;
+            while (true) {
+                len = socket.receive();
+                if (len.is(udp_packet.LEN) && len.length >= 12)
+                    break;
+                len.release();
+            }
+
+            rtt_estimator rtt = rtt_estimator.forPeer(socket.peer());
+            long fileSize = len.payload.getLong(0);
+            int chunkSize = len.payload.getInt(8);
+            String expectedChecksum = len.length > 12 ? len.text(12) : null;
+            len.release();
+            if (fileSize < 0 || chunkSize < 1 || chunkSize > udp_packet.MAX_PAYLOAD) {
+                System.err.println("Invalid transfer announcement.");
+                return false;
+            }
+            int total = (int) ((fileSize + chunkSize - 1) / chunkSize);
+
+            // Never invite more packets than the session's inbox queues while we are writing
+            int rwnd = Math.max(1, Math.min(RECEIVE_WINDOW, socket.capacity()));
+            BitSet received = new BitSet(total);
+            sendAck(socket, 0, rwnd, received);
+
+            // The first chunk answers our ACK, which gives the receiving side an RTT sample too
+            long ackSentAt = System.nanoTime();
+            boolean sampled = false;
+
+            File file = new File(dir, filename);
+            file.getParentFile().mkdirs(); // Create directories if needed
+
+            try (FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                int base = 0; // Next chunk still missing
+
+                while (base < total) {
+                    udp_packet packet = socket.receive();
+
+                    if (packet.is(udp_packet.LEN)) {
+                        // Our ACK for LEN was lost, and the round trip can no longer be measured
+                        packet.release();
+                        sendAck(socket, 0, rwnd, received);
+                        sampled = true;
+                        continue;
+                    }
+                    if (!packet.is(udp_packet.DATA) || packet.seq < 0 || packet.seq >= total) {
+                        packet.release();
+                        continue;
+                    }
+
+                    if (!sampled) {
+                        rtt.sample(System.nanoTime() - ackSentAt);
+                        sampled = true;
+                    }
+
+                    // Write new chunks where they belong; duplicates are only acknowledged again,
+                    // and chunks beyond the advertised window are dropped like lost ones
+                    if (!received.get(packet.seq) && packet.seq < base + rwnd) {
+                        ByteBuffer data = packet.payload;
+                        long position = (long) packet.seq * chunkSize;
+                        while (data.hasRemaining())
+                            channel.write(data, position + data.position());
+                        received.set(packet.seq);
+                        while (base < total && received.get(base))
+                            base++;
+                    } else if (received.get(packet.seq)) {
+                        DUPLICATES.increment();
+                    }
+                    packet.release();
+                    sendAck(socket, base, rwnd, received);
+                }
+            }
+
+            // Every packet passed its own CRC; the file checksum catches anything else
+            boolean intact = checksum.matches(expectedChecksum, file);
+            BYTES_RECEIVED.add(fileSize);
+            if (!intact) {
+                FAILED.increment();
+                System.err.println("Checksum mismatch, received file " + filename + " discarded.");
+                file.delete();
+            }
+
+            // Tell the sender we have everything, repeating FIN for as long as it keeps sending.
+            // The feedback message follows FIN right away, so it only needs a few RTOs.
+            socket.send(udp_packet.FIN, total);
+            socket.setSoTimeout(Math.min(IDLE_TIMEOUT, rtt.rto() * (RETRIES + 1)));
+            try {
+                while (true) {
+                    udp_packet packet = socket.receive();
+                    String feedbackMessage = packet.is(udp_packet.MSG) ? packet.text() : null;
+                    packet.release();
+                    if (feedbackMessage != null) {
+                        if (!feedbackMessage.isEmpty())
+                            System.out.println("Server Response: " + feedbackMessage);
+                        break;
+                    }
+                    socket.send(udp_packet.FIN, total);
+                }
+            } catch (SocketTimeoutException e) {
+                // The file is complete, only the feedback message went missing
+            }
+            return intact;
+
+        } catch (SocketTimeoutException e) {
+            System.err.println("Transfer timed out waiting for the sender.");
+        } catch (IOException e) {
+            System.err.println("Error while receiving the file: " + e.getMessage());
+        }
+        FAILED.increment();
+        return false;
+    }
+
+    // Sends the cumulative ACK for <base> with the receive window and a bitmap of the chunks
+    // received after it, built bit by bit in the frame
+    private static void sendAck(udp_endpoint.session socket, int base, int rwnd, BitSet received) throws IOException {
+        int highest = Math.min(received.length(), base + 1 + MAX_SACK_BITS);
+        int bitmapBytes = (Math.max(0, highest - base - 1) + 7) / 8;
+        ByteBuffer frame = socket.frame(4 + bitmapBytes);
+        try {
+            frame.putInt(rwnd);
+            int bitmap = frame.position();
+            for (int i = 0; i < bitmapBytes; i++)
+                frame.put((byte) 0);
+            for (int seq = received.nextSetBit(base + 1); seq >= 0 && seq < highest; seq = received.nextSetBit(seq + 1)) {
+                int bit = seq - base - 1;
+                frame.put(bitmap + bit / 8, (byte) (frame.get(bitmap + bit / 8) | 1 << (bit % 8)));
+            }
+            socket.seal(frame, udp_packet.ACK, base);
+            socket.send(frame);
+        } finally {
+            socket.release(frame);
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The write_back class holds the uploads a cache in write-back mode
+ * (-Dcache.writeMode=back) acknowledged before the main server has them, and
+ * writes them to the server in the background.
+ *
+ * Each pending upload is a hard link in cache_fl/.dirty to the uploaded content.
+ * The link keeps the content even if the cache evicts the file before it is
+ * written back, and survives a restart: uploads found there at start-up are
+ * written back like new ones.
+ *
+ * Every flush interval the pending uploads are written to the server in one
+ * batch over a pooled connection. A file uploaded again before it was written
+ * back is sent once, with its latest content. An upload the server didn't take
+ * stays pending and is tried again in the next batch.
+ *
+ * Settings (system properties):
+ *  - cache.flushInterval: Milliseconds between batches (default 1000).
+ *  - cache.flushBatch:    Most files written per batch (default 64).
+ */
+public class write_back {
+
+    static final long FLUSH_INTERVAL = Math.max(10, Long.getLong("cache.flushInterval", 1000));
+    static final int FLUSH_BATCH = Math.max(1, Integer.getInteger("cache.flushBatch", 64));
+
+    private final File dir;
+    private final blob_store blobs;
+    private final String serverIP;
+    private final int serverPort;
+
+    // Checksum of the latest content of each pending upload
+    private final ConcurrentHashMap<String, String> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Picks up the uploads a previous run left pending.
+     *
+     * @param cacheDir   The cache directory; pending uploads are kept in its .dirty directory.
+     * @param blobs      The cache's content store.
+     * @param serverIP   The IP address of the main server.
+     * @param serverPort The port number of the main server.
+     */
+    public write_back(File cacheDir, blob_store blobs, String serverIP, int serverPort) {
+        this.dir = new File(cacheDir, ".dirty");
+        this.blobs = blobs;
+        this.serverIP = serverIP;
+        this.serverPort = serverPort;
+        dir.mkdirs();
+
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (file.getName().startsWith(".")) {
+                file.delete(); // A link that was never moved into place
+                continue;
+            }
+            try {
+                pending.put(file.getName(), checksum.contentOf(file));
+            } catch (IOException e) {
+                System.err.println("Error reading pending upload " + file.getName() + ": " + e.getMessage());
+            }
+        }
+        if (!pending.isEmpty())
+            System.out.println(pending.size() + " upload(s) still to be written to the server.");
+    }
+
+    /**
+     * Writes pending uploads to the server every flush interval, on a daemon thread.
+     */
+    public void start() {
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "write-back");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records an upload that was acknowledged but not yet written to the server,
+     * replacing any older content of the same file still pending.
+     *
+     * @param fileName The uploaded file name.
+     * @param file     The complete upload, which is linked, not moved.
+     * @param sum      Its checksum.
+     * @throws IOException If the link can't be made.
+     */
+    public synchronized void add(String fileName, File file, String sum) throws IOException {
+        // Link under a temporary name first, so a restart never finds part of a link
+        File temporary = new File(dir, "." + fileName + "." + System.nanoTime());
+        blobs.link(file, temporary);
+        Files.move(temporary.toPath(), new File(dir, fileName).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        pending.put(fileName, sum);
+    }
+
+    /**
+     * @param fileName A file name.
+     * @return The checksum of the file's content still to be written to the server,
+     *         or null if none is pending.
+     */
+    public String checksumOf(String fileName) {
+        return pending.get(fileName);
+    }
+
+    /**
+     * @param fileName A file name.
+     * @return The file's content still to be written to the server, or null if none is pending.
+     */
+    public File pending(String fileName) {
+        return pending.containsKey(fileName) ? new File(dir, fileName) : null;
+    }
+
+    // Writes up to FLUSH_BATCH pending uploads to the server
+    void flush() {
+        List<Map.Entry<String, String>> batch = new ArrayList<>();
+        for (Map.Entry<String, String> entry : pending.entrySet()) {
+            if (batch.size() == FLUSH_BATCH)
+                break;
+            batch.add(Map.entry(entry.getKey(), entry.getValue()));
+        }
+
+        tcp_transport tcpTransport = new tcp_transport();
+        for (Map.Entry<String, String> entry : batch) {
+            String fileName = entry.getKey();
+            String sum = entry.getValue();
+            try {
+                // A newer upload may replace the link meanwhile; the server then rejects the
+                // checksum and the newer content goes in the next batch
+                tcpTransport.upload(serverIP, serverPort, new File(dir, fileName), fileName, sum);
+            } catch (IOException e) {
+                System.err.println("Error writing " + fileName + " back to the server: " + e.getMessage());
+                continue;
+            }
+            synchronized (this) {
+                if (pending.remove(fileName, sum))
+                    new File(dir, fileName).delete();
+            }
+            blobs.release(sum);
+            System.out.println("File " + fileName + " written back to the server.");
+        }
+    }
+
+}